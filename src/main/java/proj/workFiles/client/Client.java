@@ -1,12 +1,17 @@
 package cpen221.mp3.client;
 
 import cpen221.mp3.entity.Entity;
+import cpen221.mp3.entity.EntityScheduler;
+import cpen221.mp3.event.WireCodec;
+import cpen221.mp3.event.WireFormat;
+import cpen221.mp3.server.BackpressurePolicy;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 public class Client {
 
@@ -14,9 +19,11 @@ public class Client {
     private String email;
     private String serverIP;
     private int serverPort;
+    private WireFormat wireFormat = WireFormat.BINARY;
 
     private List<Entity> entityList = new ArrayList<>();
     private List<Thread> entityThreads = new ArrayList<>();
+    private EntityScheduler entityScheduler;
 
     // you would need additional fields to enable functionalities required for this class
 
@@ -31,6 +38,16 @@ public class Client {
         return clientId;
     }
 
+    /**
+     * Runs entities added from now on as tasks on the given shared scheduler
+     * instead of starting threads for each of them.
+     *
+     * @param entityScheduler the scheduler shared by the entities, or null to start a thread per entity
+     */
+    public void useEntityScheduler(EntityScheduler entityScheduler) {
+        this.entityScheduler = entityScheduler;
+    }
+
     /**
      * Registers an entity to the client and starts it running as a process.
      *
@@ -42,6 +59,11 @@ public class Client {
 
         entityList.add(entity);
 
+        if (entityScheduler != null) {
+            entityScheduler.start(entity);
+            return true;
+        }
+
         Thread entityThread = new Thread(entity);
         entityThread.start();
         entityThreads.add(entityThread);
@@ -49,8 +71,26 @@ public class Client {
         return true;
     }
 
+    /**
+     * Sets the format requests are sent in.
+     *
+     * @param format WireFormat.BINARY for the compact codec, WireFormat.JAVA_SERIALIZATION for the legacy format
+     */
+    public void setWireFormat(WireFormat format) {
+        this.wireFormat = format;
+    }
+
     // sends a request to the server
     public void sendRequest(Request request) {
+        if (request.getRequestCommand() == RequestCommand.ANALYSIS_STREAM_EVENTS_IN_WINDOW
+                || request.getRequestCommand() == RequestCommand.ANALYSIS_STREAM_LATEST_EVENTS) {
+            try (EventStream events = streamEvents(request)) {
+                events.forEachRemaining(event -> System.out.println("Streamed Event: " + event));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return;
+        }
 
 
         // note that Request is a complex object that you need to serialize before sending
@@ -65,14 +105,12 @@ public class Client {
             PrintWriter out = new PrintWriter(new OutputStreamWriter(sendSocket.getOutputStream()));
             out.println("client," + clientId);
             out.flush();
-            ObjectOutputStream objectOutputStream = new ObjectOutputStream(sendSocket.getOutputStream());
-            objectOutputStream.writeObject(request);
-            objectOutputStream.flush();
+            WireCodec.writePayload(sendSocket.getOutputStream(), request, wireFormat);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
 
-        if(request.getRequestType() == RequestType.ANALYSIS) {
+        if(request.getRequestType() == RequestType.ANALYSIS || request.getRequestType() == RequestType.PREDICT) {
             ObjectInputStream ois;
             Object returnedObject;
             try {
@@ -94,19 +132,88 @@ public class Client {
             } else if(request.getRequestCommand() == RequestCommand.ANALYSIS_GET_EVENTS_IN_WINDOW) {
                 List<Integer> eventsInWindow = (List<Integer>) returnedObject;
                 System.out.println("Events within the window: " + eventsInWindow);
+            } else if(request.getRequestCommand() == RequestCommand.ANALYSIS_GET_TOP_K_ACTIVE_ENTITIES) {
+                List<Integer> topEntities = (List<Integer>) returnedObject;
+                System.out.println("Most Active Entities: " + topEntities);
             } else if(request.getRequestCommand() == RequestCommand.ANALYSIS_GET_LOGS) {
                 List<Integer> logList = (List<Integer>) returnedObject;
                 System.out.println("All Entities Logged: " + logList);
+            } else if(request.getRequestCommand() == RequestCommand.PREDICT_NEXT_N_TIMESTAMPS) {
+                List<Double> timeStamps = (List<Double>) returnedObject;
+                System.out.println("Predicted Timestamps: " + timeStamps);
+            } else if(request.getRequestCommand() == RequestCommand.PREDICT_NEXT_N_VALUES) {
+                List<Object> values = (List<Object>) returnedObject;
+                System.out.println("Predicted Values: " + values);
+            } else if(request.getRequestCommand() == RequestCommand.PREDICT_BATCH_NEXT_N_VALUES) {
+                Map<Integer, List<Object>> values = (Map<Integer, List<Object>>) returnedObject;
+                System.out.println("Predicted Values By Entity: " + values);
             }
         }
 
 
     }
 
+    /**
+     * Sends an ANALYSIS_STREAM_EVENTS_IN_WINDOW or ANALYSIS_STREAM_LATEST_EVENTS request and returns
+     * its events as they arrive, without holding the whole response in memory.
+     * <p>
+     * The data of ANALYSIS_STREAM_EVENTS_IN_WINDOW is {@code start,end[,cursor[,limit]]} and that of
+     * ANALYSIS_STREAM_LATEST_EVENTS is {@code n[,cursor[,limit]]}. A response holds at most limit events,
+     * if given, starting at the cursor, 0 by default; EventStream.getNextCursor gives the cursor of the next page.
+     *
+     * @param request the streaming request
+     * @return the events of the response, to be closed if not read to the end
+     * @throws IOException if the request cannot be sent
+     */
+    public EventStream streamEvents(Request request) throws IOException {
+        Socket sendSocket = new Socket(serverIP, serverPort);
+        try {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(sendSocket.getOutputStream()));
+            out.println("client," + clientId);
+            out.flush();
+            WireCodec.writePayload(sendSocket.getOutputStream(), request, wireFormat);
+            return new EventStream(sendSocket, new BufferedInputStream(sendSocket.getInputStream()));
+        } catch (IOException e) {
+            sendSocket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Subscribes to the events that satisfy the filter set with CONTROL_NOTIFY_IF: the server pushes
+     * the IDs of their entities in batches as they occur, instead of keeping them for ANALYSIS_GET_LOGS.
+     *
+     * @param policy what the server does when this client reads too slowly for the buffer
+     * @param capacity the number of entity IDs the server buffers for this client
+     * @return the pushed batches of entity IDs, to be closed to end the subscription
+     * @throws IOException if the subscription cannot be requested
+     */
+    public LogSubscription subscribeToLogs(BackpressurePolicy policy, int capacity) throws IOException {
+        Request request = new Request(RequestType.CONTROL, RequestCommand.CONTROL_SUBSCRIBE_LOGS, policy + "," + capacity);
+        Socket sendSocket = new Socket(serverIP, serverPort);
+        try {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(sendSocket.getOutputStream()));
+            out.println("client," + clientId);
+            out.flush();
+            WireCodec.writePayload(sendSocket.getOutputStream(), request, wireFormat);
+            return new LogSubscription(sendSocket);
+        } catch (IOException e) {
+            sendSocket.close();
+            throw e;
+        }
+    }
+
     /**
      * Keeps all entities for this client alive, Useful for putting at the end of main to keep the entities running perpetually.
      */
     public void joinAllEntities() {
+        if (entityScheduler != null) {
+            try {
+                entityScheduler.awaitTermination();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
         for(Thread entityThread : entityThreads) {
             try {
                 entityThread.join();
@@ -0,0 +1,116 @@
+package cpen221.mp3.client;
+
+import cpen221.mp3.event.Event;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The events of a streamed ANALYSIS response, read from the server one chunk at a time as they are iterated.
+ * <p>
+ * The server writes the events as lists of at most a fixed number of events, resetting the object
+ * stream after each so neither side keeps the events it has passed, and then an End marker.
+ * Memory on both sides is therefore bounded by the chunk size, not by the number of events.
+ */
+public class EventStream implements Iterator<Event>, Closeable {
+    private final Closeable connection;
+    private final ObjectInputStream in;
+    private Iterator<Event> chunk = Collections.emptyIterator();
+    private End end;
+
+    /**
+     * Marks the end of a streamed response.
+     */
+    public static final class End implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final long nextCursor;
+
+        /**
+         * @param nextCursor the cursor of the next page, or -1 if the response was the last page
+         */
+        public End(long nextCursor) {
+            this.nextCursor = nextCursor;
+        }
+
+        public long getNextCursor() {
+            return nextCursor;
+        }
+    }
+
+    /**
+     * Reads a streamed response from the given input.
+     *
+     * @param connection closed once the stream ends or is closed
+     * @param input the response stream
+     * @throws IOException if the response cannot be read
+     */
+    public EventStream(Closeable connection, InputStream input) throws IOException {
+        this.connection = connection;
+        this.in = new ObjectInputStream(input);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean hasNext() {
+        while (!chunk.hasNext()) {
+            if (end != null) {
+                return false;
+            }
+            Object next;
+            try {
+                next = in.readObject();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException(e);
+            }
+            if (next instanceof End marker) {
+                end = marker;
+                close();
+            } else {
+                chunk = ((List<Event>) next).iterator();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Event next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return chunk.next();
+    }
+
+    /**
+     * Reads the response to its end if needed, and returns where the next page starts.
+     *
+     * @return the cursor to request the next page with, or -1 if there are no more events
+     */
+    public long getNextCursor() {
+        while (hasNext()) {
+            next();
+        }
+        return end.getNextCursor();
+    }
+
+    /**
+     * Closes the connection, abandoning any events not read yet.
+     */
+    public void close() {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package cpen221.mp3.client;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The batches of logged entity IDs the server pushes on a log subscription, in the order they occurred.
+ * hasNext blocks until the next batch arrives, and returns false once the subscription has ended.
+ */
+public class LogSubscription implements Iterator<List<Integer>>, Closeable {
+    private final Socket connection;
+    private ObjectInputStream in;
+    private List<Integer> next;
+    private boolean ended = false;
+
+    /**
+     * @param connection the connection the subscription was requested on
+     */
+    LogSubscription(Socket connection) {
+        this.connection = connection;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        if (ended) {
+            return false;
+        }
+        try {
+            if (in == null) {
+                in = new ObjectInputStream(new BufferedInputStream(connection.getInputStream()));
+            }
+            next = (List<Integer>) in.readObject();
+            return true;
+        } catch (EOFException e) {
+            close();
+            return false;
+        } catch (IOException e) {
+            if (ended) {
+                return false;
+            }
+            throw new UncheckedIOException(e);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public List<Integer> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        List<Integer> batch = next;
+        next = null;
+        return batch;
+    }
+
+    /**
+     * Ends the subscription.
+     */
+    public void close() {
+        ended = true;
+        try {
+            connection.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+}
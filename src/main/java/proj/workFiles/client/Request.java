@@ -17,6 +17,13 @@ public class Request implements Serializable {
         this.requestData = requestData;
     }
 
+    public Request(double timeStamp, RequestType requestType, RequestCommand requestCommand, String requestData) {
+        this.timeStamp = timeStamp;
+        this.requestType = requestType;
+        this.requestCommand = requestCommand;
+        this.requestData = requestData;
+    }
+
     public double getTimeStamp() {
         return timeStamp;
     }
@@ -11,5 +11,10 @@ public enum RequestCommand {
     ANALYSIS_GET_MOST_ACTIVE_ENTITY,
     ANALYSIS_GET_LOGS,
     PREDICT_NEXT_N_TIMESTAMPS,
-    PREDICT_NEXT_N_VALUES
+    PREDICT_NEXT_N_VALUES,
+    ANALYSIS_GET_TOP_K_ACTIVE_ENTITIES,
+    PREDICT_BATCH_NEXT_N_VALUES,
+    ANALYSIS_STREAM_EVENTS_IN_WINDOW,
+    ANALYSIS_STREAM_LATEST_EVENTS,
+    CONTROL_SUBSCRIBE_LOGS
 }
\ No newline at end of file
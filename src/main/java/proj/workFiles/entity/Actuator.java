@@ -5,11 +5,15 @@ import cpen221.mp3.client.RequestCommand;
 import cpen221.mp3.event.ActuatorEvent;
 import cpen221.mp3.event.Event;
 import cpen221.mp3.event.SensorEvent;
+import cpen221.mp3.event.WireCodec;
+import cpen221.mp3.event.WireFormat;
 import cpen221.mp3.server.SeverCommandToActuator;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -19,15 +23,18 @@ public class Actuator implements Entity, Runnable {
     private final String type;
     private boolean state;
     private double eventGenerationFrequency = 0.2; // default value in Hz (1/s)
+    private boolean persistentConnection = false;
+    private WireFormat wireFormat = WireFormat.BINARY;
     // the following specifies the http endpoint that the actuator should send events to
     private String serverIP = null;
     private int serverPort = 0;
     // the following specifies the http endpoint that the actuator should be able to receive commands on from server
     private String host = null;
-    private int port;
+    private volatile int port;
     private ServerSocket serverSocket;
     private static AtomicInteger portOffset = new AtomicInteger(4378);
     private Random randomNumber = new Random();
+    private int timesFailed = 0;
 
     /**
      * Constructs an Actuator object where the
@@ -205,6 +212,25 @@ public class Actuator implements Entity, Runnable {
         }
     }
 
+    /**
+     * Chooses how events are sent to the endpoint.
+     *
+     * @param persistent true to stream events over a long-lived connection shared by all entities
+     *                   sending to the same endpoint, false to open a new socket per event
+     */
+    public synchronized void setPersistentConnection(boolean persistent) {
+        this.persistentConnection = persistent;
+    }
+
+    /**
+     * Sets the format events are sent in.
+     *
+     * @param format WireFormat.BINARY for the compact codec, WireFormat.JAVA_SERIALIZATION for the legacy format
+     */
+    public synchronized void setWireFormat(WireFormat format) {
+        this.wireFormat = format;
+    }
+
     /**
      * Sends an Event object over a socket to a server.
      *
@@ -214,18 +240,25 @@ public class Actuator implements Entity, Runnable {
     public void sendEvent(Event event) throws IOException {
         String currentIP;
         int currentPort;
+        boolean persistent;
+        WireFormat format;
         synchronized (this) {
             currentIP = serverIP;
             currentPort = serverPort;
+            persistent = persistentConnection;
+            format = wireFormat;
+        }
+
+        if (persistent) {
+            EventChannel.forEndpoint(currentIP, currentPort).send("actuator," + clientId + "," + port, event, format);
+            return;
         }
 
         Socket sendSocket = new Socket(currentIP, currentPort);
         PrintWriter out = new PrintWriter(new OutputStreamWriter(sendSocket.getOutputStream()));
         out.println("actuator," + clientId + "," + port);
         out.flush();
-        ObjectOutputStream objectOutputStream = new ObjectOutputStream(sendSocket.getOutputStream());
-        objectOutputStream.writeObject(event);
-        objectOutputStream.flush();
+        WireCodec.writePayload(sendSocket.getOutputStream(), event, format);
     }
 
 
@@ -286,6 +319,73 @@ public class Actuator implements Entity, Runnable {
         return new ActuatorEvent(System.currentTimeMillis(), currentClientID, this.id, this.type, sensorValue);
     }
 
+    /**
+     * Generates and sends one event, or does nothing if the endpoint is not yet set.
+     *
+     * @return the number of milliseconds to wait before the next tick
+     */
+    public long tick() {
+        String currentIP;
+        int currentPort;
+        synchronized (this) {
+            currentIP = serverIP;
+            currentPort = serverPort;
+        }
+        // If endpoint not yet set, wait until it's set. Check every 5 seconds
+        if(currentIP == null || currentPort == 0) {
+            return 5000;
+        }
+
+        //Create a new event
+        Event actuatorEvent = generateEvent();
+        // Start sending events
+        try {
+            sendEvent(actuatorEvent);
+            timesFailed = 0;
+        } catch (IOException e) {
+            // Failed to send.
+            timesFailed++;
+        }
+
+        double currentEventGenFreq;
+        synchronized (this) {
+            currentEventGenFreq = this.eventGenerationFrequency;
+        }
+        if(timesFailed >= 5) {
+            return 10000;
+        }
+        return (long) (1/currentEventGenFreq * 1000);
+    }
+
+    /**
+     * Binds the endpoint on which this actuator receives commands from the server,
+     * trying successive ports until a free one is found.
+     *
+     * @return the bound channel, in blocking mode
+     */
+    ServerSocketChannel bindCommandChannel() {
+        while (true) {
+            int candidate = portOffset.getAndIncrement();
+            ServerSocketChannel channel = null;
+            try {
+                channel = ServerSocketChannel.open();
+                channel.bind(new InetSocketAddress(candidate));
+                synchronized (this) {
+                    port = candidate;
+                }
+                return channel;
+            } catch (IOException e) {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException closeFailure) {
+                        // Nothing was bound
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Starts the server thread to handle incoming connections and process requests.
      * Additionally, initializes a separate thread for sending events to the server.
@@ -294,70 +394,13 @@ public class Actuator implements Entity, Runnable {
      */
     public void run() {
 
-        port = portOffset.getAndIncrement();
-        boolean failed = true;
-        while(failed) {
-            try {
-                serverSocket = new ServerSocket(port);
-                failed = false;
-            } catch (IOException e) {
-                port = portOffset.getAndIncrement();
-            }
-        }
+        serverSocket = bindCommandChannel().socket();
 
         // Needs a thread to send data to the server.
 
         Thread output = new Thread( () -> {
-            String currentIP;
-            int currentPort;
-            synchronized (this) {
-                currentIP = serverIP;
-                currentPort = serverPort;
-            }
-//            System.out.println("got current IPs");
-//            System.out.println("Checking they are valid");
-            // If endpoint not yet set, wait until it's set. Check every 5 seconds
-            while(currentIP == null || currentPort == 0) {
-//                System.out.println("Still checking they are valid");
-                try {
-                    Thread.sleep(5000);
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
-                }
-                synchronized (this) {
-                    currentIP = serverIP;
-                    currentPort = serverPort;
-                }
-            }
-//            System.out.println("IP is valid");
-
-            // Send data back to the server
-            int timesFailed = 0;
-            int eventsSent = 0;
             while(true) {
-//                System.out.println("Events Sent: " + eventsSent++);
-//                System.out.println("Times Failed: " + timesFailed);
-                //Create a new event
-                Event actuatorEvent = generateEvent();
-                // Start sending events
-                try {
-                    sendEvent(actuatorEvent);
-                    timesFailed = 0;
-                } catch (IOException e) {
-                    // Failed to send.
-                    timesFailed++;
-                }
-
-                double currentEventGenFreq;
-                synchronized (this) {
-                    currentEventGenFreq = this.eventGenerationFrequency;
-                }
-                int waitTime;
-                if(timesFailed >= 5) {
-                    waitTime = 10000;
-                } else {
-                    waitTime = (int) (1/currentEventGenFreq * 1000);
-                }
+                long waitTime = tick();
                 try {
                     Thread.sleep(waitTime);
                 } catch (InterruptedException e) {
@@ -375,15 +418,33 @@ public class Actuator implements Entity, Runnable {
                 Socket incomingSocket = serverSocket.accept();
 //                System.out.println("Client/Entity connected: " + incomingSocket.getInetAddress().getHostAddress());
 
-                ObjectInputStream ois = new ObjectInputStream(incomingSocket.getInputStream());
-                Object hopefullyARequest = ois.readObject();
+                // The server keeps its connection open, so each connection is read on its own thread
+                Thread commands = new Thread(() -> readCommands(incomingSocket));
+                commands.setDaemon(true);
+                commands.start();
+            }
+
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Processes every command received on a connection until the sender closes it.
+     *
+     * @param incomingSocket the connection to read commands from
+     */
+    private void readCommands(Socket incomingSocket) {
+        try (Socket socket = incomingSocket) {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            while (true) {
+                Object hopefullyARequest = WireCodec.readPayload(in);
                 if (hopefullyARequest instanceof Request aRequest) {
                     this.processServerMessage(aRequest);
                 }
             }
-
         } catch (IOException | ClassNotFoundException e) {
-            throw new RuntimeException(e);
+            // The sender closed the connection
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,171 @@
+package cpen221.mp3.entity;
+
+import cpen221.mp3.client.Request;
+import cpen221.mp3.event.WireCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Receives server commands for many actuators on a single thread.
+ * Each actuator's command endpoint is registered with one Selector, and commands
+ * are decoded without blocking, in either wire format, as their bytes arrive.
+ * A connection carrying binary commands stays open for as many commands as the server sends.
+ */
+class ActuatorCommandListener implements Runnable {
+    private final Selector selector;
+    private final Queue<Registration> pending = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+
+    ActuatorCommandListener() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Starts accepting commands for the actuator on the given endpoint.
+     *
+     * @param actuator the actuator the commands are for
+     * @param commandChannel the bound endpoint of the actuator
+     */
+    void register(Actuator actuator, ServerSocketChannel commandChannel) {
+        pending.add(new Registration(actuator, commandChannel));
+        selector.wakeup();
+    }
+
+    private static class Registration {
+        private final Actuator actuator;
+        private final ServerSocketChannel commandChannel;
+
+        Registration(Actuator actuator, ServerSocketChannel commandChannel) {
+            this.actuator = actuator;
+            this.commandChannel = commandChannel;
+        }
+    }
+
+    /**
+     * The bytes of a command received so far on one connection.
+     */
+    private static class CommandConnection {
+        private final Actuator actuator;
+        private byte[] data = new byte[128];
+        private int length = 0;
+
+        CommandConnection(Actuator actuator) {
+            this.actuator = actuator;
+        }
+
+        void append(ByteBuffer buffer) {
+            int incoming = buffer.remaining();
+            if (length + incoming > data.length) {
+                byte[] grown = new byte[Math.max(data.length * 2, length + incoming)];
+                System.arraycopy(data, 0, grown, 0, length);
+                data = grown;
+            }
+            buffer.get(data, length, incoming);
+            length += incoming;
+        }
+
+        // drops the complete binary message at the start of the received bytes
+        void consumeBinaryMessage() {
+            int consumed = 5 + ByteBuffer.wrap(data, 1, 4).getInt();
+            System.arraycopy(data, consumed, data, 0, length - consumed);
+            length -= consumed;
+        }
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                System.err.println("Error: " + e.getMessage());
+                return;
+            }
+
+            Registration registration;
+            while ((registration = pending.poll()) != null) {
+                try {
+                    registration.commandChannel.configureBlocking(false);
+                    registration.commandChannel.register(selector, SelectionKey.OP_ACCEPT, registration.actuator);
+                } catch (IOException e) {
+                    System.err.println("Error: " + e.getMessage());
+                }
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept(key);
+                } else if (key.isReadable()) {
+                    read(key);
+                }
+            }
+        }
+    }
+
+    private void accept(SelectionKey key) {
+        Actuator actuator = (Actuator) key.attachment();
+        try {
+            SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+            if (channel != null) {
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, new CommandConnection(actuator));
+            }
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+
+    private void read(SelectionKey key) {
+        CommandConnection connection = (CommandConnection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        try {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                close(key);
+                return;
+            }
+            readBuffer.flip();
+            connection.append(readBuffer);
+            while (connection.length > 0) {
+                Object command = WireCodec.tryReadPayload(connection.data, 0, connection.length);
+                if (command == null) {
+                    return;
+                }
+                if (command instanceof Request request) {
+                    connection.actuator.processServerMessage(request);
+                }
+                if (connection.data[0] != WireCodec.FORMAT_BINARY) {
+                    // A serialized command's length is unknown, so such senders send one command per connection
+                    close(key);
+                    return;
+                }
+                connection.consumeBinaryMessage();
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            close(key);
+        }
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+}
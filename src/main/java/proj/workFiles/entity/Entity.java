@@ -1,6 +1,7 @@
 package cpen221.mp3.entity;
 
 import cpen221.mp3.event.Event;
+import cpen221.mp3.event.WireFormat;
 
 import java.io.IOException;
 
@@ -24,8 +25,17 @@ public interface Entity extends Runnable {
 
     void setEventGenerationFrequency(double frequency);
 
+    // sends events over a long-lived connection shared per endpoint instead of a new socket per event
+    void setPersistentConnection(boolean persistent);
+
+    // sets the format events are sent in, WireFormat.BINARY by default
+    void setWireFormat(WireFormat format);
+
     // sends an event to the endpoint
     void sendEvent(Event event) throws IOException;
 
+    // generates and sends one event, returns the number of milliseconds until the next one is due
+    long tick();
+
     void run();
 }
\ No newline at end of file
@@ -0,0 +1,90 @@
+package cpen221.mp3.entity;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many simulated entities on a small shared pool instead of one or more threads per entity.
+ * Each entity's send loop becomes a task that calls Entity.tick() and reschedules itself after
+ * the returned delay, and all actuators receive their commands through one shared selector thread.
+ */
+public class EntityScheduler {
+    // How long an entity whose tick failed waits before it is ticked again
+    static final long FAILED_TICK_RETRY_MILLIS = 1000;
+
+    private final ScheduledExecutorService ticker;
+    private ActuatorCommandListener commandListener;
+
+    /**
+     * @param threads the number of threads generating and sending events for all entities
+     */
+    public EntityScheduler(int threads) {
+        this.ticker = Executors.newScheduledThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "entity-ticker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts the entity: its events are sent from the shared pool and,
+     * for an actuator, its commands are received by the shared listener.
+     *
+     * @param entity the entity to start
+     */
+    public void start(Entity entity) {
+        if (entity instanceof Actuator actuator) {
+            commandListener().register(actuator, actuator.bindCommandChannel());
+        }
+        ticker.execute(() -> tick(entity));
+    }
+
+    /**
+     * Blocks until the scheduler is shut down.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitTermination() throws InterruptedException {
+        while (!ticker.awaitTermination(1, TimeUnit.DAYS)) {
+            // keep waiting
+        }
+    }
+
+    /**
+     * Stops generating events for all entities.
+     */
+    public void shutdown() {
+        ticker.shutdownNow();
+    }
+
+    private void tick(Entity entity) {
+        long waitTime = FAILED_TICK_RETRY_MILLIS;
+        try {
+            waitTime = entity.tick();
+        } catch (RuntimeException e) {
+            // A failed tick must not end the entity's chain of ticks
+            System.err.println("Error: entity " + entity.getId() + " failed to tick: " + e);
+        } finally {
+            if (!ticker.isShutdown()) {
+                ticker.schedule(() -> tick(entity), waitTime, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private synchronized ActuatorCommandListener commandListener() {
+        if (commandListener == null) {
+            try {
+                commandListener = new ActuatorCommandListener();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            Thread listenerThread = new Thread(commandListener, "actuator-commands");
+            listenerThread.setDaemon(true);
+            listenerThread.start();
+        }
+        return commandListener;
+    }
+}
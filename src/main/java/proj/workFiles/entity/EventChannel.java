@@ -0,0 +1,116 @@
+package cpen221.mp3.entity;
+
+import cpen221.mp3.event.Event;
+import cpen221.mp3.event.EventFrame;
+import cpen221.mp3.event.WireFormat;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A long-lived connection to a MessageHandler, shared by every entity of the process
+ * that sends to the same endpoint. Events are written as frames (see EventFrame)
+ * so a send costs one buffered write instead of a TCP connect.
+ * <p>
+ * When the connection breaks it is re-opened on a later send, waiting an
+ * exponentially growing backoff between attempts.
+ */
+public class EventChannel {
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 10000;
+    private static final Map<String, EventChannel> channels = new ConcurrentHashMap<>();
+
+    private final String serverIP;
+    private final int serverPort;
+    private final ByteArrayOutputStream frameBody = new ByteArrayOutputStream(256);
+    private Socket socket;
+    private DataOutputStream out;
+    private long backoffMillis = INITIAL_BACKOFF_MILLIS;
+    private long nextConnectAttempt = 0;
+
+    private EventChannel(String serverIP, int serverPort) {
+        this.serverIP = serverIP;
+        this.serverPort = serverPort;
+    }
+
+    /**
+     * Returns the channel shared by this process for the given endpoint.
+     *
+     * @param serverIP the IP address of the endpoint
+     * @param serverPort the port number of the endpoint
+     * @return the shared channel
+     */
+    public static EventChannel forEndpoint(String serverIP, int serverPort) {
+        return channels.computeIfAbsent(serverIP + ":" + serverPort, key -> new EventChannel(serverIP, serverPort));
+    }
+
+    /**
+     * Sends an event over the channel, connecting first if needed.
+     *
+     * @param header the per-event header, "entity,<clientId>" or "actuator,<clientId>,<port>"
+     * @param event the event to send
+     * @param format the format to write the event in
+     * @throws IOException if the channel is not connected and cannot be (re)connected yet,
+     *                     or if the write fails
+     */
+    public synchronized void send(String header, Event event, WireFormat format) throws IOException {
+        if (out == null) {
+            connect();
+        }
+        frameBody.reset();
+        EventFrame.writeBody(frameBody, header, event, format);
+        try {
+            out.writeInt(frameBody.size());
+            frameBody.writeTo(out);
+            out.flush();
+        } catch (IOException e) {
+            disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the connection. The next send re-opens it.
+     */
+    public synchronized void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+        socket = null;
+        out = null;
+    }
+
+    private void connect() throws IOException {
+        long now = System.currentTimeMillis();
+        if (now < nextConnectAttempt) {
+            throw new IOException("Waiting " + (nextConnectAttempt - now) + "ms before reconnecting to " + serverIP + ":" + serverPort);
+        }
+        try {
+            socket = new Socket(serverIP, serverPort);
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.write((EventFrame.STREAM_HEADER + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (IOException e) {
+            disconnect();
+            throw e;
+        }
+        backoffMillis = INITIAL_BACKOFF_MILLIS;
+    }
+
+    private void disconnect() {
+        close();
+        nextConnectAttempt = System.currentTimeMillis() + backoffMillis;
+        backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+    }
+}
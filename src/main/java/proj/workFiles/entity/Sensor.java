@@ -3,9 +3,10 @@ package cpen221.mp3.entity;
 
 import cpen221.mp3.event.Event;
 import cpen221.mp3.event.SensorEvent;
+import cpen221.mp3.event.WireCodec;
+import cpen221.mp3.event.WireFormat;
 
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
@@ -18,7 +19,10 @@ public class Sensor implements Entity, Runnable {
     private String serverIP = null;
     private int serverPort = 0;
     private double eventGenerationFrequency = 0.2; // default value in Hz (1/s)
+    private boolean persistentConnection = false;
+    private WireFormat wireFormat = WireFormat.BINARY;
     private Random randomNumber = new Random();
+    private int timesFailed = 0;
 
     /**
      * Constructs a Sensor object with an ID and sensor type. The client ID remains unregistered (-1).
@@ -150,6 +154,25 @@ public class Sensor implements Entity, Runnable {
         }
     }
 
+    /**
+     * Chooses how events are sent to the endpoint.
+     *
+     * @param persistent true to stream events over a long-lived connection shared by all entities
+     *                   sending to the same endpoint, false to open a new socket per event
+     */
+    public synchronized void setPersistentConnection(boolean persistent) {
+        this.persistentConnection = persistent;
+    }
+
+    /**
+     * Sets the format events are sent in.
+     *
+     * @param format WireFormat.BINARY for the compact codec, WireFormat.JAVA_SERIALIZATION for the legacy format
+     */
+    public synchronized void setWireFormat(WireFormat format) {
+        this.wireFormat = format;
+    }
+
     /**
      * Sends an Event object over the network.
      *
@@ -161,18 +184,25 @@ public class Sensor implements Entity, Runnable {
         // note that Event is a complex object that you need to serialize before sending
         String currentIP;
         int currentPort;
+        boolean persistent;
+        WireFormat format;
         synchronized (this) {
             currentIP = serverIP;
             currentPort = serverPort;
+            persistent = persistentConnection;
+            format = wireFormat;
+        }
+
+        if (persistent) {
+            EventChannel.forEndpoint(currentIP, currentPort).send("entity," + clientId, event, format);
+            return;
         }
 
         Socket sendSocket = new Socket(currentIP, currentPort);
         PrintWriter out = new PrintWriter(new OutputStreamWriter(sendSocket.getOutputStream()));
         out.println("entity," + clientId);
         out.flush();
-        ObjectOutputStream objectOutputStream = new ObjectOutputStream(sendSocket.getOutputStream());
-        objectOutputStream.writeObject(event);
-        objectOutputStream.flush();
+        WireCodec.writePayload(sendSocket.getOutputStream(), event, format);
     }
 
     /**
@@ -208,6 +238,22 @@ public class Sensor implements Entity, Runnable {
      * @throws RuntimeException If an InterruptedException occurs during thread sleep.
      */
     public void run() {
+        while(true) {
+            long waitTime = tick();
+            try {
+                Thread.sleep(waitTime);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Generates and sends one event, or does nothing if the endpoint is not yet set.
+     *
+     * @return the number of milliseconds to wait before the next tick
+     */
+    public long tick() {
         String currentIP;
         int currentPort;
         synchronized (this) {
@@ -215,50 +261,28 @@ public class Sensor implements Entity, Runnable {
             currentPort = serverPort;
         }
         // If endpoint not yet set, wait until it's set. Check every 5 seconds
-        while(currentIP == null || currentPort == 0) {
-            try {
-                Thread.sleep(5000);
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            }
-            synchronized (this) {
-                currentIP = serverIP;
-                currentPort = serverPort;
-            }
+        if(currentIP == null || currentPort == 0) {
+            return 5000;
         }
 
-        // Send data back to the server
-        int timesFailed = 0;
-        int eventsSent = 0;
-        while(true) {
-//            System.out.println("Events Sent: " + eventsSent++);
-//            System.out.println("Times Failed: " + timesFailed);
-            //Create a new event
-            Event sensorEvent = generateEvent();
-            // Start sending events
-            try {
-                sendEvent(sensorEvent);
-                timesFailed = 0;
-            } catch (IOException e) {
-                // Failed to send.
-                timesFailed++;
-            }
+        //Create a new event
+        Event sensorEvent = generateEvent();
+        // Start sending events
+        try {
+            sendEvent(sensorEvent);
+            timesFailed = 0;
+        } catch (IOException e) {
+            // Failed to send.
+            timesFailed++;
+        }
 
-            double currentEventGenFreq;
-            synchronized (this) {
-                currentEventGenFreq = this.eventGenerationFrequency;
-            }
-            int waitTime;
-            if(timesFailed == 5) {
-                waitTime = 10000;
-            } else {
-                waitTime = (int) (1/currentEventGenFreq * 1000);
-            }
-            try {
-                Thread.sleep(waitTime);
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            }
+        double currentEventGenFreq;
+        synchronized (this) {
+            currentEventGenFreq = this.eventGenerationFrequency;
+        }
+        if(timesFailed == 5) {
+            return 10000;
         }
+        return (long) (1/currentEventGenFreq * 1000);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,87 @@
+package cpen221.mp3.event;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A length-prefixed event sent over a long-lived entity connection.
+ * A stream connection starts with the header line "stream" and then carries any number of frames:
+ * an int length followed by that many bytes holding the per-event header
+ * ("entity,<clientId>" or "actuator,<clientId>,<port>") and the event, either serialized
+ * or encoded by WireCodec behind its negotiation byte.
+ */
+public class EventFrame {
+    public static final String STREAM_HEADER = "stream";
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    private final String header;
+    private final Event event;
+
+    private EventFrame(String header, Event event) {
+        this.header = header;
+        this.event = event;
+    }
+
+    public String getHeader() {
+        return header;
+    }
+
+    public Event getEvent() {
+        return event;
+    }
+
+    /**
+     * Writes the body of a frame (without its length prefix).
+     *
+     * @param body the buffer to write into
+     * @param header the per-event header
+     * @param event the event to send
+     * @param format the format to write the event in
+     * @throws IOException if the event cannot be serialized
+     */
+    public static void writeBody(ByteArrayOutputStream body, String header, Event event, WireFormat format) throws IOException {
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeUTF(header);
+        if (format == WireFormat.BINARY) {
+            ByteBuffer encoded = WireCodec.toBuffer(event);
+            out.writeByte(WireCodec.FORMAT_BINARY);
+            out.write(encoded.array(), 0, encoded.remaining());
+        } else {
+            ObjectOutputStream oos = new ObjectOutputStream(out);
+            oos.writeObject(event);
+            oos.flush();
+        }
+    }
+
+    /**
+     * Decodes the body of a frame.
+     *
+     * @param data the buffer holding the frame body
+     * @param offset the start of the body in data
+     * @param length the length of the body
+     * @return the decoded frame
+     * @throws IOException if the body is malformed or does not hold an Event
+     * @throws ClassNotFoundException if the body holds an object of an unknown class
+     */
+    public static EventFrame readBody(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+        ByteArrayInputStream bytes = new ByteArrayInputStream(data, offset, length);
+        String header = new DataInputStream(bytes).readUTF();
+        Object event;
+        int payloadStart = offset + length - bytes.available();
+        if (bytes.available() > 0 && data[payloadStart] == WireCodec.FORMAT_BINARY) {
+            event = WireCodec.decode(ByteBuffer.wrap(data, payloadStart + 1, bytes.available() - 1));
+        } else {
+            event = new ObjectInputStream(bytes).readObject();
+        }
+        if (!(event instanceof Event)) {
+            throw new IOException("Frame does not hold an Event");
+        }
+        return new EventFrame(header, (Event) event);
+    }
+}
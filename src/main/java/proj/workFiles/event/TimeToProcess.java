@@ -3,12 +3,19 @@ package cpen221.mp3.event;
 import cpen221.mp3.client.Request;
 
 import java.net.Socket;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
 
-public class TimeToProcess {
+/**
+ * An event or request waiting in the MessageHandler's DelayQueue.
+ * It becomes available once timeAtWhichToProcess (in milliseconds since the epoch) has passed;
+ * available entries are released in the order of their release time, then of their timestamp.
+ */
+public class TimeToProcess implements Delayed {
 
     private Event event;
     private Request request;
-    private double timeAtWhichToProcess;
+    private final double timeAtWhichToProcess;
     private RequestOrEvent requestOrEvent;
     private int clientID;
     private Socket clientSocket;
@@ -55,12 +62,23 @@ public class TimeToProcess {
         return requestOrEvent;
     }
 
-    public synchronized double getTimeAtWhichToProcess() {
+    public double getTimeAtWhichToProcess() {
         return timeAtWhichToProcess;
     }
 
-    public synchronized void setTimeAtWhichToProcess(double time) {
-        timeAtWhichToProcess = time;
+    @Override
+    public long getDelay(TimeUnit unit) {
+        double delayMillis = timeAtWhichToProcess - System.currentTimeMillis();
+        return unit.convert(Math.round(delayMillis * 1_000_000), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+        if (other instanceof TimeToProcess otherTask) {
+            int byReleaseTime = Double.compare(timeAtWhichToProcess, otherTask.timeAtWhichToProcess);
+            return byReleaseTime != 0 ? byReleaseTime : Double.compare(getTimeStamp(), otherTask.getTimeStamp());
+        }
+        return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
     }
 
     public Socket getClientSocket() {
@@ -0,0 +1,342 @@
+package cpen221.mp3.event;
+
+import cpen221.mp3.client.Request;
+import cpen221.mp3.client.RequestCommand;
+import cpen221.mp3.client.RequestType;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Fixed-layout binary encoding of SensorEvent, ActuatorEvent and Request.
+ * <p>
+ * Every message starts with a version byte and a tag byte. Events then hold
+ * the timestamp (double), client ID (int), entity ID (int), an entity type code (byte,
+ * followed by a length-prefixed UTF-8 name only for types without a code) and the value
+ * (double for sensors, one byte for actuators). Requests hold the timestamp, the
+ * RequestType and RequestCommand ordinals (one byte each) and the length-prefixed UTF-8 data.
+ * <p>
+ * On the wire a binary message is announced by the negotiation byte FORMAT_BINARY followed
+ * by the int length of the message. Java serialization streams always start with 0xAC,
+ * so a receiver can tell the two formats apart from the first byte.
+ */
+public class WireCodec {
+    public static final byte FORMAT_BINARY = 0x01;
+    public static final byte VERSION = 1;
+    public static final int MAX_MESSAGE_LENGTH = 1 << 20;
+
+    private static final byte TAG_SENSOR_EVENT = 1;
+    private static final byte TAG_ACTUATOR_EVENT = 2;
+    private static final byte TAG_REQUEST = 3;
+
+    private static final byte UNKNOWN_TYPE = 0;
+    private static final String[] ENTITY_TYPES = {null, "TempSensor", "PressureSensor", "CO2Sensor", "Switch"};
+
+    private static final RequestType[] REQUEST_TYPES = RequestType.values();
+    private static final RequestCommand[] REQUEST_COMMANDS = RequestCommand.values();
+
+    private WireCodec() {
+    }
+
+    /**
+     * Returns the small integer code of a known entity type.
+     *
+     * @param entityType the entity type name
+     * @return the code of the type, or 0 if the type has no code
+     */
+    public static int entityTypeCode(String entityType) {
+        for (int code = 1; code < ENTITY_TYPES.length; code++) {
+            if (ENTITY_TYPES[code].equals(entityType)) {
+                return code;
+            }
+        }
+        return UNKNOWN_TYPE;
+    }
+
+    /**
+     * Returns the entity type name of a code returned by entityTypeCode.
+     *
+     * @param code a code between 1 and the number of known types
+     * @return the entity type name
+     * @throws IllegalArgumentException if the code is not a known type code
+     */
+    public static String entityTypeName(int code) {
+        if (code <= UNKNOWN_TYPE || code >= ENTITY_TYPES.length) {
+            throw new IllegalArgumentException("Unknown entity type code " + code);
+        }
+        return ENTITY_TYPES[code];
+    }
+
+    /**
+     * @return the number of bytes encodeEvent writes for the given event
+     */
+    public static int encodedLength(Event event) {
+        int length = 2 + 8 + 4 + 4 + 1;
+        if (entityTypeCode(event.getEntityType()) == UNKNOWN_TYPE) {
+            length += 2 + utf8Length(event.getEntityType());
+        }
+        return length + (event instanceof ActuatorEvent ? 1 : 8);
+    }
+
+    /**
+     * @return the number of bytes encodeRequest writes for the given request
+     */
+    public static int encodedLength(Request request) {
+        int length = 2 + 8 + 1 + 1 + 4;
+        if (request.getRequestData() != null) {
+            length += utf8Length(request.getRequestData());
+        }
+        return length;
+    }
+
+    /**
+     * Writes an event at the current position of the buffer.
+     *
+     * @param event the event to encode
+     * @param buffer the buffer to write into, with at least encodedLength(event) bytes remaining
+     */
+    public static void encodeEvent(Event event, ByteBuffer buffer) {
+        boolean actuator = event instanceof ActuatorEvent;
+        buffer.put(VERSION);
+        buffer.put(actuator ? TAG_ACTUATOR_EVENT : TAG_SENSOR_EVENT);
+        buffer.putDouble(event.getTimeStamp());
+        buffer.putInt(event.getClientId());
+        buffer.putInt(event.getEntityId());
+        int typeCode = entityTypeCode(event.getEntityType());
+        buffer.put((byte) typeCode);
+        if (typeCode == UNKNOWN_TYPE) {
+            byte[] name = event.getEntityType().getBytes(StandardCharsets.UTF_8);
+            buffer.putShort((short) name.length);
+            buffer.put(name);
+        }
+        if (actuator) {
+            buffer.put((byte) (event.getValueBoolean() ? 1 : 0));
+        } else {
+            buffer.putDouble(event.getValueDouble());
+        }
+    }
+
+    /**
+     * Writes a request at the current position of the buffer.
+     *
+     * @param request the request to encode
+     * @param buffer the buffer to write into, with at least encodedLength(request) bytes remaining
+     */
+    public static void encodeRequest(Request request, ByteBuffer buffer) {
+        buffer.put(VERSION);
+        buffer.put(TAG_REQUEST);
+        buffer.putDouble(request.getTimeStamp());
+        buffer.put((byte) request.getRequestType().ordinal());
+        buffer.put((byte) request.getRequestCommand().ordinal());
+        if (request.getRequestData() == null) {
+            buffer.putInt(-1);
+        } else {
+            byte[] data = request.getRequestData().getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(data.length);
+            buffer.put(data);
+        }
+    }
+
+    /**
+     * Reads one message starting at the current position of the buffer.
+     *
+     * @param buffer the buffer to read from
+     * @return the decoded SensorEvent, ActuatorEvent or Request
+     * @throws IOException if the message is truncated, of an unsupported version or malformed
+     */
+    public static Object decode(ByteBuffer buffer) throws IOException {
+        try {
+            byte version = buffer.get();
+            if (version != VERSION) {
+                throw new IOException("Unsupported wire codec version " + version);
+            }
+            byte tag = buffer.get();
+            if (tag == TAG_REQUEST) {
+                return decodeRequestBody(buffer);
+            } else if (tag == TAG_SENSOR_EVENT || tag == TAG_ACTUATOR_EVENT) {
+                return decodeEventBody(buffer, tag == TAG_ACTUATOR_EVENT);
+            }
+            throw new IOException("Unknown message tag " + tag);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Malformed message", e);
+        }
+    }
+
+    /**
+     * Writes a message announced by the negotiation byte and its length.
+     *
+     * @param out the stream to write to
+     * @param message the Event or Request to send
+     * @throws IOException if writing fails
+     */
+    public static void writeMessage(DataOutputStream out, Object message) throws IOException {
+        ByteBuffer buffer = toBuffer(message);
+        out.writeByte(FORMAT_BINARY);
+        out.writeInt(buffer.remaining());
+        out.write(buffer.array(), 0, buffer.remaining());
+    }
+
+    /**
+     * Reads a message written by writeMessage, after its negotiation byte has been consumed.
+     *
+     * @param in the stream to read from
+     * @return the decoded Event or Request
+     * @throws IOException if reading fails or the message is malformed
+     */
+    public static Object readMessage(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_MESSAGE_LENGTH) {
+            throw new IOException("Invalid message length " + length);
+        }
+        byte[] message = new byte[length];
+        in.readFully(message);
+        return decode(ByteBuffer.wrap(message));
+    }
+
+    /**
+     * Writes a message in the given format and flushes the stream.
+     *
+     * @param out the stream to write to
+     * @param message the Event or Request to send
+     * @param format BINARY to use this codec, JAVA_SERIALIZATION for the legacy format
+     * @throws IOException if writing fails
+     */
+    public static void writePayload(OutputStream out, Object message, WireFormat format) throws IOException {
+        if (format == WireFormat.BINARY) {
+            DataOutputStream dataOut = new DataOutputStream(out);
+            writeMessage(dataOut, message);
+            dataOut.flush();
+        } else {
+            ObjectOutputStream oos = new ObjectOutputStream(out);
+            oos.writeObject(message);
+            oos.flush();
+        }
+    }
+
+    /**
+     * Reads a message written by writePayload in either format, using the first byte to tell them apart.
+     *
+     * @param in the stream to read from, which must support mark and reset
+     * @return the decoded message
+     * @throws IOException if reading fails or the message is malformed
+     * @throws ClassNotFoundException if a serialized message is of an unknown class
+     */
+    public static Object readPayload(InputStream in) throws IOException, ClassNotFoundException {
+        in.mark(1);
+        int first = in.read();
+        if (first == FORMAT_BINARY) {
+            return readMessage(new DataInputStream(in));
+        }
+        in.reset();
+        return new ObjectInputStream(in).readObject();
+    }
+
+    /**
+     * Decodes a payload in either format from bytes received so far without blocking.
+     *
+     * @param data the received bytes
+     * @param offset the start of the payload in data
+     * @param length the number of payload bytes received so far
+     * @return the decoded message, or null if it has not been fully received yet
+     * @throws IOException if the payload is malformed
+     * @throws ClassNotFoundException if a serialized payload is of an unknown class
+     */
+    public static Object tryReadPayload(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+        if (length > 0 && data[offset] == FORMAT_BINARY) {
+            if (length < 5) {
+                return null;
+            }
+            int messageLength = ByteBuffer.wrap(data, offset + 1, 4).getInt();
+            if (messageLength < 0 || messageLength > MAX_MESSAGE_LENGTH) {
+                throw new IOException("Invalid message length " + messageLength);
+            }
+            if (length < 5 + messageLength) {
+                return null;
+            }
+            return decode(ByteBuffer.wrap(data, offset + 5, messageLength));
+        }
+        try {
+            return new ObjectInputStream(new ByteArrayInputStream(data, offset, length)).readObject();
+        } catch (EOFException e) {
+            return null;
+        } catch (StreamCorruptedException e) {
+            // The stream header itself may still be incomplete
+            if (length < 4) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Encodes an Event or Request into a new buffer, flipped for reading.
+     *
+     * @param message the Event or Request to encode
+     * @return a heap buffer holding exactly the encoded message
+     */
+    public static ByteBuffer toBuffer(Object message) {
+        ByteBuffer buffer;
+        if (message instanceof Event event) {
+            buffer = ByteBuffer.allocate(encodedLength(event));
+            encodeEvent(event, buffer);
+        } else if (message instanceof Request request) {
+            buffer = ByteBuffer.allocate(encodedLength(request));
+            encodeRequest(request, buffer);
+        } else {
+            throw new IllegalArgumentException("Only events and requests can be encoded");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static Event decodeEventBody(ByteBuffer buffer, boolean actuator) {
+        double timeStamp = buffer.getDouble();
+        int clientId = buffer.getInt();
+        int entityId = buffer.getInt();
+        int typeCode = buffer.get();
+        String entityType;
+        if (typeCode == UNKNOWN_TYPE) {
+            byte[] name = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(name);
+            entityType = new String(name, StandardCharsets.UTF_8);
+        } else {
+            entityType = entityTypeName(typeCode);
+        }
+        if (actuator) {
+            return new ActuatorEvent(timeStamp, clientId, entityId, entityType, buffer.get() != 0);
+        }
+        return new SensorEvent(timeStamp, clientId, entityId, entityType, buffer.getDouble());
+    }
+
+    private static Request decodeRequestBody(ByteBuffer buffer) {
+        double timeStamp = buffer.getDouble();
+        int type = buffer.get();
+        int command = buffer.get();
+        if (type < 0 || type >= REQUEST_TYPES.length || command < 0 || command >= REQUEST_COMMANDS.length) {
+            throw new IllegalArgumentException("Unknown request type or command");
+        }
+        int dataLength = buffer.getInt();
+        String data = null;
+        if (dataLength >= 0) {
+            byte[] bytes = new byte[dataLength];
+            buffer.get(bytes);
+            data = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return new Request(timeStamp, REQUEST_TYPES[type], REQUEST_COMMANDS[command], data);
+    }
+
+    private static int utf8Length(String string) {
+        return string.getBytes(StandardCharsets.UTF_8).length;
+    }
+}
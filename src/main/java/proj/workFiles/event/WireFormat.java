@@ -0,0 +1,6 @@
+package cpen221.mp3.event;
+
+public enum WireFormat {
+    JAVA_SERIALIZATION,
+    BINARY
+}
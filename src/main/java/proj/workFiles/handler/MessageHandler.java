@@ -2,35 +2,162 @@ package cpen221.mp3.handler;
 
 import cpen221.mp3.event.Event;
 import cpen221.mp3.event.TimeToProcess;
+import cpen221.mp3.server.RetentionPolicy;
 import cpen221.mp3.server.Server;
 
+import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.nio.file.Path;
+import java.util.concurrent.DelayQueue;
 
 public class MessageHandler implements Runnable {
+    public static final long DEFAULT_LOG_SEGMENT_BYTES = 64L << 20;
+
+    private static final int DEFAULT_IO_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private static final int DEFAULT_LOG_BATCH_SIZE = 256;
+    private static final long DEFAULT_LOG_FLUSH_INTERVAL_MILLIS = 5;
+
     private ServerSocket serverSocket;
     private int port;
+    private final IngestMode ingestMode;
+    private final int ioThreads;
+    private volatile WriteAheadLog writeAheadLog;
 
-    List<Server> serverList = new ArrayList<>();
-    PriorityBlockingQueue<TimeToProcess> eventQueue = new PriorityBlockingQueue<>(10, (x, y) -> {
-        if(x.getTimeStamp() < y.getTimeStamp()) {
-            x.setTimeAtWhichToProcess(y.getTimeAtWhichToProcess());
-        }
-        return Double.compare(x.getTimeStamp(), y.getTimeStamp());
-    });
-    List<Thread> serverThreads = new ArrayList<>();
+    final ServerRouter serverRouter = new ServerRouter();
+    // Releases each event or request once its max wait time has passed, without polling
+    DelayQueue<TimeToProcess> eventQueue = new DelayQueue<>();
 
     // you may need to add additional private fields and methods to this class
 
     public MessageHandler(int port) {
+        this(port, IngestMode.THREAD_PER_CONNECTION);
+    }
+
+    public MessageHandler(int port, IngestMode ingestMode) {
+        this(port, ingestMode, DEFAULT_IO_THREADS);
+    }
+
+    /**
+     * Creates a MessageHandler listening on the given port.
+     *
+     * @param port the port to accept clients and entities on
+     * @param ingestMode THREAD_PER_CONNECTION to start a MessageHandlerThread for every accepted socket,
+     *                   SELECTOR to read every socket from a fixed set of non-blocking I/O threads
+     * @param ioThreads the number of I/O threads used in SELECTOR mode
+     */
+    public MessageHandler(int port, IngestMode ingestMode, int ioThreads) {
         this.port = port;
+        this.ingestMode = ingestMode;
+        this.ioThreads = ioThreads;
+    }
+
+    /**
+     * Runs the Servers of all clients on a shared pool of worker threads instead of one thread per client.
+     * Must be called before the first message is received.
+     *
+     * @param workerThreads the number of threads shared by all Servers
+     */
+    public void useSharedServerPool(int workerThreads) {
+        serverRouter.useSharedPool(workerThreads);
+    }
+
+    /**
+     * Keeps the history of every client within the given policy instead of in full, so memory stays
+     * flat however long clients send events. Does not apply to clients whose history is persisted.
+     * Must be called before the first message is received.
+     *
+     * @param policy how much of each client's history to keep, and at what resolution
+     */
+    public void setRetentionPolicy(RetentionPolicy policy) {
+        serverRouter.useRetentionPolicy(policy);
+    }
+
+    /**
+     * Merges the toggles and sets sent to each actuator within the given window into one command,
+     * and sends each actuator at most maxCommandsPerSecond commands a second.
+     * Must be called before the first message is received.
+     *
+     * @param windowMillis how long, in milliseconds, commands to an actuator are collected before one is sent
+     * @param maxCommandsPerSecond the most commands sent to one actuator per second; Double.POSITIVE_INFINITY for no limit
+     */
+    public void setActuatorCommandCoalescing(long windowMillis, double maxCommandsPerSecond) {
+        serverRouter.useCommandCoalescing(windowMillis, maxCommandsPerSecond);
+    }
+
+    /**
+     * Keeps the history of every client in memory-mapped segment files under the given directory
+     * so it survives a restart, and recovers the clients whose history is already there.
+     * Must be called before the first message is received.
+     *
+     * @param directory the directory holding the history of all clients
+     * @throws IOException if the directory cannot be read or a client's history is corrupt
+     */
+    public void setPersistenceDirectory(Path directory) throws IOException {
+        serverRouter.usePersistence(directory);
+    }
+
+    /**
+     * Commits accepted events and CONFIG and CONTROL requests to a write-ahead log before they are
+     * scheduled, so they survive a crash, and replays the messages already in the log into the Servers.
+     * Events already in a client's persisted history are not replayed, so they are not counted twice.
+     * Commits are grouped: one write and force covers every message that arrived within the flush
+     * interval, or batchSize messages, whichever comes first.
+     * The log is kept in segments of DEFAULT_LOG_SEGMENT_BYTES, and a segment is dropped once every event
+     * in it is in its client's persisted history and covered by a checkpoint; its requests are kept.
+     * Segments holding events of a client whose history is not persisted are never dropped.
+     * Must be called before the first message is received.
+     *
+     * @param file the path the log's segment files are named after
+     * @param batchSize the number of pending messages that triggers a commit right away
+     * @param flushIntervalMillis the longest a message waits for its commit
+     * @throws IOException if the log cannot be opened or read
+     */
+    public void useWriteAheadLog(Path file, int batchSize, long flushIntervalMillis) throws IOException {
+        useWriteAheadLog(file, batchSize, flushIntervalMillis, DEFAULT_LOG_SEGMENT_BYTES);
+    }
+
+    /**
+     * Commits accepted events and CONFIG and CONTROL requests to a write-ahead log kept in segments
+     * of the given size, as useWriteAheadLog(file, batchSize, flushIntervalMillis) does.
+     * Must be called before the first message is received.
+     *
+     * @param file the path the log's segment files are named after
+     * @param batchSize the number of pending messages that triggers a commit right away
+     * @param flushIntervalMillis the longest a message waits for its commit
+     * @param segmentBytes the size at which the log starts a new segment
+     * @throws IOException if the log cannot be opened or read
+     */
+    public void useWriteAheadLog(Path file, int batchSize, long flushIntervalMillis, long segmentBytes) throws IOException {
+        WriteAheadLog log = new WriteAheadLog(file, batchSize, flushIntervalMillis, segmentBytes, this::isDurable);
+        log.replay(record -> {
+            if (record.message instanceof Event event && isRecovered(record.header, event)) {
+                return;
+            }
+            // Already durable, and long past its max wait time
+            MessageHandlerThread.dispatch(record.header, record.message, record.receivedAt, null,
+                    serverRouter, eventQueue, null);
+        });
+        writeAheadLog = log;
+    }
+
+    // whether a logged event is already in the history its client's Server was recovered from
+    private boolean isRecovered(String header, Event event) {
+        Integer clientId = WriteAheadLog.clientIdOf(header);
+        return clientId != null && serverRouter.getOrCreate(clientId).isRecovered(event);
+    }
+
+    // whether the write-ahead log no longer needs a client's events up to the given timestamp
+    private boolean isDurable(int clientId, double timeStamp) {
+        Server server = serverRouter.route(clientId);
+        return server != null && server.isDurable(timeStamp);
     }
 
     public void run() {
+        if (ingestMode == IngestMode.SELECTOR) {
+            new SelectorIngest(port, ioThreads, serverRouter, eventQueue, writeAheadLog).run();
+            return;
+        }
         // the following is just to get you started
         // you may need to change it to fit your implementation
         try {
@@ -42,7 +169,7 @@ public class MessageHandler implements Runnable {
                 System.out.println("Client/Entity connected: " + incomingSocket.getInetAddress().getHostAddress());
 
                 // create a new thread to handle the client request or entity event
-                Thread handlerThread = new Thread(new MessageHandlerThread(incomingSocket, serverList, eventQueue, serverThreads));
+                Thread handlerThread = new Thread(new MessageHandlerThread(incomingSocket, serverRouter, eventQueue, writeAheadLog));
                 handlerThread.start();
             }
         } catch (Exception e) {
@@ -53,7 +180,21 @@ public class MessageHandler implements Runnable {
     public static void main(String[] args) {
         // you would need to initialize the RequestHandler with the port number
         // and then start it here
-        MessageHandler server = new MessageHandler(4377);
+        IngestMode ingestMode = args.length > 0 ? IngestMode.valueOf(args[0]) : IngestMode.THREAD_PER_CONNECTION;
+        MessageHandler server = new MessageHandler(4377, ingestMode);
+        if (args.length > 1) {
+            server.useSharedServerPool(Integer.parseInt(args[1]));
+        }
+        try {
+            if (args.length > 2) {
+                server.setPersistenceDirectory(Path.of(args[2]));
+            }
+            if (args.length > 3) {
+                server.useWriteAheadLog(Path.of(args[3]), DEFAULT_LOG_BATCH_SIZE, DEFAULT_LOG_FLUSH_INTERVAL_MILLIS);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
         Thread serverThread = new Thread(server);
         serverThread.start();
 
@@ -64,15 +205,10 @@ public class MessageHandler implements Runnable {
             } catch (InterruptedException e) {
                 throw new RuntimeException(e);
             }
-            if(firstEventOrRequest.getTimeAtWhichToProcess() >= System.currentTimeMillis() ) {
-                for(Server i : server.serverList) {
-                    if(i.getClientID() == firstEventOrRequest.getClientId()) {
-                        i.processIncomingEventOrRequest(firstEventOrRequest);
-                        break;
-                    }
-                }
-            } else {
-                server.eventQueue.put(firstEventOrRequest);
+            // take() only returns once the release time of the head has passed
+            Server clientServer = server.serverRouter.route((int) firstEventOrRequest.getClientId());
+            if (clientServer != null) {
+                clientServer.processIncomingEventOrRequest(firstEventOrRequest);
             }
         }
     }
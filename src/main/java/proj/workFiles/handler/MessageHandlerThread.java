@@ -1,34 +1,37 @@
 package cpen221.mp3.handler;
 
-import cpen221.mp3.client.Client;
 import cpen221.mp3.client.Request;
 import cpen221.mp3.client.RequestCommand;
 import cpen221.mp3.client.RequestType;
 import cpen221.mp3.event.Event;
+import cpen221.mp3.event.EventFrame;
 import cpen221.mp3.event.TimeToProcess;
+import cpen221.mp3.event.WireCodec;
 import cpen221.mp3.server.Server;
 import org.apache.commons.collections4.queue.PredicatedQueue;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.sql.Time;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import static java.lang.Integer.parseInt;
 
 class MessageHandlerThread implements Runnable {
     private final Socket incomingSocket;
-    private final List<Server> serverList;
-    private final PriorityBlockingQueue<TimeToProcess> eventQueue;
-    private final List<Thread> serverThreads;
+    private final ServerRouter serverRouter;
+    private final BlockingQueue<TimeToProcess> eventQueue;
+    private final WriteAheadLog writeAheadLog;
 
-    public MessageHandlerThread(Socket incomingSocket, List<Server> serverList, PriorityBlockingQueue<TimeToProcess> eventQueue, List<Thread> serverThreads) {
+    public MessageHandlerThread(Socket incomingSocket, ServerRouter serverRouter, BlockingQueue<TimeToProcess> eventQueue,
+                                WriteAheadLog writeAheadLog) {
         this.incomingSocket = incomingSocket;
-        this.serverList = serverList;
+        this.serverRouter = serverRouter;
         this.eventQueue = eventQueue;
-        this.serverThreads = serverThreads;
+        this.writeAheadLog = writeAheadLog;
     }
 
     @Override
@@ -36,67 +39,141 @@ class MessageHandlerThread implements Runnable {
         // handle the client request or entity event here
         // and deal with exceptions if needed
         Object requestOrEvent;
-        String type;
-        String[] typeIDArr;
+        String typeID;
         double currentTime = System.currentTimeMillis();
-        int ID;
         try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(incomingSocket.getInputStream()));
-            String typeID = in.readLine();
-            ObjectInputStream ois = new ObjectInputStream(incomingSocket.getInputStream());
-            requestOrEvent = ois.readObject();
-            typeIDArr = typeID.split(",");
-            type = typeIDArr[0];
-            ID = parseInt(typeIDArr[1]);
+            InputStream in = new BufferedInputStream(incomingSocket.getInputStream());
+            typeID = readHeaderLine(in);
+            if (EventFrame.STREAM_HEADER.equals(typeID)) {
+                readStream(new DataInputStream(in));
+                return;
+            }
+            requestOrEvent = WireCodec.readPayload(in);
         } catch (IOException | ClassNotFoundException e) {
             // Do nothing LOL
             return;
         }
-        Server thisServer = null;
+        dispatch(typeID, requestOrEvent, currentTime, incomingSocket, serverRouter, eventQueue, writeAheadLog);
+    }
 
-        boolean newServerWasMade = false;
-        synchronized (serverList) {
-            for (Server server : serverList) {
-                if (server.getClientID() == ID) {
-                    thisServer = server;
-                    break;
+    /**
+     * Dispatches every frame of a long-lived entity connection until the entity disconnects.
+     */
+    private void readStream(DataInputStream in) throws IOException, ClassNotFoundException {
+        try {
+            while (true) {
+                int length = in.readInt();
+                if (length < 0 || length > EventFrame.MAX_FRAME_LENGTH) {
+                    throw new IOException("Invalid frame length " + length);
                 }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                double currentTime = System.currentTimeMillis();
+                EventFrame frame = EventFrame.readBody(body, 0, length);
+                dispatch(frame.getHeader(), frame.getEvent(), currentTime, incomingSocket, serverRouter, eventQueue, writeAheadLog);
             }
-            if (thisServer == null) {
-                Client client = new Client(ID, "misty@pennertechnologies.com", "127.0.0.1", 0);
-                thisServer = new Server(client);
-                serverList.add(thisServer);
-                newServerWasMade = true;
-            }
+        } catch (EOFException e) {
+            // The entity closed the connection
+        } finally {
+            incomingSocket.close();
         }
-        if(newServerWasMade) {
-            Thread serverThread = new Thread(thisServer);
-            synchronized (serverThreads) {
-                serverThreads.add(serverThread);
+    }
+
+    /**
+     * Reads the header line sent ahead of the payload one byte at a time,
+     * so that no bytes of the payload are consumed.
+     *
+     * @param in the stream to read from
+     * @return the header line without its line terminator
+     * @throws IOException if the stream ends before the line does
+     */
+    static String readHeaderLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(32);
+        int next;
+        while ((next = in.read()) != '\n') {
+            if (next < 0) {
+                throw new EOFException("Connection closed before the header line ended");
             }
-            serverThread.start();
+            line.write(next);
+        }
+        return line.toString(StandardCharsets.UTF_8).trim();
+    }
+
+    /**
+     * Routes a decoded request or event to the Server of its client and schedules it for processing.
+     * A Server (and its thread) is created the first time a client ID is seen.
+     * If a write-ahead log is given, events and CONFIG and CONTROL requests are only scheduled
+     * once they are on disk; ANALYSIS and PREDICT requests are answered on their socket and are not logged.
+     * Shared by the thread-per-connection and selector ingest paths and by the replay of the log.
+     *
+     * @param typeID the header line sent ahead of the payload, "entity,<clientId>", "actuator,<clientId>,<port>" or "client,<clientId>";
+     *               an actuator's header read back from the log also ends with the host it sent from
+     * @param requestOrEvent the deserialized Request or Event
+     * @param currentTime the time in milliseconds at which the message was received
+     * @param incomingSocket the socket the message arrived on, or null if it is replayed from the log
+     * @param serverRouter the routing table from client IDs to Servers
+     * @param eventQueue the scheduling queue
+     * @param writeAheadLog the log to commit the message to before scheduling it, or null
+     */
+    static void dispatch(String typeID, Object requestOrEvent, double currentTime, Socket incomingSocket,
+                         ServerRouter serverRouter, BlockingQueue<TimeToProcess> eventQueue, WriteAheadLog writeAheadLog) {
+        String[] typeIDArr;
+        int ID;
+        try {
+            typeIDArr = typeID.split(",");
+            ID = parseInt(typeIDArr[1]);
+        } catch (NullPointerException | IndexOutOfBoundsException | NumberFormatException e) {
+            return;
         }
+        Server thisServer = serverRouter.getOrCreate(ID);
 
         double timeToProcess = thisServer.getMaxWaitTime() * 1000 + currentTime;
 
+        TimeToProcess task;
+        boolean durable;
+        String loggedHeader = typeID;
         if(requestOrEvent instanceof Request request) {
-            TimeToProcess newRequest = new TimeToProcess(timeToProcess, request, ID, incomingSocket);
-            eventQueue.put(newRequest);
+            task = new TimeToProcess(timeToProcess, request, ID, incomingSocket);
+            // A subscription lives on its connection, so there is nothing to replay after a crash
+            durable = (request.getRequestType() == RequestType.CONFIG || request.getRequestType() == RequestType.CONTROL)
+                    && request.getRequestCommand() != RequestCommand.CONTROL_SUBSCRIBE_LOGS;
         } else if(requestOrEvent instanceof Event event) {
-            if(typeIDArr.length == 3) {
+            // An actuator's address is the port in its header and the host it sent from,
+            // which is logged at the end of the header so a replayed event can restore it
+            String host = null;
+            if (typeIDArr.length == 3 && incomingSocket != null) {
+                host = incomingSocket.getInetAddress().getHostAddress();
+                loggedHeader = typeID + "," + host;
+            } else if (typeIDArr.length == 4 && incomingSocket == null) {
+                host = typeIDArr[3];
+            }
+            if (host != null) {
+                int port;
+                try {
+                    port = parseInt(typeIDArr[2]);
+                } catch (NumberFormatException e) {
+                    return;
+                }
                 synchronized (thisServer.actuator_port_map) {
                     synchronized (thisServer.actuator_IP_map) {
-                        if (!thisServer.actuator_port_map.containsKey(event.getEntityId())) {
-                            thisServer.actuator_port_map.put(event.getEntityId(), parseInt(typeIDArr[2]));
-                        }
-                        if (!thisServer.actuator_IP_map.containsKey(event.getEntityId())) {
-                            thisServer.actuator_IP_map.put(event.getEntityId(), incomingSocket.getInetAddress().getHostAddress());
-                        }
+                        // The address the actuator last sent from, so a replayed one gives way to a live one
+                        thisServer.actuator_port_map.put(event.getEntityId(), port);
+                        thisServer.actuator_IP_map.put(event.getEntityId(), host);
                     }
                 }
             }
-            TimeToProcess newEvent = new TimeToProcess(timeToProcess, event);
-            eventQueue.put(newEvent);
+            // Released right away: the Server's reorder buffer owns the wait, and holds the event
+            // for at most maxWaitTime from when it was received
+            task = new TimeToProcess(currentTime, event);
+            durable = true;
+        } else {
+            return;
+        }
+
+        if (writeAheadLog != null && durable) {
+            writeAheadLog.append(loggedHeader, requestOrEvent, currentTime, () -> eventQueue.add(task));
+        } else {
+            eventQueue.add(task);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,294 @@
+package cpen221.mp3.handler;
+
+import cpen221.mp3.event.EventFrame;
+import cpen221.mp3.event.TimeToProcess;
+import cpen221.mp3.event.WireCodec;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Accepts connections on a ServerSocketChannel and decodes the "type,clientId" header
+ * and the serialized payload of each connection without blocking, using a small fixed
+ * set of I/O threads that each own a Selector.
+ * Long-lived "stream" connections stay registered and have each frame dispatched as it completes.
+ * Decoded requests and events are handed to MessageHandlerThread.dispatch.
+ */
+class SelectorIngest implements Runnable {
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final int port;
+    private final ServerRouter serverRouter;
+    private final BlockingQueue<TimeToProcess> eventQueue;
+    private final WriteAheadLog writeAheadLog;
+    private final IoLoop[] ioLoops;
+
+    public SelectorIngest(int port, int ioThreads, ServerRouter serverRouter, BlockingQueue<TimeToProcess> eventQueue,
+                          WriteAheadLog writeAheadLog) {
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException("At least one I/O thread is required");
+        }
+        this.port = port;
+        this.serverRouter = serverRouter;
+        this.eventQueue = eventQueue;
+        this.writeAheadLog = writeAheadLog;
+        this.ioLoops = new IoLoop[ioThreads];
+    }
+
+    /**
+     * Starts the I/O threads and then accepts connections on the calling thread,
+     * handing them to the I/O threads round-robin.
+     */
+    public void run() {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            for (int i = 0; i < ioLoops.length; i++) {
+                ioLoops[i] = new IoLoop(Selector.open());
+                Thread ioThread = new Thread(ioLoops[i], "selector-ingest-" + i);
+                ioThread.setDaemon(true);
+                ioThread.start();
+            }
+            System.out.println("Server started on port " + port + " with " + ioLoops.length + " I/O threads");
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                ioLoops[next].register(new Connection(channel, System.currentTimeMillis()));
+                next = (next + 1) % ioLoops.length;
+            }
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * The bytes received so far on one connection.
+     */
+    private static class Connection {
+        private final SocketChannel channel;
+        private final double acceptedAt;
+        private byte[] data = new byte[256];
+        private int length = 0;
+        private int position = -1;
+        private String header;
+        private Object payload;
+
+        Connection(SocketChannel channel, double acceptedAt) {
+            this.channel = channel;
+            this.acceptedAt = acceptedAt;
+        }
+
+        void append(ByteBuffer buffer) {
+            int incoming = buffer.remaining();
+            if (position > 0 && length + incoming > data.length) {
+                // Drop the bytes of the header and of frames that were already dispatched
+                System.arraycopy(data, position, data, 0, length - position);
+                length -= position;
+                position = 0;
+            }
+            if (length + incoming > data.length) {
+                byte[] grown = new byte[Math.max(data.length * 2, length + incoming)];
+                System.arraycopy(data, 0, grown, 0, length);
+                data = grown;
+            }
+            buffer.get(data, length, incoming);
+            length += incoming;
+        }
+
+        /**
+         * @return true once the full header line has been received
+         */
+        boolean parseHeader() {
+            if (header != null) {
+                return true;
+            }
+            for (int i = 0; i < length; i++) {
+                if (data[i] == '\n') {
+                    header = new String(data, 0, i, StandardCharsets.UTF_8).trim();
+                    position = i + 1;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Attempts to decode the payload that follows the header, in either wire format.
+         *
+         * @return the payload, or null if it has not been fully received yet
+         * @throws IOException if the payload is malformed
+         * @throws ClassNotFoundException if the payload is of an unknown class
+         */
+        Object tryDecodePayload() throws IOException, ClassNotFoundException {
+            return WireCodec.tryReadPayload(data, position, length - position);
+        }
+
+        /**
+         * Decodes the next frame of a stream connection and drops its bytes.
+         *
+         * @return the frame, or null if it has not been fully received yet
+         * @throws IOException if the frame is malformed
+         * @throws ClassNotFoundException if the frame holds an object of an unknown class
+         */
+        EventFrame nextFrame() throws IOException, ClassNotFoundException {
+            int available = length - position;
+            if (available < 4) {
+                return null;
+            }
+            int frameLength = ByteBuffer.wrap(data, position, 4).getInt();
+            if (frameLength < 0 || frameLength > EventFrame.MAX_FRAME_LENGTH) {
+                throw new IOException("Invalid frame length " + frameLength);
+            }
+            if (available < 4 + frameLength) {
+                return null;
+            }
+            EventFrame frame = EventFrame.readBody(data, position + 4, frameLength);
+            position += 4 + frameLength;
+            return frame;
+        }
+    }
+
+    /**
+     * One I/O thread: reads from its registered connections and dispatches complete messages.
+     */
+    private class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Connection> pending = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        IoLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(Connection connection) {
+            pending.add(connection);
+            selector.wakeup();
+        }
+
+        public void run() {
+            List<Connection> handOff = new ArrayList<>();
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    System.err.println("Error: " + e.getMessage());
+                    return;
+                }
+
+                Connection connection;
+                while ((connection = pending.poll()) != null) {
+                    try {
+                        connection.channel.configureBlocking(false);
+                        connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                    } catch (IOException e) {
+                        close(connection);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection current = (Connection) key.attachment();
+                    if (read(key, current)) {
+                        handOff.add(current);
+                    }
+                }
+
+                if (!handOff.isEmpty()) {
+                    // Cancelled keys are only deregistered by the next selection operation
+                    try {
+                        selector.selectNow();
+                    } catch (IOException e) {
+                        System.err.println("Error: " + e.getMessage());
+                    }
+                    for (Connection requestConnection : handOff) {
+                        handOffRequest(requestConnection);
+                    }
+                    handOff.clear();
+                }
+            }
+        }
+
+        /**
+         * Reads what is available on the connection and dispatches its payload once complete.
+         *
+         * @return true if the connection carries a request and must be handed off in blocking mode
+         */
+        private boolean read(SelectionKey key, Connection connection) {
+            try {
+                readBuffer.clear();
+                int read = connection.channel.read(readBuffer);
+                if (read < 0) {
+                    key.cancel();
+                    close(connection);
+                    return false;
+                }
+                readBuffer.flip();
+                connection.append(readBuffer);
+                if (!connection.parseHeader()) {
+                    return false;
+                }
+                if (EventFrame.STREAM_HEADER.equals(connection.header)) {
+                    EventFrame frame;
+                    while ((frame = connection.nextFrame()) != null) {
+                        MessageHandlerThread.dispatch(frame.getHeader(), frame.getEvent(), System.currentTimeMillis(),
+                                connection.channel.socket(), serverRouter, eventQueue, writeAheadLog);
+                    }
+                    return false;
+                }
+                Object requestOrEvent = connection.tryDecodePayload();
+                if (requestOrEvent == null) {
+                    return false;
+                }
+                key.cancel();
+                if (connection.header.startsWith("client")) {
+                    // The client waits on this socket for the response
+                    connection.payload = requestOrEvent;
+                    return true;
+                }
+                MessageHandlerThread.dispatch(connection.header, requestOrEvent, connection.acceptedAt,
+                        connection.channel.socket(), serverRouter, eventQueue, writeAheadLog);
+                close(connection);
+            } catch (IOException | ClassNotFoundException e) {
+                key.cancel();
+                close(connection);
+            }
+            return false;
+        }
+
+        private void handOffRequest(Connection connection) {
+            try {
+                connection.channel.configureBlocking(true);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                close(connection);
+                return;
+            }
+            MessageHandlerThread.dispatch(connection.header, connection.payload, connection.acceptedAt,
+                    connection.channel.socket(), serverRouter, eventQueue, writeAheadLog);
+        }
+
+        private void close(Connection connection) {
+            try {
+                connection.channel.close();
+            } catch (IOException e) {
+                // Nothing left to clean up
+            }
+        }
+    }
+}
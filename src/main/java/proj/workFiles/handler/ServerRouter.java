@@ -0,0 +1,177 @@
+package cpen221.mp3.handler;
+
+import cpen221.mp3.client.Client;
+import cpen221.mp3.server.ColumnarEventStore;
+import cpen221.mp3.server.EventStore;
+import cpen221.mp3.server.MappedEventStore;
+import cpen221.mp3.server.RetentionPolicy;
+import cpen221.mp3.server.RingBufferEventStore;
+import cpen221.mp3.server.Server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Stream;
+
+/**
+ * Maps client IDs to the Server handling that client.
+ * Lookups are lock-free reads of a ConcurrentHashMap; the first message of a new client
+ * atomically creates its Server and starts it exactly once, either on a thread of its own
+ * or as an actor on a shared pool.
+ */
+class ServerRouter {
+    private static final String CLIENT_DIRECTORY_PREFIX = "client-";
+
+    private final ConcurrentMap<Integer, Server> servers = new ConcurrentHashMap<>();
+    private volatile ScheduledExecutorService sharedPool;
+    private volatile Path persistenceDirectory;
+    private volatile RetentionPolicy retentionPolicy;
+    private volatile long commandWindowMillis = 0;
+    private volatile double maxCommandsPerSecond = Double.POSITIVE_INFINITY;
+
+    /**
+     * Runs every Server created from now on as an actor on a shared pool of platform threads
+     * instead of on a dedicated thread, bounding the number of threads regardless of the client count.
+     * Must be called before the first Server is created; calling it again replaces the pool and shuts down the previous one.
+     *
+     * @param workerThreads the number of threads in the pool
+     * @throws IllegalStateException if a Server has already been created
+     */
+    public synchronized void useSharedPool(int workerThreads) {
+        if (!servers.isEmpty()) {
+            throw new IllegalStateException("Servers already run on the current pool");
+        }
+        ScheduledExecutorService previous = sharedPool;
+        sharedPool = Executors.newScheduledThreadPool(workerThreads, runnable -> {
+            Thread worker = new Thread(runnable, "server-worker");
+            worker.setDaemon(true);
+            return worker;
+        });
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * Bounds the history of every client created from now on by the given policy,
+     * unless it is kept in memory-mapped segment files.
+     *
+     * @param policy how much of each client's history to keep, and at what resolution
+     */
+    public void useRetentionPolicy(RetentionPolicy policy) {
+        retentionPolicy = policy;
+    }
+
+    /**
+     * Merges the actuator commands of every client created from now on within the given window,
+     * and limits how often each actuator is sent one.
+     *
+     * @param windowMillis how long, in milliseconds, commands to an actuator are collected before one is sent
+     * @param maxCommandsPerSecond the most commands sent to one actuator per second; Double.POSITIVE_INFINITY for no limit
+     */
+    public void useCommandCoalescing(long windowMillis, double maxCommandsPerSecond) {
+        if (windowMillis < 0 || !(maxCommandsPerSecond > 0)) {
+            throw new IllegalArgumentException("Invalid coalescing window or command rate");
+        }
+        this.commandWindowMillis = windowMillis;
+        this.maxCommandsPerSecond = maxCommandsPerSecond;
+    }
+
+    /**
+     * Keeps the history of every client created from now on in memory-mapped segment files
+     * under the given directory, one subdirectory per client, and starts a Server for every
+     * client whose history is already there.
+     *
+     * @param directory the directory holding the history of all clients
+     * @throws IOException if the directory cannot be read or a client's history is corrupt
+     */
+    public void usePersistence(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        persistenceDirectory = directory;
+        List<Path> clientDirectories;
+        try (Stream<Path> listing = Files.list(directory)) {
+            clientDirectories = listing.filter(Files::isDirectory)
+                    .filter(path -> path.getFileName().toString().startsWith(CLIENT_DIRECTORY_PREFIX))
+                    .toList();
+        }
+        for (Path clientDirectory : clientDirectories) {
+            String name = clientDirectory.getFileName().toString();
+            try {
+                getOrCreate(Integer.parseInt(name.substring(CLIENT_DIRECTORY_PREFIX.length())));
+            } catch (NumberFormatException e) {
+                // Not a client's history
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * @param clientId the ID of the client
+     * @return the Server of the client, or null if no message has been received from it yet
+     */
+    public Server route(int clientId) {
+        return servers.get(clientId);
+    }
+
+    /**
+     * Returns the Server of the client, creating and starting it if this is the first message of the client.
+     *
+     * @param clientId the ID of the client
+     * @return the Server of the client
+     */
+    public Server getOrCreate(int clientId) {
+        Server server = servers.get(clientId);
+        if (server != null) {
+            return server;
+        }
+        return servers.computeIfAbsent(clientId, this::startServer);
+    }
+
+    /**
+     * @return the number of clients with a Server
+     */
+    public int size() {
+        return servers.size();
+    }
+
+    /**
+     * @return a live, unmodifiable view of all Servers
+     */
+    public Collection<Server> servers() {
+        return Collections.unmodifiableCollection(servers.values());
+    }
+
+    private Server startServer(int clientId) {
+        Client client = new Client(clientId, "misty@pennertechnologies.com", "127.0.0.1", 0);
+        ScheduledExecutorService pool = sharedPool;
+        Server server = new Server(client, pool, createEventStore(clientId));
+        server.coalesceActuatorCommands(commandWindowMillis, maxCommandsPerSecond);
+        if (pool == null) {
+            Thread serverThread = new Thread(server);
+            serverThread.start();
+        }
+        return server;
+    }
+
+    private EventStore createEventStore(int clientId) {
+        Path directory = persistenceDirectory;
+        if (directory == null) {
+            RetentionPolicy policy = retentionPolicy;
+            return policy == null ? new ColumnarEventStore() : new RingBufferEventStore(policy);
+        }
+        try {
+            return new MappedEventStore(directory.resolve(CLIENT_DIRECTORY_PREFIX + clientId));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,652 @@
+package cpen221.mp3.handler;
+
+import cpen221.mp3.client.Request;
+import cpen221.mp3.event.Event;
+import cpen221.mp3.event.WireCodec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Makes accepted events and control requests durable before they are scheduled.
+ * <p>
+ * Records are appended by a background thread in group commits: a commit writes every record
+ * appended since the last one and forces the file once, either when batchSize records are pending
+ * or flushIntervalMillis after the first of them arrived. Only once a record is on disk is its
+ * callback run, which hands the message to the scheduler.
+ * A commit that fails is rolled back and its records are held and retried, together with the records
+ * appended since, every COMMIT_RETRY_MILLIS, so a failing disk delays messages instead of silently
+ * losing their durability. Records still uncommitted when the log is closed are dropped and reported.
+ * <p>
+ * The log is split into numbered segment files, "&lt;file&gt;.&lt;n&gt;", and a new segment is started once
+ * the current one holds segmentBytes, as well as every time the log is opened. Each time a segment is
+ * started, and after a replay, every older segment whose events the Durability says are durable elsewhere
+ * is dropped: deleted, or if it holds requests, rewritten with only its requests, which are not kept
+ * anywhere else. So the log holds the events not yet durable and every request, not the whole history.
+ * <p>
+ * Each record is its length, the CRC32 of its body, and a body holding the header line,
+ * the time the message was received and the message in the binary wire format.
+ * When the log is opened, a record torn by a crash at the end of the last segment is cut off.
+ * The records are read back one at a time by replay.
+ */
+class WriteAheadLog implements Closeable {
+    static final long COMMIT_RETRY_MILLIS = 100;
+
+    private static final int RECORD_PREFIX_SIZE = 8;
+
+    private final Path file;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final long segmentBytes;
+    private final Durability durability;
+    private final SegmentOpener opener;
+    // Oldest first; the last is the one being written
+    private final List<Segment> segments = new ArrayList<>();
+    // Only used by the flusher thread once it has started
+    private FileChannel channel;
+    private final Object lock = new Object();
+    private List<Pending> pending = new ArrayList<>();
+    private boolean closed = false;
+    private final Thread flusher;
+
+    // Only written by the flusher thread
+    private volatile long commits = 0;
+    private volatile long recordsCommitted = 0;
+    private volatile long totalCommitNanos = 0;
+    private volatile long commitFailures = 0;
+    private volatile long segmentsDropped = 0;
+
+    /**
+     * A message read back from the log.
+     */
+    static final class Record {
+        final String header;
+        final double receivedAt;
+        final Object message;
+
+        Record(String header, double receivedAt, Object message) {
+            this.header = header;
+            this.receivedAt = receivedAt;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Tells the log which of its events are durable elsewhere, so it no longer needs them.
+     */
+    interface Durability {
+        /**
+         * Called on the commit thread, or on the caller of replay.
+         *
+         * @param clientId the client the event was sent for
+         * @param timeStamp the timestamp of the event
+         * @return true if the event, and every earlier event of the client, would not be replayed after a restart
+         */
+        boolean isDurable(int clientId, double timeStamp);
+    }
+
+    /**
+     * Opens the file of a segment for reading and writing, creating it if it does not exist.
+     */
+    interface SegmentOpener {
+        FileChannel open(Path segment) throws IOException;
+    }
+
+    /**
+     * One segment file and what it holds.
+     */
+    private static final class Segment {
+        final long number;
+        final Path path;
+        // The largest event timestamp of every client with an event in the segment
+        final Map<Integer, Double> latestEvents = new HashMap<>();
+        boolean hasRequests = false;
+        // Set if an event's client is unknown, so the segment is never dropped
+        boolean unknownEvents = false;
+        // False for a segment found when the log was opened, until it is replayed
+        boolean summarized;
+        // Holds nothing but requests, so there is nothing left to drop
+        boolean compacted = false;
+
+        Segment(long number, Path path, boolean summarized) {
+            this.number = number;
+            this.path = path;
+            this.summarized = summarized;
+        }
+    }
+
+    private static final class Pending {
+        final byte[] bytes;
+        final String header;
+        final Object message;
+        final Runnable onCommit;
+
+        Pending(byte[] bytes, String header, Object message, Runnable onCommit) {
+            this.bytes = bytes;
+            this.header = header;
+            this.message = message;
+            this.onCommit = onCommit;
+        }
+    }
+
+    /**
+     * Opens a log that is never dropped from, and starts the commit thread.
+     *
+     * @param file the path the segment files are named after
+     * @param batchSize the number of pending records that triggers a commit right away
+     * @param flushIntervalMillis the longest a record waits for a commit
+     * @throws IOException if the segments cannot be opened
+     */
+    WriteAheadLog(Path file, int batchSize, long flushIntervalMillis) throws IOException {
+        this(file, batchSize, flushIntervalMillis, MessageHandler.DEFAULT_LOG_SEGMENT_BYTES, null);
+    }
+
+    /**
+     * Opens the log, cutting off a torn record at its end, and starts the commit thread.
+     *
+     * @param file the path the segment files are named after
+     * @param batchSize the number of pending records that triggers a commit right away
+     * @param flushIntervalMillis the longest a record waits for a commit
+     * @param segmentBytes the size at which a new segment is started
+     * @param durability which events are durable elsewhere, or null to keep every segment
+     * @throws IOException if the segments cannot be opened
+     */
+    WriteAheadLog(Path file, int batchSize, long flushIntervalMillis, long segmentBytes, Durability durability)
+            throws IOException {
+        this(file, batchSize, flushIntervalMillis, segmentBytes, durability,
+                segment -> FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+    }
+
+    WriteAheadLog(Path file, int batchSize, long flushIntervalMillis, long segmentBytes, Durability durability,
+                  SegmentOpener opener) throws IOException {
+        if (batchSize < 1 || flushIntervalMillis < 0 || segmentBytes < 1) {
+            throw new IllegalArgumentException("Invalid group commit settings");
+        }
+        this.file = file;
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.segmentBytes = segmentBytes;
+        this.durability = durability;
+        this.opener = opener;
+        for (long number : segmentNumbers(file)) {
+            segments.add(new Segment(number, segmentPath(number), false));
+        }
+        Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (last != null) {
+            try (FileChannel recovered = opener.open(last.path)) {
+                if (cutTornTail(recovered) == 0) {
+                    segments.remove(last);
+                    Files.delete(last.path);
+                }
+            }
+        }
+        // Every segment already there is closed, so it can be dropped once it is replayed
+        long number = last == null ? 0 : last.number + 1;
+        segments.add(new Segment(number, segmentPath(number), true));
+        this.channel = opener.open(segmentPath(number));
+        this.flusher = new Thread(this::commitLoop, "write-ahead-log");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Reads back every record in the log, oldest first, one at a time, then drops the segments
+     * whose events are durable elsewhere. Must be called before the first append.
+     *
+     * @param replay receives every record
+     * @return the number of records read back
+     * @throws IOException if a segment cannot be read
+     */
+    long replay(Consumer<Record> replay) throws IOException {
+        long replayed = 0;
+        for (Segment segment : segmentsSnapshot()) {
+            long size = Files.size(segment.path);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment.path)))) {
+                Record record;
+                while ((record = readRecord(in, size)) != null) {
+                    summarize(segment, record.header, record.message);
+                    replay.accept(record);
+                    replayed++;
+                }
+            }
+            synchronized (segments) {
+                segment.summarized = true;
+                segment.compacted = segment.hasRequests && segment.latestEvents.isEmpty() && !segment.unknownEvents;
+            }
+        }
+        dropDurableSegments();
+        return replayed;
+    }
+
+    /**
+     * Queues a message for the next group commit.
+     *
+     * @param header the header line the message arrived with
+     * @param message the Event or Request
+     * @param receivedAt the time in milliseconds at which the message was received
+     * @param onCommit run on the commit thread once the record is on disk
+     */
+    void append(String header, Object message, double receivedAt, Runnable onCommit) {
+        byte[] bytes = encode(header, message, receivedAt);
+        synchronized (lock) {
+            if (closed) {
+                throw new IllegalStateException("The write-ahead log is closed");
+            }
+            pending.add(new Pending(bytes, header, message, onCommit));
+            if (pending.size() == 1 || pending.size() >= batchSize) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @param header the header line of a logged message, "&lt;type&gt;,&lt;clientId&gt;[,...]"
+     * @return the client ID in the header, or null if it has none
+     */
+    static Integer clientIdOf(String header) {
+        try {
+            return Integer.parseInt(header.split(",")[1]);
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of group commits so far
+     */
+    long commits() {
+        return commits;
+    }
+
+    /**
+     * @return the number of records committed so far
+     */
+    long recordsCommitted() {
+        return recordsCommitted;
+    }
+
+    /**
+     * @return the number of group commits that failed to reach the disk and were retried
+     */
+    long commitFailures() {
+        return commitFailures;
+    }
+
+    /**
+     * @return the number of segments deleted or rewritten with only their requests
+     */
+    long segmentsDropped() {
+        return segmentsDropped;
+    }
+
+    /**
+     * @return the number of segment files in the log
+     */
+    int segmentCount() {
+        synchronized (segments) {
+            return segments.size();
+        }
+    }
+
+    /**
+     * @return the mean time in milliseconds taken to write and force one group commit
+     */
+    double meanCommitMillis() {
+        long count = commits;
+        return count == 0 ? 0 : totalCommitNanos / 1e6 / count;
+    }
+
+    /**
+     * Commits every pending record and closes the file.
+     */
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    private void commitLoop() {
+        while (true) {
+            List<Pending> batch;
+            synchronized (lock) {
+                try {
+                    while (pending.isEmpty() && !closed) {
+                        lock.wait();
+                    }
+                    long deadline = System.currentTimeMillis() + flushIntervalMillis;
+                    long remaining;
+                    while (pending.size() < batchSize && !closed && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                        lock.wait(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    // Commit what is pending
+                }
+                if (pending.isEmpty() && closed) {
+                    return;
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+            }
+            if (commit(batch)) {
+                rollIfFull();
+                continue;
+            }
+            synchronized (lock) {
+                if (closed) {
+                    System.err.println("Error: " + batch.size() + " records were not committed before the log closed");
+                    continue;
+                }
+                // Hold the batch ahead of the records appended since, and retry them together
+                batch.addAll(pending);
+                pending = batch;
+                try {
+                    lock.wait(COMMIT_RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    // Retry now
+                }
+            }
+        }
+    }
+
+    // returns false, having rolled the file back, if the batch could not be written and forced
+    private boolean commit(List<Pending> batch) {
+        long start = System.nanoTime();
+        int length = 0;
+        for (Pending record : batch) {
+            length += record.bytes.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (Pending record : batch) {
+            buffer.put(record.bytes);
+        }
+        buffer.flip();
+        long position = -1;
+        try {
+            position = channel.position();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            commitFailures++;
+            System.err.println("Error: commit of " + batch.size() + " records failed and will be retried: " + e.getMessage());
+            if (position >= 0) {
+                try {
+                    channel.truncate(position);
+                    channel.position(position);
+                } catch (IOException rollbackFailure) {
+                    // A torn tail is cut off by the next recovery
+                }
+            }
+            return false;
+        }
+        totalCommitNanos += System.nanoTime() - start;
+        commits++;
+        recordsCommitted += batch.size();
+        Segment active = activeSegment();
+        for (Pending record : batch) {
+            summarize(active, record.header, record.message);
+        }
+        for (Pending record : batch) {
+            record.onCommit.run();
+        }
+        return true;
+    }
+
+    // starts a new segment once the current one is full, then drops what has become durable
+    private void rollIfFull() {
+        Segment next;
+        try {
+            if (channel.position() < segmentBytes) {
+                return;
+            }
+            long number = activeSegment().number + 1;
+            next = new Segment(number, segmentPath(number), true);
+            FileChannel nextChannel = opener.open(next.path);
+            channel.close();
+            channel = nextChannel;
+        } catch (IOException e) {
+            System.err.println("Error: the log keeps writing its current segment: " + e.getMessage());
+            return;
+        }
+        synchronized (segments) {
+            segments.add(next);
+        }
+        dropDurableSegments();
+    }
+
+    private void dropDurableSegments() {
+        if (durability == null) {
+            return;
+        }
+        List<Segment> closedSegments = segmentsSnapshot();
+        closedSegments.remove(closedSegments.size() - 1);
+        for (Segment segment : closedSegments) {
+            boolean requestsOnly;
+            synchronized (segments) {
+                if (!segment.summarized || segment.compacted || !isDurable(segment)) {
+                    continue;
+                }
+                requestsOnly = segment.hasRequests;
+            }
+            try {
+                if (requestsOnly) {
+                    keepOnlyRequests(segment);
+                } else {
+                    Files.delete(segment.path);
+                    synchronized (segments) {
+                        segments.remove(segment);
+                    }
+                }
+                segmentsDropped++;
+            } catch (IOException e) {
+                System.err.println("Error: segment " + segment.path + " could not be dropped: " + e.getMessage());
+            }
+        }
+    }
+
+    // whether every event in the segment is durable elsewhere; the caller holds the segments lock
+    private boolean isDurable(Segment segment) {
+        if (segment.unknownEvents) {
+            return false;
+        }
+        for (Map.Entry<Integer, Double> latest : segment.latestEvents.entrySet()) {
+            if (!durability.isDurable(latest.getKey(), latest.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Rewrites a segment with only its requests, moving the new file over the old one so a crash leaves either
+    private void keepOnlyRequests(Segment segment) throws IOException {
+        Path temporary = segment.path.resolveSibling(segment.path.getFileName() + ".tmp");
+        long size = Files.size(segment.path);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment.path)));
+             FileOutputStream stream = new FileOutputStream(temporary.toFile());
+             BufferedOutputStream out = new BufferedOutputStream(stream)) {
+            Record record;
+            while ((record = readRecord(in, size)) != null) {
+                if (record.message instanceof Request) {
+                    out.write(encode(record.header, record.message, record.receivedAt));
+                }
+            }
+            out.flush();
+            stream.getFD().sync();
+        }
+        Files.move(temporary, segment.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        synchronized (segments) {
+            segment.latestEvents.clear();
+            segment.compacted = true;
+        }
+    }
+
+    private void summarize(Segment segment, String header, Object message) {
+        synchronized (segments) {
+            if (message instanceof Event event) {
+                Integer clientId = clientIdOf(header);
+                if (clientId == null) {
+                    segment.unknownEvents = true;
+                } else {
+                    segment.latestEvents.merge(clientId, event.getTimeStamp(), Math::max);
+                }
+            } else {
+                segment.hasRequests = true;
+            }
+        }
+    }
+
+    private Segment activeSegment() {
+        synchronized (segments) {
+            return segments.get(segments.size() - 1);
+        }
+    }
+
+    private List<Segment> segmentsSnapshot() {
+        synchronized (segments) {
+            return new ArrayList<>(segments);
+        }
+    }
+
+    private Path segmentPath(long number) {
+        return file.resolveSibling(file.getFileName() + "." + number);
+    }
+
+    // the numbers of the segment files already there, in ascending order
+    private static List<Long> segmentNumbers(Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        String prefix = file.getFileName() + ".";
+        List<Long> numbers = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return numbers;
+        }
+        try (Stream<Path> paths = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                String name = path.getFileName().toString();
+                if (name.startsWith(prefix)) {
+                    try {
+                        numbers.add(Long.parseLong(name.substring(prefix.length())));
+                    } catch (NumberFormatException e) {
+                        // Not a segment, such as an unfinished rewrite
+                    }
+                }
+            }
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+
+    private static byte[] encode(String header, Object message, double receivedAt) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(64);
+        try {
+            DataOutputStream out = new DataOutputStream(body);
+            out.writeUTF(header);
+            out.writeDouble(receivedAt);
+            WireCodec.writeMessage(out, message);
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot encode " + message, e);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body.toByteArray());
+        ByteBuffer record = ByteBuffer.allocate(RECORD_PREFIX_SIZE + body.size());
+        record.putInt(body.size());
+        record.putInt((int) crc.getValue());
+        record.put(body.toByteArray());
+        return record.array();
+    }
+
+    // Reads the next record of a segment of the given size, or returns null at its end or at a damaged record
+    private static Record readRecord(DataInputStream in, long segmentSize) throws IOException {
+        int length;
+        int expectedCrc;
+        byte[] body;
+        try {
+            length = in.readInt();
+            expectedCrc = in.readInt();
+            if (length < 0 || length > segmentSize) {
+                return null;
+            }
+            body = new byte[length];
+            in.readFully(body);
+        } catch (EOFException e) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if ((int) crc.getValue() != expectedCrc) {
+            return null;
+        }
+        try {
+            DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+            String header = record.readUTF();
+            double receivedAt = record.readDouble();
+            if (record.readByte() != WireCodec.FORMAT_BINARY) {
+                return null;
+            }
+            return new Record(header, receivedAt, WireCodec.readMessage(record));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Truncates the file after its last complete record, returning the length kept
+    private static long cutTornTail(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer prefix = ByteBuffer.allocate(RECORD_PREFIX_SIZE);
+        while (position + RECORD_PREFIX_SIZE <= size) {
+            prefix.clear();
+            channel.read(prefix, position);
+            prefix.flip();
+            int length = prefix.getInt();
+            int expectedCrc = prefix.getInt();
+            if (length < 0 || position + RECORD_PREFIX_SIZE + length > size) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(length);
+            while (body.hasRemaining() && channel.read(body, position + RECORD_PREFIX_SIZE + body.position()) > 0) {
+                // keep reading
+            }
+            CRC32 crc = new CRC32();
+            crc.update(body.array());
+            if ((int) crc.getValue() != expectedCrc) {
+                break;
+            }
+            position += RECORD_PREFIX_SIZE + length;
+        }
+        if (position < size) {
+            channel.truncate(position);
+            channel.force(true);
+        }
+        return position;
+    }
+}
@@ -0,0 +1,188 @@
+package cpen221.mp3.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Counts the events of each entity and keeps the most active entities ranked as counts change.
+ * <p>
+ * Counts live in an open-addressing table of primitive ints. The top TOP_K entities are kept
+ * sorted by count, ties going to the larger ID. Counts only ever grow, one entity at a time, so an
+ * entity outside the ranking can only enter it by overtaking the last ranked entity; each increment
+ * therefore moves at most one entity a few places. The leader is published in a volatile field, so the most
+ * active entity is read in O(1) without locking, and the top k for k up to TOP_K in O(k).
+ */
+class ActivityTracker {
+    static final int TOP_K = 16;
+    private static final int NO_ENTITY = -1;
+    private static final int UNRANKED = -1;
+
+    private int[] ids = new int[64];
+    private int[] counts = new int[64];
+    private int[] ranks = new int[64];
+    private boolean[] used = new boolean[64];
+    private int size = 0;
+
+    private final int[] ranking = new int[TOP_K];
+    private int ranked = 0;
+    private volatile int leader = NO_ENTITY;
+
+    /**
+     * Counts one more event of the entity.
+     *
+     * @param entityId the ID of the entity
+     * @return true if this is the first event of the entity
+     */
+    synchronized boolean increment(int entityId) {
+        return add(entityId, 1);
+    }
+
+    /**
+     * Counts more events of the entity at once, as when restoring counts saved earlier.
+     *
+     * @param entityId the ID of the entity
+     * @param events the number of events, at least one
+     * @return true if these are the first events of the entity
+     */
+    synchronized boolean add(int entityId, int events) {
+        int slot = slotOf(entityId);
+        boolean first = !used[slot];
+        if (first) {
+            if ((size + 1) * 2 > ids.length) {
+                grow();
+                slot = slotOf(entityId);
+            }
+            used[slot] = true;
+            ids[slot] = entityId;
+            ranks[slot] = UNRANKED;
+            size++;
+        }
+        counts[slot] += events;
+        updateRanking(slot);
+        return first;
+    }
+
+    /**
+     * @return the most active entity, the one with the largest ID on a tie, or -1 if there is none
+     */
+    int mostActive() {
+        return leader;
+    }
+
+    /**
+     * @param k the number of entities to return
+     * @return the k most active entities, most active first, ties going to the larger ID
+     */
+    synchronized List<Integer> topK(int k) {
+        List<Integer> top = new ArrayList<>();
+        if (k <= ranked) {
+            for (int i = 0; i < k; i++) {
+                top.add(ranking[i]);
+            }
+            return top;
+        }
+        // Beyond the ranking, rank every entity
+        long[] all = new long[size];
+        int next = 0;
+        for (int slot = 0; slot < ids.length; slot++) {
+            if (used[slot]) {
+                // (count, id) packed into one long that sorts like the pair; the sign bit flip keeps IDs in signed order
+                all[next++] = ((long) counts[slot] << 32) | ((ids[slot] ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+            }
+        }
+        Arrays.sort(all);
+        for (int i = all.length - 1; i >= 0 && top.size() < k; i--) {
+            top.add((int) all[i] ^ Integer.MIN_VALUE);
+        }
+        return top;
+    }
+
+    /**
+     * @param entityId the ID of the entity
+     * @return the number of events of the entity counted so far
+     */
+    synchronized int count(int entityId) {
+        int slot = slotOf(entityId);
+        return used[slot] ? counts[slot] : 0;
+    }
+
+    /**
+     * @return the IDs of every entity counted so far
+     */
+    synchronized List<Integer> entities() {
+        List<Integer> entities = new ArrayList<>(size);
+        for (int slot = 0; slot < ids.length; slot++) {
+            if (used[slot]) {
+                entities.add(ids[slot]);
+            }
+        }
+        return entities;
+    }
+
+    // returns the slot holding the entity, or the empty slot where it belongs
+    private int slotOf(int entityId) {
+        int mask = ids.length - 1;
+        int hash = entityId * 0x9E3779B9;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (used[slot] && ids[slot] != entityId) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        int[] oldIds = ids;
+        int[] oldCounts = counts;
+        int[] oldRanks = ranks;
+        boolean[] oldUsed = used;
+        ids = new int[oldIds.length * 2];
+        counts = new int[oldIds.length * 2];
+        ranks = new int[oldIds.length * 2];
+        used = new boolean[oldIds.length * 2];
+        for (int i = 0; i < oldIds.length; i++) {
+            if (oldUsed[i]) {
+                int slot = slotOf(oldIds[i]);
+                used[slot] = true;
+                ids[slot] = oldIds[i];
+                counts[slot] = oldCounts[i];
+                ranks[slot] = oldRanks[i];
+            }
+        }
+    }
+
+    private void updateRanking(int slot) {
+        int rank = ranks[slot];
+        if (rank == UNRANKED) {
+            if (ranked < TOP_K) {
+                rank = ranked++;
+            } else {
+                int lastSlot = slotOf(ranking[TOP_K - 1]);
+                if (!ranksAbove(slot, lastSlot)) {
+                    return;
+                }
+                ranks[lastSlot] = UNRANKED;
+                rank = TOP_K - 1;
+            }
+            ranking[rank] = ids[slot];
+            ranks[slot] = rank;
+        }
+        // Move up past every entity it now outranks
+        while (rank > 0) {
+            int aboveSlot = slotOf(ranking[rank - 1]);
+            if (!ranksAbove(slot, aboveSlot)) {
+                break;
+            }
+            ranking[rank] = ranking[rank - 1];
+            ranks[aboveSlot] = rank;
+            rank--;
+        }
+        ranking[rank] = ids[slot];
+        ranks[slot] = rank;
+        leader = ranking[0];
+    }
+
+    private boolean ranksAbove(int slot, int otherSlot) {
+        return counts[slot] > counts[otherSlot] || (counts[slot] == counts[otherSlot] && ids[slot] > ids[otherSlot]);
+    }
+}
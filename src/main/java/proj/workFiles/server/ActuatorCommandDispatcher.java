@@ -0,0 +1,276 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.client.Request;
+import cpen221.mp3.event.WireCodec;
+import cpen221.mp3.event.WireFormat;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends commands to actuators without blocking the thread that decides to send them.
+ * <p>
+ * Each actuator has one persistent connection, opened on its first command and reused for
+ * every command after it. Commands are queued per actuator and written by a task on a shared
+ * executor, at most one task per actuator at a time, so commands to one actuator arrive in order
+ * and a slow or unreachable actuator only delays its own commands. Each queue holds at most
+ * MAX_PENDING_COMMANDS commands; commands beyond that are dropped.
+ * <p>
+ * A command that cannot be delivered is counted and reported to the failure listener instead of
+ * being thrown. After a failed connection attempt, commands to the actuator fail without another
+ * attempt for RECONNECT_BACKOFF_MILLIS.
+ */
+public class ActuatorCommandDispatcher implements Closeable {
+    static final int MAX_PENDING_COMMANDS = 1024;
+    static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    static final long RECONNECT_BACKOFF_MILLIS = 1000;
+
+    private static final ExecutorService SHARED_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread sender = new Thread(runnable, "actuator-commands");
+        sender.setDaemon(true);
+        return sender;
+    });
+
+    private final Executor executor;
+    private final ConcurrentMap<Integer, Channel> channels = new ConcurrentHashMap<>();
+    private volatile FailureListener failureListener;
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Told about every command that could not be delivered.
+     */
+    public interface FailureListener {
+        /**
+         * Called on a dispatch thread, or on the caller of dispatch if the actuator has no address.
+         *
+         * @param actuatorId the ID of the actuator
+         * @param command the command that was not delivered
+         * @param cause why it was not delivered
+         */
+        void commandFailed(int actuatorId, Request command, IOException cause);
+    }
+
+    /**
+     * Creates a dispatcher that sends on the executor shared by every such dispatcher.
+     */
+    public ActuatorCommandDispatcher() {
+        this(SHARED_EXECUTOR);
+    }
+
+    /**
+     * @param executor the executor that runs the sending tasks
+     */
+    public ActuatorCommandDispatcher(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @param failureListener told about every command that could not be delivered, or null
+     */
+    public void setFailureListener(FailureListener failureListener) {
+        this.failureListener = failureListener;
+    }
+
+    /**
+     * Queues a command for an actuator and returns without waiting for it to be sent.
+     * If the address of the actuator changes, its connection is reopened to the new address.
+     *
+     * @param actuatorId the ID of the actuator
+     * @param host the address of the actuator, or null if it is not known
+     * @param port the port the actuator accepts commands on
+     * @param command the command to send
+     */
+    public void dispatch(int actuatorId, String host, int port, Request command) {
+        if (host == null) {
+            fail(actuatorId, command, new IOException("No address is known for actuator " + actuatorId));
+            return;
+        }
+        Channel channel = channels.computeIfAbsent(actuatorId, Channel::new);
+        if (channel.pendingCount.incrementAndGet() > MAX_PENDING_COMMANDS) {
+            channel.pendingCount.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        channel.pending.add(new Pending(host, port, command));
+        channel.schedule();
+    }
+
+    /**
+     * @return the number of commands written to their actuator
+     */
+    public long commandsSent() {
+        return sent.get();
+    }
+
+    /**
+     * @return the number of commands that could not be delivered
+     */
+    public long commandsFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of commands dropped because their actuator's queue was full
+     */
+    public long commandsDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of commands queued and not yet sent or failed
+     */
+    public int pendingCommands() {
+        int total = 0;
+        for (Channel channel : channels.values()) {
+            total += channel.pendingCount.get();
+        }
+        return total;
+    }
+
+    /**
+     * Closes every open connection. Commands dispatched afterwards reopen them.
+     */
+    public void close() {
+        for (Channel channel : channels.values()) {
+            synchronized (channel) {
+                channel.disconnect();
+            }
+        }
+    }
+
+    private void fail(int actuatorId, Request command, IOException cause) {
+        failed.incrementAndGet();
+        FailureListener listener = failureListener;
+        if (listener != null) {
+            listener.commandFailed(actuatorId, command, cause);
+        }
+    }
+
+    private static final class Pending {
+        private final String host;
+        private final int port;
+        private final Request command;
+
+        Pending(String host, int port, Request command) {
+            this.host = host;
+            this.port = port;
+            this.command = command;
+        }
+    }
+
+    /**
+     * The queued commands of one actuator and its connection, which only the running sending task touches.
+     */
+    private final class Channel implements Runnable {
+        private final int actuatorId;
+        private final Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pendingCount = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        private Socket socket;
+        private OutputStream out;
+        private String host;
+        private int port;
+        private long retryAfter = 0;
+
+        Channel(int actuatorId) {
+            this.actuatorId = actuatorId;
+        }
+
+        // At most one sending task of a channel is queued or running at a time, which keeps its commands in order
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        public void run() {
+            synchronized (this) {
+                Pending next;
+                while ((next = pending.poll()) != null) {
+                    pendingCount.decrementAndGet();
+                    send(next);
+                }
+            }
+            scheduled.set(false);
+            if (!pending.isEmpty()) {
+                schedule();
+            }
+        }
+
+        private void send(Pending next) {
+            boolean reused = socket != null && next.host.equals(host) && next.port == port;
+            try {
+                if (!reused) {
+                    connect(next);
+                }
+                WireCodec.writePayload(out, next.command, WireFormat.BINARY);
+                sent.incrementAndGet();
+                return;
+            } catch (IOException e) {
+                disconnect();
+                if (!reused) {
+                    fail(actuatorId, next.command, e);
+                    return;
+                }
+            }
+            // The actuator may have closed the idle connection, so try once more on a new one
+            try {
+                connect(next);
+                WireCodec.writePayload(out, next.command, WireFormat.BINARY);
+                sent.incrementAndGet();
+            } catch (IOException e) {
+                disconnect();
+                fail(actuatorId, next.command, e);
+            }
+        }
+
+        private void connect(Pending next) throws IOException {
+            disconnect();
+            if (System.currentTimeMillis() < retryAfter) {
+                throw new IOException("Actuator " + actuatorId + " was unreachable moments ago");
+            }
+            Socket opened = new Socket();
+            try {
+                opened.setTcpNoDelay(true);
+                opened.connect(new InetSocketAddress(next.host, next.port), CONNECT_TIMEOUT_MILLIS);
+            } catch (IOException e) {
+                opened.close();
+                retryAfter = System.currentTimeMillis() + RECONNECT_BACKOFF_MILLIS;
+                throw e;
+            }
+            socket = opened;
+            out = new BufferedOutputStream(opened.getOutputStream());
+            host = next.host;
+            port = next.port;
+        }
+
+        private void disconnect() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Already closed
+                }
+            }
+            socket = null;
+            out = null;
+        }
+    }
+}
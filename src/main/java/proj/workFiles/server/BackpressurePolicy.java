@@ -0,0 +1,11 @@
+package cpen221.mp3.server;
+
+/**
+ * What a log subscription does when its buffer is full because the subscriber reads too slowly.
+ */
+public enum BackpressurePolicy {
+    // Drop the oldest buffered entity ID to make room
+    DROP_OLDEST,
+    // Hold up the client's event processing until there is room
+    BLOCK
+}
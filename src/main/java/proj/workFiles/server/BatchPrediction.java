@@ -0,0 +1,66 @@
+package cpen221.mp3.server;
+
+import java.io.Serial;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntFunction;
+
+/**
+ * Predicts the next values of many entities at once, splitting the entities in halves across
+ * a ForkJoinPool until at most LEAF_SIZE are left to each task.
+ * Models are read through their published snapshots, so the tasks never lock.
+ */
+class BatchPrediction extends RecursiveTask<Map<Integer, List<Object>>> {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    static final int LEAF_SIZE = 256;
+
+    private final int[] entityIds;
+    private final int from;
+    private final int to;
+    private final int n;
+    private final IntFunction<EntityModel> models;
+
+    /**
+     * @param entityIds the IDs of the entities to predict for
+     * @param n the number of values to predict for each entity
+     * @param models the model of each entity, or null for an entity without events
+     */
+    BatchPrediction(int[] entityIds, int n, IntFunction<EntityModel> models) {
+        this(entityIds, 0, entityIds.length, n, models);
+    }
+
+    private BatchPrediction(int[] entityIds, int from, int to, int n, IntFunction<EntityModel> models) {
+        this.entityIds = entityIds;
+        this.from = from;
+        this.to = to;
+        this.n = n;
+        this.models = models;
+    }
+
+    @Override
+    protected Map<Integer, List<Object>> compute() {
+        if (to - from <= LEAF_SIZE) {
+            Map<Integer, List<Object>> predictions = new HashMap<>();
+            for (int i = from; i < to; i++) {
+                EntityModel model = models.apply(entityIds[i]);
+                predictions.put(entityIds[i], model == null ? List.of() : model.predictValues(n));
+            }
+            return predictions;
+        }
+        int middle = (from + to) >>> 1;
+        BatchPrediction left = new BatchPrediction(entityIds, from, middle, n, models);
+        left.fork();
+        Map<Integer, List<Object>> predictions = new BatchPrediction(entityIds, middle, to, n, models).compute();
+        Map<Integer, List<Object>> leftPredictions = left.join();
+        if (leftPredictions.size() > predictions.size()) {
+            leftPredictions.putAll(predictions);
+            return leftPredictions;
+        }
+        predictions.putAll(leftPredictions);
+        return predictions;
+    }
+}
@@ -0,0 +1,330 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.event.ActuatorEvent;
+import cpen221.mp3.event.Event;
+import cpen221.mp3.event.SensorEvent;
+
+import java.io.ObjectStreamException;
+import java.io.Serial;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+/**
+ * An EventStore that keeps events in primitive columns instead of one object per event.
+ * <p>
+ * Rows live in fixed-size segments holding a double[] of timestamps, an int[] of entity IDs,
+ * a short[] of kind codes (client ID, entity type and whether the entity is an actuator,
+ * dictionary-coded per store), a double[] of sensor values and a bitset of actuator values.
+ * That is about 22 bytes per event, against roughly 100 for a deserialized event object
+ * with its own type String and list slot.
+ * <p>
+ * Segments are never resized, so a reader that saw a row count can read those rows without
+ * locking while the single writer appends. Queries return lightweight Event views over the
+ * columns that are only created when an element of the returned list is accessed.
+ */
+public class ColumnarEventStore implements EventStore {
+    static final int SEGMENT_SHIFT = 12;
+    static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private volatile Segment[] segments = new Segment[0];
+    private volatile Kind[] kinds = new Kind[0];
+    private final Map<Kind, Short> kindCodes = new HashMap<>();
+    // Written only by the appending thread, after the row's columns
+    private volatile int size = 0;
+    private double latestTimeStamp = Double.NEGATIVE_INFINITY;
+
+    /**
+     * The dictionary entry shared by all rows of one client and entity type.
+     */
+    static final class Kind {
+        final int clientId;
+        final String entityType;
+        final boolean actuator;
+
+        Kind(int clientId, String entityType, boolean actuator) {
+            this.clientId = clientId;
+            this.entityType = entityType;
+            this.actuator = actuator;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Kind kind)) {
+                return false;
+            }
+            return clientId == kind.clientId && actuator == kind.actuator && Objects.equals(entityType, kind.entityType);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(clientId, entityType, actuator);
+        }
+    }
+
+    /**
+     * One fixed-size block of rows.
+     */
+    static final class Segment {
+        final double[] timestamps = new double[SEGMENT_SIZE];
+        final int[] entityIds = new int[SEGMENT_SIZE];
+        final short[] kindCodes = new short[SEGMENT_SIZE];
+        // Actuator rows hold -1, the value Event.getValueDouble returns for them
+        final double[] values = new double[SEGMENT_SIZE];
+        final long[] booleanValues = new long[SEGMENT_SIZE / 64];
+
+        boolean booleanValue(int row) {
+            return (booleanValues[row >>> 6] & (1L << row)) != 0;
+        }
+    }
+
+    public synchronized boolean append(Event event) {
+        if (event.getTimeStamp() <= latestTimeStamp) {
+            return false;
+        }
+        int row = size;
+        int offset = row & SEGMENT_MASK;
+        if (offset == 0 && (row >>> SEGMENT_SHIFT) == segments.length) {
+            Segment[] grown = Arrays.copyOf(segments, segments.length + 1);
+            grown[segments.length] = new Segment();
+            segments = grown;
+        }
+        Segment segment = segments[row >>> SEGMENT_SHIFT];
+        boolean actuator = event instanceof ActuatorEvent;
+        segment.timestamps[offset] = event.getTimeStamp();
+        segment.entityIds[offset] = event.getEntityId();
+        segment.kindCodes[offset] = kindCode(new Kind(event.getClientId(), event.getEntityType(), actuator));
+        segment.values[offset] = event.getValueDouble();
+        if (event.getValueBoolean()) {
+            segment.booleanValues[offset >>> 6] |= 1L << offset;
+        }
+        latestTimeStamp = event.getTimeStamp();
+        size = row + 1;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public List<Event> eventsInWindow(double start, double end) {
+        int count = size;
+        Segment[] currentSegments = segments;
+        int from = firstRowAtOrAfter(currentSegments, count, start);
+        int to = firstRowAfter(currentSegments, count, end);
+        return new Rows(currentSegments, kinds, from, Math.max(from, to));
+    }
+
+    public List<Event> lastN(int n) {
+        int count = size;
+        return new Rows(segments, kinds, Math.max(0, count - Math.max(n, 0)), count);
+    }
+
+    private short kindCode(Kind kind) {
+        Short code = kindCodes.get(kind);
+        if (code != null) {
+            return code;
+        }
+        if (kinds.length > Short.MAX_VALUE) {
+            throw new IllegalStateException("Too many distinct entity types for one store");
+        }
+        short newCode = (short) kinds.length;
+        Kind[] grown = Arrays.copyOf(kinds, kinds.length + 1);
+        grown[newCode] = kind;
+        kinds = grown;
+        kindCodes.put(kind, newCode);
+        return newCode;
+    }
+
+    private static double timestamp(Segment[] segments, int row) {
+        return segments[row >>> SEGMENT_SHIFT].timestamps[row & SEGMENT_MASK];
+    }
+
+    // returns the first row with timestamp >= time, or count if there is none
+    private static int firstRowAtOrAfter(Segment[] segments, int count, double time) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestamp(segments, mid) < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // returns the first row with timestamp > time, or count if there is none
+    private static int firstRowAfter(Segment[] segments, int count, double time) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestamp(segments, mid) <= time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * An immutable range of rows, viewed as a list of events.
+     * Serialized as an ArrayList of plain events, so responses can be written as before.
+     */
+    static final class Rows extends AbstractList<Event> implements RandomAccess, Serializable {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final transient Segment[] segments;
+        private final transient Kind[] kinds;
+        private final transient int from;
+        private final transient int to;
+
+        Rows(Segment[] segments, Kind[] kinds, int from, int to) {
+            this.segments = segments;
+            this.kinds = kinds;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Event get(int index) {
+            if (index < 0 || index >= to - from) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            int row = from + index;
+            Segment segment = segments[row >>> SEGMENT_SHIFT];
+            int offset = row & SEGMENT_MASK;
+            return new StoredEvent(segment, offset, kinds[segment.kindCodes[offset]]);
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+
+        /**
+         * @param filter the filter to apply
+         * @return the events in the range that satisfy the filter, found a segment at a time by Filter.select
+         */
+        List<Event> sift(Filter filter) {
+            List<Event> selected = new ArrayList<>();
+            for (int row = from; row < to; ) {
+                Segment segment = segments[row >>> SEGMENT_SHIFT];
+                int start = row & SEGMENT_MASK;
+                int end = Math.min(SEGMENT_SIZE, start + (to - row));
+                long[] selection = filter.select(segment.timestamps, segment.values, segment.booleanValues, start, end);
+                for (int word = 0; word < selection.length; word++) {
+                    long bits = selection[word];
+                    while (bits != 0) {
+                        int offset = start + (word << 6) + Long.numberOfTrailingZeros(bits);
+                        selected.add(new StoredEvent(segment, offset, kinds[segment.kindCodes[offset]]));
+                        bits &= bits - 1;
+                    }
+                }
+                row += end - start;
+            }
+            return selected;
+        }
+
+        /**
+         * @param filter the filter to apply
+         * @return the number of events in the range that satisfy the filter
+         */
+        int countSelected(Filter filter) {
+            int count = 0;
+            for (int row = from; row < to; ) {
+                Segment segment = segments[row >>> SEGMENT_SHIFT];
+                int start = row & SEGMENT_MASK;
+                int end = Math.min(SEGMENT_SIZE, start + (to - row));
+                for (long bits : filter.select(segment.timestamps, segment.values, segment.booleanValues, start, end)) {
+                    count += Long.bitCount(bits);
+                }
+                row += end - start;
+            }
+            return count;
+        }
+
+        @Serial
+        private Object writeReplace() throws ObjectStreamException {
+            List<Event> events = new ArrayList<>(size());
+            for (int i = 0; i < size(); i++) {
+                events.add(((StoredEvent) get(i)).materialize());
+            }
+            return events;
+        }
+    }
+
+    /**
+     * A view of one stored row. Serialized as a plain SensorEvent or ActuatorEvent.
+     */
+    static final class StoredEvent implements Event, Serializable {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final transient Segment segment;
+        private final transient int row;
+        private final transient Kind kind;
+
+        StoredEvent(Segment segment, int row, Kind kind) {
+            this.segment = segment;
+            this.row = row;
+            this.kind = kind;
+        }
+
+        public double getTimeStamp() {
+            return segment.timestamps[row];
+        }
+
+        public int getClientId() {
+            return kind.clientId;
+        }
+
+        public int getEntityId() {
+            return segment.entityIds[row];
+        }
+
+        public String getEntityType() {
+            return kind.entityType;
+        }
+
+        public double getValueDouble() {
+            return segment.values[row];
+        }
+
+        public boolean getValueBoolean() {
+            return segment.booleanValue(row);
+        }
+
+        boolean isActuator() {
+            return kind.actuator;
+        }
+
+        Event materialize() {
+            if (isActuator()) {
+                return new ActuatorEvent(getTimeStamp(), getClientId(), getEntityId(), getEntityType(), getValueBoolean());
+            }
+            return new SensorEvent(getTimeStamp(), getClientId(), getEntityId(), getEntityType(), getValueDouble());
+        }
+
+        @Serial
+        private Object writeReplace() throws ObjectStreamException {
+            return materialize();
+        }
+
+        @Override
+        public String toString() {
+            return materialize().toString();
+        }
+    }
+}
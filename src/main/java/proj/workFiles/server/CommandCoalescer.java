@@ -0,0 +1,195 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.client.Request;
+import cpen221.mp3.client.RequestCommand;
+import cpen221.mp3.client.RequestType;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges the toggle and set commands bound for one actuator before they are sent, and limits how
+ * often each actuator is sent a command.
+ * <p>
+ * The first command for an actuator opens a window. Every toggle and set received for the actuator
+ * until the window closes is folded into one pending change of its state: an even number of toggles
+ * cancels out, an odd number is one toggle, and a set followed by anything is a set of the value
+ * those commands leave. When the window closes the pending change, if any, is sent as one command,
+ * but never sooner than 1 / maxCommandsPerSecond after the previous command to the actuator;
+ * commands received meanwhile keep folding into it. The actuator therefore ends in the same state
+ * as if every command had been sent.
+ * <p>
+ * With a zero window and no rate limit, which is the default, commands are sent as they come.
+ */
+public class CommandCoalescer {
+    private static final ScheduledExecutorService SHARED_TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread timer = new Thread(runnable, "actuator-command-coalescer");
+        timer.setDaemon(true);
+        return timer;
+    });
+
+    private final ActuatorCommandDispatcher dispatcher;
+    private final ScheduledExecutorService timer;
+    private final Map<Integer, Slot> slots = new HashMap<>();
+    private long windowNanos = 0;
+    private long minIntervalNanos = 0;
+    private long received = 0;
+    private long coalesced = 0;
+    private long sent = 0;
+
+    private enum Change { NONE, TOGGLE, SET }
+
+    /**
+     * The change pending for one actuator, and when it was last sent a command.
+     */
+    private static final class Slot {
+        private Change change = Change.NONE;
+        private boolean setValue;
+        private int merged = 0;
+        private String host;
+        private int port;
+        private long lastSentNanos;
+        private boolean everSent = false;
+        private boolean flushScheduled = false;
+    }
+
+    /**
+     * Creates a coalescer that sends through the given dispatcher, timing its windows on a timer
+     * shared by every such coalescer.
+     *
+     * @param dispatcher where merged commands are sent
+     */
+    public CommandCoalescer(ActuatorCommandDispatcher dispatcher) {
+        this(dispatcher, SHARED_TIMER);
+    }
+
+    CommandCoalescer(ActuatorCommandDispatcher dispatcher, ScheduledExecutorService timer) {
+        this.dispatcher = dispatcher;
+        this.timer = timer;
+    }
+
+    /**
+     * @param windowMillis how long, in milliseconds, commands to an actuator are collected before one is sent
+     * @param maxCommandsPerSecond the most commands sent to one actuator per second; Double.POSITIVE_INFINITY for no limit
+     */
+    public synchronized void configure(long windowMillis, double maxCommandsPerSecond) {
+        if (windowMillis < 0 || !(maxCommandsPerSecond > 0)) {
+            throw new IllegalArgumentException("Invalid coalescing window or command rate");
+        }
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.minIntervalNanos = Double.isInfinite(maxCommandsPerSecond) ? 0 : (long) (1e9 / maxCommandsPerSecond);
+    }
+
+    /**
+     * Accepts a command for an actuator, to be sent merged with the others in its window.
+     *
+     * @param actuatorId the ID of the actuator
+     * @param host the address of the actuator, or null if it is not known
+     * @param port the port the actuator accepts commands on
+     * @param command the command
+     */
+    public synchronized void submit(int actuatorId, String host, int port, Request command) {
+        received++;
+        RequestCommand kind = command.getRequestCommand();
+        boolean mergeable = kind == RequestCommand.CONTROL_TOGGLE_ACTUATOR_STATE || kind == RequestCommand.CONTROL_SET_ACTUATOR_STATE;
+        if (windowNanos == 0 && minIntervalNanos == 0 && !slots.containsKey(actuatorId)) {
+            sent++;
+            dispatcher.dispatch(actuatorId, host, port, command);
+            return;
+        }
+        Slot slot = slots.computeIfAbsent(actuatorId, id -> new Slot());
+        if (!mergeable) {
+            // Anything else goes out as it is, after what is pending so the order is kept
+            flush(actuatorId, slot);
+            sent++;
+            dispatcher.dispatch(actuatorId, host, port, command);
+            return;
+        }
+
+        if (kind == RequestCommand.CONTROL_SET_ACTUATOR_STATE) {
+            slot.change = Change.SET;
+            slot.setValue = "true".equals(command.getRequestData());
+        } else if (slot.change == Change.SET) {
+            slot.setValue = !slot.setValue;
+        } else {
+            slot.change = slot.change == Change.TOGGLE ? Change.NONE : Change.TOGGLE;
+        }
+        slot.merged++;
+        slot.host = host;
+        slot.port = port;
+
+        if (!slot.flushScheduled) {
+            long now = System.nanoTime();
+            long due = now + windowNanos;
+            if (slot.everSent) {
+                due = Math.max(due, slot.lastSentNanos + minIntervalNanos);
+            }
+            if (due <= now) {
+                flush(actuatorId, slot);
+            } else {
+                slot.flushScheduled = true;
+                timer.schedule(() -> scheduledFlush(actuatorId), due - now, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * @return the number of commands accepted
+     */
+    public synchronized long commandsReceived() {
+        return received;
+    }
+
+    /**
+     * @return the number of accepted commands that were merged into another command or cancelled out
+     */
+    public synchronized long commandsCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * @return the number of commands handed to the dispatcher
+     */
+    public synchronized long commandsSent() {
+        return sent;
+    }
+
+    /**
+     * @return the number of accepted commands waiting for their window to close
+     */
+    public synchronized long commandsPending() {
+        return received - coalesced - sent;
+    }
+
+    private synchronized void scheduledFlush(int actuatorId) {
+        Slot slot = slots.get(actuatorId);
+        slot.flushScheduled = false;
+        flush(actuatorId, slot);
+    }
+
+    private void flush(int actuatorId, Slot slot) {
+        if (slot.merged == 0) {
+            return;
+        }
+        Request command = null;
+        if (slot.change == Change.TOGGLE) {
+            command = new Request(RequestType.CONTROL, RequestCommand.CONTROL_TOGGLE_ACTUATOR_STATE, "");
+        } else if (slot.change == Change.SET) {
+            command = new Request(RequestType.CONTROL, RequestCommand.CONTROL_SET_ACTUATOR_STATE, String.valueOf(slot.setValue));
+        }
+        if (command == null) {
+            coalesced += slot.merged;
+        } else {
+            coalesced += slot.merged - 1;
+            sent++;
+            slot.lastSentNanos = System.nanoTime();
+            slot.everSent = true;
+            dispatcher.dispatch(actuatorId, slot.host, slot.port, command);
+        }
+        slot.change = Change.NONE;
+        slot.merged = 0;
+    }
+}
@@ -0,0 +1,210 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.event.ActuatorEvent;
+import cpen221.mp3.event.Event;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What one entity's events so far say about its next events, updated in O(1) per event.
+ * <p>
+ * The time between events is smoothed by an exponentially weighted moving average, so the next
+ * timestamps are predicted one smoothed interval apart. Sensor values follow Holt's linear trend:
+ * a smoothed level and a smoothed change per event, so the k-th next value is the level plus k
+ * changes. Actuator values follow a two-state Markov chain whose transition counts are kept, so
+ * each next value is the likelier successor of the one before it, staying put on a tie.
+ * <p>
+ * Predicting n values or timestamps takes O(n) and never looks at the history. Each update publishes
+ * an immutable snapshot of the model, which predictions read without locking, so any number of threads
+ * can predict while events keep arriving.
+ */
+class EntityModel {
+    static final double INTERVAL_SMOOTHING = 0.3;
+    static final double LEVEL_SMOOTHING = 0.5;
+    static final double TREND_SMOOTHING = 0.3;
+
+    private boolean actuator;
+    private long count = 0;
+    private double lastTimeStamp;
+    private double interval = 0;
+
+    private double level;
+    private double trend = 0;
+
+    private boolean lastState;
+    // Indexed by from, then to, with false as 0 and true as 1
+    private final long[][] transitions = new long[2][2];
+
+    private volatile Snapshot snapshot = null;
+
+    /**
+     * The model as of one event, with what predictions need.
+     */
+    private static final class Snapshot {
+        private final boolean actuator;
+        private final double lastTimeStamp;
+        private final double interval;
+        private final double level;
+        private final double trend;
+        private final boolean lastState;
+        private final boolean flipsFromFalse;
+        private final boolean flipsFromTrue;
+
+        Snapshot(boolean actuator, double lastTimeStamp, double interval, double level, double trend,
+                 boolean lastState, boolean flipsFromFalse, boolean flipsFromTrue) {
+            this.actuator = actuator;
+            this.lastTimeStamp = lastTimeStamp;
+            this.interval = interval;
+            this.level = level;
+            this.trend = trend;
+            this.lastState = lastState;
+            this.flipsFromFalse = flipsFromFalse;
+            this.flipsFromTrue = flipsFromTrue;
+        }
+    }
+
+    /**
+     * Updates the model with the next event of the entity, which must not be older than the previous one.
+     *
+     * @param event the event
+     */
+    synchronized void update(Event event) {
+        double timeStamp = event.getTimeStamp();
+        if (count == 0) {
+            actuator = isActuator(event);
+            level = event.getValueDouble();
+            lastState = event.getValueBoolean();
+        } else {
+            double observed = timeStamp - lastTimeStamp;
+            interval = count == 1 ? observed : INTERVAL_SMOOTHING * observed + (1 - INTERVAL_SMOOTHING) * interval;
+            if (actuator) {
+                boolean state = event.getValueBoolean();
+                transitions[lastState ? 1 : 0][state ? 1 : 0]++;
+                lastState = state;
+            } else {
+                double value = event.getValueDouble();
+                if (count == 1) {
+                    trend = value - level;
+                    level = value;
+                } else {
+                    double previousLevel = level;
+                    level = LEVEL_SMOOTHING * value + (1 - LEVEL_SMOOTHING) * (level + trend);
+                    trend = TREND_SMOOTHING * (level - previousLevel) + (1 - TREND_SMOOTHING) * trend;
+                }
+            }
+        }
+        lastTimeStamp = timeStamp;
+        count++;
+        publish();
+    }
+
+    /**
+     * Writes the state of the model, to be read back by readFrom.
+     *
+     * @param out where to write it
+     * @throws IOException if it cannot be written
+     */
+    synchronized void writeTo(DataOutput out) throws IOException {
+        out.writeBoolean(actuator);
+        out.writeLong(count);
+        out.writeDouble(lastTimeStamp);
+        out.writeDouble(interval);
+        out.writeDouble(level);
+        out.writeDouble(trend);
+        out.writeBoolean(lastState);
+        for (long[] from : transitions) {
+            for (long to : from) {
+                out.writeLong(to);
+            }
+        }
+    }
+
+    /**
+     * Reads a model written by writeTo, which goes on from where the written model was.
+     *
+     * @param in where to read it from
+     * @return the model
+     * @throws IOException if it cannot be read
+     */
+    static EntityModel readFrom(DataInput in) throws IOException {
+        EntityModel model = new EntityModel();
+        model.actuator = in.readBoolean();
+        model.count = in.readLong();
+        model.lastTimeStamp = in.readDouble();
+        model.interval = in.readDouble();
+        model.level = in.readDouble();
+        model.trend = in.readDouble();
+        model.lastState = in.readBoolean();
+        for (long[] from : model.transitions) {
+            for (int to = 0; to < from.length; to++) {
+                from[to] = in.readLong();
+            }
+        }
+        if (model.count > 0) {
+            model.publish();
+        }
+        return model;
+    }
+
+    private void publish() {
+        // A state flips when it has been left more often than kept, and stays put on a tie
+        snapshot = new Snapshot(actuator, lastTimeStamp, interval, level, trend, lastState,
+                transitions[0][1] > transitions[0][0], transitions[1][0] > transitions[1][1]);
+    }
+
+    // the views the stores hand back are neither SensorEvents nor ActuatorEvents, but know which they stand for
+    private static boolean isActuator(Event event) {
+        if (event instanceof MappedEventStore.MappedEvent mapped) {
+            return mapped.isActuator();
+        }
+        if (event instanceof ColumnarEventStore.StoredEvent stored) {
+            return stored.isActuator();
+        }
+        return event instanceof ActuatorEvent;
+    }
+
+    /**
+     * @param n the number of timestamps to predict
+     * @return the predicted timestamps of the next n events, or an empty list if there has been no event
+     */
+    List<Double> predictTimeStamps(int n) {
+        Snapshot current = snapshot;
+        List<Double> predicted = new ArrayList<>(Math.max(n, 0));
+        if (current == null) {
+            return predicted;
+        }
+        for (int k = 1; k <= n; k++) {
+            predicted.add(current.lastTimeStamp + k * current.interval);
+        }
+        return predicted;
+    }
+
+    /**
+     * @param n the number of values to predict
+     * @return the predicted values of the next n events, Booleans for an actuator and Doubles otherwise,
+     *         or an empty list if there has been no event
+     */
+    List<Object> predictValues(int n) {
+        Snapshot current = snapshot;
+        List<Object> predicted = new ArrayList<>(Math.max(n, 0));
+        if (current == null) {
+            return predicted;
+        }
+        boolean state = current.lastState;
+        for (int k = 1; k <= n; k++) {
+            if (current.actuator) {
+                if (state ? current.flipsFromTrue : current.flipsFromFalse) {
+                    state = !state;
+                }
+                predicted.add(state);
+            } else {
+                predicted.add(current.level + k * current.trend);
+            }
+        }
+        return predicted;
+    }
+}
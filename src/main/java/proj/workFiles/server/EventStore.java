@@ -0,0 +1,25 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.event.Event;
+
+import java.util.List;
+
+/**
+ * The event history of one client, kept in increasing timestamp order.
+ * Implementations allow one appending thread and any number of concurrent readers.
+ */
+public interface EventStore {
+
+    // appends the event if its timestamp is greater than that of every stored event
+    // returns false, and stores nothing, otherwise
+    boolean append(Event event);
+
+    // returns the number of stored events
+    int size();
+
+    // returns the stored events with start <= timestamp <= end, in timestamp order
+    List<Event> eventsInWindow(double start, double end);
+
+    // returns the latest n stored events (all of them if fewer are stored), in timestamp order
+    List<Event> lastN(int n);
+}
@@ -3,7 +3,10 @@ package cpen221.mp3.server;
 import cpen221.mp3.event.Event;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.function.Predicate;
 import cpen221.mp3.event.ActuatorEvent;
 
 enum DoubleOperator {
@@ -40,10 +43,15 @@ public class Filter {
     private DoubleOperator doubleOperator;
     private double doubleValue;
     private List<Filter> composedFilters;
+    // The filter compiled once at construction into the check satisfies runs per event
+    private Predicate<Event> predicate;
+    // For a composed filter, every comparison in it, nested compositions included, in the order they are checked
+    private List<Filter> flattenedFilters;
 
     public Filter(BooleanOperator operator, boolean value) {
         this.booleanOperator = operator;
         this.booleanValue = value;
+        this.predicate = compileBoolean(operator, value);
     }
 
     /**
@@ -73,17 +81,27 @@ public class Filter {
         this.doubleField = field;
         this.doubleOperator = operator;
         this.doubleValue = value;
+        this.predicate = compileDouble(field, operator, value);
     }
 
     /**
      * A filter can be composed of other filters.
      * in this case, the filter should satisfy all the filters in the list.
      * Constructs a complex filter composed of other filters.
+     * The filters are read once, here; later changes to the list do not affect this filter.
      *
      * @param filters the list of filters to use in the composition
      */
     public Filter(List<Filter> filters) {
         this.composedFilters = filters;
+        List<Check> checks = new ArrayList<>();
+        flatten(filters, checks);
+        checks.sort(Comparator.comparingInt(check -> check.rank));
+        this.flattenedFilters = new ArrayList<>();
+        for (Check check : checks) {
+            flattenedFilters.add(check.filter);
+        }
+        this.predicate = compileConjunction(checks);
     }
 
     /**
@@ -93,39 +111,112 @@ public class Filter {
      * @return true if the event satisfies the filter criteria, false otherwise
      */
     public boolean satisfies(Event event) {
-        if (booleanOperator != null) {
-            boolean eventValue = event.getValueBoolean();
-            if (booleanOperator == BooleanOperator.EQUALS) {
-                return eventValue == booleanValue;
-            } else {
-                return eventValue != booleanValue;
-            }
+        return predicate.test(event);
+    }
 
-        } else if (composedFilters != null) {
-            for (Filter filter : composedFilters) {
-                if (!filter.satisfies(event)) {
-                    return false;
-                }
-            }
-            return true;
+    /**
+     * One comparison of a compiled filter, with its place in the order composed filters check in.
+     */
+    private static final class Check {
+        // Lower ranks are checked first: equality on a double is the most selective,
+        // then boolean comparisons, then the range comparisons
+        private static final int RANK_DOUBLE_EQUALS = 0;
+        private static final int RANK_BOOLEAN = 1;
+        private static final int RANK_DOUBLE_RANGE = 2;
 
-        } else if (doubleField != null) {
-            double compareValue = doubleField.equals("value") ? event.getValueDouble() : event.getTimeStamp();
-            switch (doubleOperator) {
+        private final int rank;
+        private final Filter filter;
+        private final Predicate<Event> predicate;
+
+        Check(int rank, Filter filter) {
+            this.rank = rank;
+            this.filter = filter;
+            this.predicate = filter.predicate;
+        }
+    }
+
+    private static Predicate<Event> compileBoolean(BooleanOperator operator, boolean value) {
+        if (operator == BooleanOperator.EQUALS) {
+            return value ? Event::getValueBoolean : event -> !event.getValueBoolean();
+        }
+        return value ? event -> !event.getValueBoolean() : Event::getValueBoolean;
+    }
+
+    private static Predicate<Event> compileDouble(String field, DoubleOperator operator, double value) {
+        if (field.equals("value")) {
+            switch (operator) {
                 case EQUALS:
-                    return compareValue == doubleValue;
+                    return event -> event.getValueDouble() == value;
                 case GREATER_THAN:
-                    return compareValue > doubleValue;
+                    return event -> event.getValueDouble() > value;
                 case LESS_THAN:
-                    return compareValue < doubleValue;
+                    return event -> event.getValueDouble() < value;
                 case GREATER_THAN_OR_EQUALS:
-                    return compareValue >= doubleValue;
-                case LESS_THAN_OR_EQUALS:
-                    return compareValue <= doubleValue;
+                    return event -> event.getValueDouble() >= value;
+                default:
+                    return event -> event.getValueDouble() <= value;
             }
         }
-        // Return true by default if none of the conditions above are met
-        return true;
+        switch (operator) {
+            case EQUALS:
+                return event -> event.getTimeStamp() == value;
+            case GREATER_THAN:
+                return event -> event.getTimeStamp() > value;
+            case LESS_THAN:
+                return event -> event.getTimeStamp() < value;
+            case GREATER_THAN_OR_EQUALS:
+                return event -> event.getTimeStamp() >= value;
+            default:
+                return event -> event.getTimeStamp() <= value;
+        }
+    }
+
+    private static Predicate<Event> compileConjunction(List<Check> checks) {
+        switch (checks.size()) {
+            case 0:
+                return event -> true;
+            case 1:
+                return checks.get(0).predicate;
+            case 2:
+                Predicate<Event> first = checks.get(0).predicate;
+                Predicate<Event> second = checks.get(1).predicate;
+                return event -> first.test(event) && second.test(event);
+            default:
+                Predicate<Event>[] all = checksToArray(checks);
+                return event -> {
+                    for (Predicate<Event> check : all) {
+                        if (!check.test(event)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                };
+        }
+    }
+
+    // A composition of compositions is a single conjunction of all the comparisons in it
+    private static void flatten(List<Filter> filters, List<Check> checks) {
+        for (Filter filter : filters) {
+            if (filter.composedFilters != null) {
+                flatten(filter.flattenedFilters, checks);
+            } else if (filter.booleanOperator != null) {
+                checks.add(new Check(Check.RANK_BOOLEAN, filter));
+            } else if (filter.doubleOperator == DoubleOperator.EQUALS) {
+                checks.add(new Check(Check.RANK_DOUBLE_EQUALS, filter));
+            } else {
+                checks.add(new Check(Check.RANK_DOUBLE_RANGE, filter));
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Predicate<Event>[] checksToArray(List<Check> checks) {
+        // A generic array cannot be created directly, so a wildcard one is cast instead
+        Predicate<Event>[] all = (Predicate<Event>[]) new Predicate<?>[checks.size()];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = checks.get(i).predicate;
+        }
+        return all;
     }
 
     /**
@@ -135,6 +226,9 @@ public class Filter {
      * @return true if every event in the list satisfies the filter criteria, false otherwise
      */
     public boolean satisfies(List<Event> events) {
+        if (events instanceof ColumnarEventStore.Rows rows) {
+            return rows.countSelected(this) == rows.size();
+        }
         for (Event event : events) {
             if (!satisfies(event)) {
                 return false;
@@ -160,12 +254,16 @@ public class Filter {
     /**
      * Returns a list of events that contains only the events in the given list that satisfy the filter criteria.
      * If no events in the given list satisfy the filter criteria, then this method should return an empty list.
+     * Events held in primitive columns by a ColumnarEventStore are filtered a batch at a time with select.
      *
      * @param events the list of events to sift
      * @return a list of events that contains only the events in the given list that satisfy the filter criteria
      *        or an empty list if no events in the given list satisfy the filter criteria
      */
     public List<Event> sift(List<Event> events) {
+        if (events instanceof ColumnarEventStore.Rows rows) {
+            return rows.sift(this);
+        }
         List<Event> siftedEvents = new ArrayList<>();
         for (Event event : events) {
             if (satisfies(event)) {
@@ -174,6 +272,169 @@ public class Filter {
         }
         return siftedEvents;
     }
+
+    /**
+     * Evaluates the filter over a batch of events held in primitive columns, without creating any events.
+     * Row r of the batch has timestamp timestamps[r], double value values[r] (-1 for actuators, as
+     * Event.getValueDouble returns) and boolean value bit r of booleanBits.
+     * <p>
+     * Comparisons on doubles run as tight loops over the column that the JIT can unroll;
+     * comparisons on booleans and the conjunction of composed filters work 64 rows at a time
+     * on the words of the bitsets.
+     *
+     * @param timestamps the timestamp column
+     * @param values the double value column
+     * @param booleanBits the boolean value column as a bitset
+     * @param from the first row of the batch
+     * @param to the row after the last row of the batch
+     * @return a bitmap in which bit i is set if row from + i satisfies the filter
+     */
+    public long[] select(double[] timestamps, double[] values, long[] booleanBits, int from, int to) {
+        long[] selection = new long[(to - from + 63) >>> 6];
+        selectInto(timestamps, values, booleanBits, from, to, selection);
+        return selection;
+    }
+
+    private void selectInto(double[] timestamps, double[] values, long[] booleanBits, int from, int to, long[] selection) {
+        if (composedFilters != null) {
+            Arrays.fill(selection, -1L);
+            long[] scratch = new long[selection.length];
+            for (Filter filter : flattenedFilters) {
+                filter.selectInto(timestamps, values, booleanBits, from, to, scratch);
+                for (int word = 0; word < selection.length; word++) {
+                    selection[word] &= scratch[word];
+                }
+            }
+        } else if (booleanOperator != null) {
+            boolean negate = (booleanOperator == BooleanOperator.EQUALS) != booleanValue;
+            int shift = from & 63;
+            int first = from >>> 6;
+            for (int word = 0; word < selection.length; word++) {
+                long bits = booleanBits[first + word] >>> shift;
+                if (shift != 0 && first + word + 1 < booleanBits.length) {
+                    bits |= booleanBits[first + word + 1] << (64 - shift);
+                }
+                selection[word] = negate ? ~bits : bits;
+            }
+        } else {
+            double[] column = doubleField.equals("value") ? values : timestamps;
+            compareColumn(column, doubleOperator, doubleValue, from, to, selection);
+        }
+        int tail = (to - from) & 63;
+        if (tail != 0) {
+            selection[selection.length - 1] &= (1L << tail) - 1;
+        }
+    }
+
+    // One loop per operator, so the comparison is fixed inside each loop
+    private static void compareColumn(double[] column, DoubleOperator operator, double value, int from, int to, long[] selection) {
+        for (int word = 0; word < selection.length; word++) {
+            int base = from + (word << 6);
+            int end = Math.min(base + 64, to);
+            long bits = 0;
+            switch (operator) {
+                case EQUALS:
+                    for (int row = base; row < end; row++) {
+                        bits |= (column[row] == value ? 1L : 0L) << (row - base);
+                    }
+                    break;
+                case GREATER_THAN:
+                    for (int row = base; row < end; row++) {
+                        bits |= (column[row] > value ? 1L : 0L) << (row - base);
+                    }
+                    break;
+                case LESS_THAN:
+                    for (int row = base; row < end; row++) {
+                        bits |= (column[row] < value ? 1L : 0L) << (row - base);
+                    }
+                    break;
+                case GREATER_THAN_OR_EQUALS:
+                    for (int row = base; row < end; row++) {
+                        bits |= (column[row] >= value ? 1L : 0L) << (row - base);
+                    }
+                    break;
+                default:
+                    for (int row = base; row < end; row++) {
+                        bits |= (column[row] <= value ? 1L : 0L) << (row - base);
+                    }
+                    break;
+            }
+            selection[word] = bits;
+        }
+    }
+
+    /**
+     * Encodes the filter in the compact form the server parses for CONTROL requests,
+     * for example (&amp; (v&gt;=23.0) (b==true)). Composed filters are written flattened.
+     *
+     * @return the encoded filter
+     */
+    public String encode() {
+        StringBuilder sb = new StringBuilder();
+        encode(sb);
+        return sb.toString();
+    }
+
+    private void encode(StringBuilder sb) {
+        if (composedFilters != null) {
+            sb.append("(&");
+            for (Filter filter : flattenedFilters) {
+                sb.append(' ');
+                filter.encode(sb);
+            }
+            sb.append(')');
+        } else if (booleanOperator != null) {
+            sb.append(booleanOperator == BooleanOperator.EQUALS ? "(b==" : "(b!=").append(booleanValue).append(')');
+        } else {
+            sb.append(doubleField.equals("value") ? "(v" : "(t");
+            switch (doubleOperator) {
+                case EQUALS:
+                    sb.append("==");
+                    break;
+                case GREATER_THAN:
+                    sb.append('>');
+                    break;
+                case LESS_THAN:
+                    sb.append('<');
+                    break;
+                case GREATER_THAN_OR_EQUALS:
+                    sb.append(">=");
+                    break;
+                case LESS_THAN_OR_EQUALS:
+                    sb.append("<=");
+                    break;
+            }
+            sb.append(doubleValue).append(')');
+        }
+    }
+
+    /**
+     * @return the comparisons this filter is the conjunction of; the filter itself if it is not composed
+     */
+    List<Filter> comparisons() {
+        return composedFilters != null ? flattenedFilters : List.of(this);
+    }
+
+    BooleanOperator getBooleanOperator() {
+        return booleanOperator;
+    }
+
+    boolean getBooleanValue() {
+        return booleanValue;
+    }
+
+    String getDoubleField() {
+        return doubleField;
+    }
+
+    DoubleOperator getDoubleOperator() {
+        return doubleOperator;
+    }
+
+    double getDoubleValue() {
+        return doubleValue;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder("Filter{");
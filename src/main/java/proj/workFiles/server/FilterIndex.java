@@ -0,0 +1,251 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.event.Event;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the rules satisfied by an event without testing every rule.
+ * <p>
+ * Each rule is a Filter, split into the comparisons it is the conjunction of. Comparisons with
+ * a threshold are kept in one array per field and operator, sorted by threshold, so those an event
+ * satisfies form a prefix or a suffix found by binary search. Equality comparisons are looked up by
+ * value and boolean comparisons are bucketed by the event value that satisfies them. A rule matches
+ * once as many of its comparisons are satisfied as it has, so matching an event costs O(log R) plus
+ * the number of satisfied comparisons, for R rules.
+ * <p>
+ * The structures are rebuilt on the first match after the rules change.
+ *
+ * @param <K> the key rules are registered under
+ */
+class FilterIndex<K> {
+    private static final String[] FIELDS = {"value", "timestamp"};
+
+    private final Map<K, Filter> rules = new LinkedHashMap<>();
+    private boolean stale = true;
+
+    private List<K> keys = new ArrayList<>();
+    private int[] required = new int[0];
+    private int[] alwaysMatching = new int[0];
+    // Indexed by field, then by GREATER_THAN, GREATER_THAN_OR_EQUALS, LESS_THAN, LESS_THAN_OR_EQUALS
+    private final Thresholds[][] thresholds = new Thresholds[FIELDS.length][4];
+    private final List<Map<Double, int[]>> equalTo = new ArrayList<>();
+    private int[] matchedByTrue = new int[0];
+    private int[] matchedByFalse = new int[0];
+
+    private int[] satisfiedCounts = new int[0];
+    private int[] touched = new int[0];
+
+    /**
+     * Comparisons against a threshold on one field with one operator, sorted by threshold.
+     */
+    private static final class Thresholds {
+        final double[] values;
+        final int[] ruleIds;
+
+        Thresholds(List<double[]> entries) {
+            entries.sort(Comparator.comparingDouble(entry -> entry[0]));
+            values = new double[entries.size()];
+            ruleIds = new int[entries.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = entries.get(i)[0];
+                ruleIds[i] = (int) entries.get(i)[1];
+            }
+        }
+
+        // returns the first index with threshold >= x
+        int firstAtOrAbove(double x) {
+            int low = 0;
+            int high = values.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[mid] < x) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        // returns the first index with threshold > x
+        int firstAbove(double x) {
+            int low = 0;
+            int high = values.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[mid] <= x) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Registers a rule, replacing any rule already registered under the key.
+     *
+     * @param key the key of the rule
+     * @param filter the rule
+     */
+    synchronized void put(K key, Filter filter) {
+        rules.put(key, filter);
+        stale = true;
+    }
+
+    /**
+     * @param key the key of the rule to remove
+     */
+    synchronized void remove(K key) {
+        if (rules.remove(key) != null) {
+            stale = true;
+        }
+    }
+
+    /**
+     * @return the number of rules registered
+     */
+    synchronized int size() {
+        return rules.size();
+    }
+
+    /**
+     * @param event the event to match
+     * @return the keys of every rule the event satisfies
+     */
+    synchronized List<K> match(Event event) {
+        if (stale) {
+            rebuild();
+        }
+        List<K> matched = new ArrayList<>();
+        for (int ruleId : alwaysMatching) {
+            matched.add(keys.get(ruleId));
+        }
+        int touchedCount = 0;
+        for (int field = 0; field < FIELDS.length; field++) {
+            double x = field == 0 ? event.getValueDouble() : event.getTimeStamp();
+            if (Double.isNaN(x)) {
+                continue;
+            }
+            Thresholds greaterThan = thresholds[field][0];
+            touchedCount = satisfy(greaterThan.ruleIds, 0, greaterThan.firstAtOrAbove(x), touchedCount, matched);
+            Thresholds greaterOrEqual = thresholds[field][1];
+            touchedCount = satisfy(greaterOrEqual.ruleIds, 0, greaterOrEqual.firstAbove(x), touchedCount, matched);
+            Thresholds lessThan = thresholds[field][2];
+            touchedCount = satisfy(lessThan.ruleIds, lessThan.firstAbove(x), lessThan.ruleIds.length, touchedCount, matched);
+            Thresholds lessOrEqual = thresholds[field][3];
+            touchedCount = satisfy(lessOrEqual.ruleIds, lessOrEqual.firstAtOrAbove(x), lessOrEqual.ruleIds.length, touchedCount, matched);
+            int[] equal = equalTo.get(field).get(x == 0 ? 0.0 : x);
+            if (equal != null) {
+                touchedCount = satisfy(equal, 0, equal.length, touchedCount, matched);
+            }
+        }
+        int[] byBoolean = event.getValueBoolean() ? matchedByTrue : matchedByFalse;
+        touchedCount = satisfy(byBoolean, 0, byBoolean.length, touchedCount, matched);
+
+        for (int i = 0; i < touchedCount; i++) {
+            satisfiedCounts[touched[i]] = 0;
+        }
+        return matched;
+    }
+
+    // counts one satisfied comparison for each rule in ruleIds[from, to) and records rules that are complete
+    private int satisfy(int[] ruleIds, int from, int to, int touchedCount, List<K> matched) {
+        for (int i = from; i < to; i++) {
+            int ruleId = ruleIds[i];
+            if (satisfiedCounts[ruleId]++ == 0) {
+                touched[touchedCount++] = ruleId;
+            }
+            if (satisfiedCounts[ruleId] == required[ruleId]) {
+                matched.add(keys.get(ruleId));
+            }
+        }
+        return touchedCount;
+    }
+
+    private void rebuild() {
+        keys = new ArrayList<>(rules.keySet());
+        required = new int[keys.size()];
+        List<Integer> always = new ArrayList<>();
+        List<List<List<double[]>>> thresholdEntries = new ArrayList<>();
+        List<Map<Double, List<Integer>>> equalEntries = new ArrayList<>();
+        for (int field = 0; field < FIELDS.length; field++) {
+            List<List<double[]>> byOperator = new ArrayList<>();
+            for (int operator = 0; operator < 4; operator++) {
+                byOperator.add(new ArrayList<>());
+            }
+            thresholdEntries.add(byOperator);
+            equalEntries.add(new HashMap<>());
+        }
+        List<Integer> byTrue = new ArrayList<>();
+        List<Integer> byFalse = new ArrayList<>();
+
+        for (int ruleId = 0; ruleId < keys.size(); ruleId++) {
+            List<Filter> comparisons = rules.get(keys.get(ruleId)).comparisons();
+            required[ruleId] = comparisons.size();
+            if (comparisons.isEmpty()) {
+                always.add(ruleId);
+            }
+            for (Filter comparison : comparisons) {
+                if (comparison.getBooleanOperator() != null) {
+                    boolean satisfiedBy = (comparison.getBooleanOperator() == BooleanOperator.EQUALS) == comparison.getBooleanValue();
+                    (satisfiedBy ? byTrue : byFalse).add(ruleId);
+                    continue;
+                }
+                double threshold = comparison.getDoubleValue();
+                if (Double.isNaN(threshold)) {
+                    // Never satisfied, so the rule can never complete
+                    continue;
+                }
+                int field = comparison.getDoubleField().equals("value") ? 0 : 1;
+                switch (comparison.getDoubleOperator()) {
+                    case EQUALS:
+                        equalEntries.get(field).computeIfAbsent(threshold == 0 ? 0.0 : threshold, t -> new ArrayList<>()).add(ruleId);
+                        break;
+                    case GREATER_THAN:
+                        thresholdEntries.get(field).get(0).add(new double[] {threshold, ruleId});
+                        break;
+                    case GREATER_THAN_OR_EQUALS:
+                        thresholdEntries.get(field).get(1).add(new double[] {threshold, ruleId});
+                        break;
+                    case LESS_THAN:
+                        thresholdEntries.get(field).get(2).add(new double[] {threshold, ruleId});
+                        break;
+                    case LESS_THAN_OR_EQUALS:
+                        thresholdEntries.get(field).get(3).add(new double[] {threshold, ruleId});
+                        break;
+                }
+            }
+        }
+
+        alwaysMatching = toArray(always);
+        equalTo.clear();
+        for (int field = 0; field < FIELDS.length; field++) {
+            for (int operator = 0; operator < 4; operator++) {
+                thresholds[field][operator] = new Thresholds(thresholdEntries.get(field).get(operator));
+            }
+            Map<Double, int[]> equal = new HashMap<>();
+            equalEntries.get(field).forEach((threshold, ruleIds) -> equal.put(threshold, toArray(ruleIds)));
+            equalTo.add(equal);
+        }
+        matchedByTrue = toArray(byTrue);
+        matchedByFalse = toArray(byFalse);
+        satisfiedCounts = new int[keys.size()];
+        touched = new int[keys.size()];
+        stale = false;
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        Arrays.setAll(array, values::get);
+        return array;
+    }
+}
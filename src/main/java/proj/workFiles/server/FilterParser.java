@@ -0,0 +1,225 @@
+package cpen221.mp3.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses the filters sent in CONTROL requests, in a single pass and without regular expressions.
+ * <p>
+ * Two encodings are accepted. The compact one, written by Filter.encode, is
+ * <pre>
+ *     (v&gt;=23.0)          value   ==, &gt;, &lt;, &gt;= or &lt;= a double
+ *     (t&lt;1.5)            timestamp compared the same way
+ *     (b==true)           boolean value == or != a boolean
+ *     (&amp; f1 f2 ...)      all of the filters f1, f2, ...
+ * </pre>
+ * The other is the Filter.toString format, such as
+ * {@code Filter{DoubleField=value, DoubleOperator=GREATER_THAN, DoubleValue=23.0}}.
+ * <p>
+ * Parsed filters are kept in a bounded, least recently used cache keyed by their text,
+ * so registering a known rule again costs a hash lookup.
+ */
+class FilterParser {
+    static final int CACHE_SIZE = 1024;
+
+    private static final String LEGACY_PREFIX = "Filter{";
+    private static final Map<String, Filter> CACHE = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Filter> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private final String text;
+    private int position = 0;
+
+    private FilterParser(String text) {
+        this.text = text;
+    }
+
+    /**
+     * @param text a filter in either encoding
+     * @return the filter
+     * @throws FilterException if the text is not a well-formed filter
+     */
+    static Filter parse(String text) throws FilterException {
+        synchronized (CACHE) {
+            Filter cached = CACHE.get(text);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        FilterParser parser = new FilterParser(text);
+        Filter filter = text.startsWith(LEGACY_PREFIX) ? parser.parseLegacy() : parser.parseCompact();
+        parser.skipSpaces();
+        if (parser.position != text.length()) {
+            throw new FilterException();
+        }
+        synchronized (CACHE) {
+            CACHE.put(text, filter);
+        }
+        return filter;
+    }
+
+    private Filter parseCompact() throws FilterException {
+        skipSpaces();
+        expect('(');
+        if (peek() == '&') {
+            position++;
+            List<Filter> filters = new ArrayList<>();
+            skipSpaces();
+            while (peek() != ')') {
+                filters.add(parseCompact());
+                skipSpaces();
+            }
+            position++;
+            return new Filter(filters);
+        }
+        char field = next();
+        DoubleOperator operator = parseOperator();
+        int end = text.indexOf(')', position);
+        if (end < 0) {
+            throw new FilterException();
+        }
+        String value = text.substring(position, end);
+        position = end + 1;
+        if (field == 'b') {
+            if (operator != DoubleOperator.EQUALS && operator != null) {
+                throw new FilterException();
+            }
+            return new Filter(operator == null ? BooleanOperator.NOT_EQUALS : BooleanOperator.EQUALS, parseBoolean(value));
+        }
+        if ((field != 'v' && field != 't') || operator == null) {
+            throw new FilterException();
+        }
+        return new Filter(field == 'v' ? "value" : "timestamp", operator, parseDouble(value));
+    }
+
+    // returns null for !=, which only applies to booleans
+    private DoubleOperator parseOperator() throws FilterException {
+        char first = next();
+        boolean orEquals = position < text.length() && text.charAt(position) == '=';
+        switch (first) {
+            case '=':
+                expect('=');
+                return DoubleOperator.EQUALS;
+            case '!':
+                expect('=');
+                return null;
+            case '>':
+                position += orEquals ? 1 : 0;
+                return orEquals ? DoubleOperator.GREATER_THAN_OR_EQUALS : DoubleOperator.GREATER_THAN;
+            case '<':
+                position += orEquals ? 1 : 0;
+                return orEquals ? DoubleOperator.LESS_THAN_OR_EQUALS : DoubleOperator.LESS_THAN;
+            default:
+                throw new FilterException();
+        }
+    }
+
+    private Filter parseLegacy() throws FilterException {
+        expect(LEGACY_PREFIX);
+        if (text.startsWith("BooleanOperator=", position)) {
+            expect("BooleanOperator=");
+            BooleanOperator operator = parseEnum(BooleanOperator.class, readUntil(','));
+            expect(", BooleanValue=");
+            boolean value = parseBoolean(readUntil('}'));
+            expect('}');
+            return new Filter(operator, value);
+        }
+        if (text.startsWith("DoubleField=", position)) {
+            expect("DoubleField=");
+            String field = readUntil(',');
+            expect(", DoubleOperator=");
+            DoubleOperator operator = parseEnum(DoubleOperator.class, readUntil(','));
+            expect(", DoubleValue=");
+            double value = parseDouble(readUntil('}'));
+            expect('}');
+            if (!field.equals("value") && !field.equals("timestamp")) {
+                throw new FilterException();
+            }
+            return new Filter(field, operator, value);
+        }
+        expect("ComposedFilters=[");
+        List<Filter> filters = new ArrayList<>();
+        while (peek() != ']') {
+            if (!filters.isEmpty()) {
+                expect(", ");
+            }
+            filters.add(parseLegacy());
+        }
+        position++;
+        expect('}');
+        return new Filter(filters);
+    }
+
+    private String readUntil(char delimiter) throws FilterException {
+        int end = text.indexOf(delimiter, position);
+        if (end < 0) {
+            throw new FilterException();
+        }
+        String token = text.substring(position, end);
+        position = end;
+        return token;
+    }
+
+    private char peek() throws FilterException {
+        if (position >= text.length()) {
+            throw new FilterException();
+        }
+        return text.charAt(position);
+    }
+
+    private char next() throws FilterException {
+        char next = peek();
+        position++;
+        return next;
+    }
+
+    private void expect(char expected) throws FilterException {
+        if (next() != expected) {
+            throw new FilterException();
+        }
+    }
+
+    private void expect(String expected) throws FilterException {
+        if (!text.startsWith(expected, position)) {
+            throw new FilterException();
+        }
+        position += expected.length();
+    }
+
+    private void skipSpaces() {
+        while (position < text.length() && text.charAt(position) == ' ') {
+            position++;
+        }
+    }
+
+    private static boolean parseBoolean(String value) throws FilterException {
+        if (value.equals("true")) {
+            return true;
+        }
+        if (value.equals("false")) {
+            return false;
+        }
+        throw new FilterException();
+    }
+
+    private static double parseDouble(String value) throws FilterException {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new FilterException();
+        }
+    }
+
+    private static <E extends Enum<E>> E parseEnum(Class<E> type, String name) throws FilterException {
+        try {
+            return Enum.valueOf(type, name);
+        } catch (IllegalArgumentException e) {
+            throw new FilterException();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package cpen221.mp3.server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.nio.channels.IllegalBlockingModeException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A client connection that is pushed the IDs of the entities whose events satisfy the log filter, as they occur.
+ * <p>
+ * IDs wait in a buffer until a pusher thread writes them to the connection, in batches of at
+ * most MAX_BATCH_SIZE, each batch a List of Integers on one object stream. Once the buffer holds
+ * its capacity, the BackpressurePolicy decides what happens. DROP_OLDEST drops the oldest ID.
+ * BLOCK never makes the producer wait here: the buffer takes the ID, and the Server stops taking
+ * tasks until hasRoom says there is room again, leaving them queued.
+ * The subscription ends when the connection fails, the subscriber closes it, or it is closed here.
+ */
+class LogSubscriber implements Runnable {
+    static final int MAX_BATCH_SIZE = 256;
+
+    private static final ExecutorService PUSHERS = Executors.newCachedThreadPool(runnable -> {
+        Thread pusher = new Thread(runnable, "log-subscriber");
+        pusher.setDaemon(true);
+        return pusher;
+    });
+
+    private final Socket connection;
+    private final BackpressurePolicy policy;
+    private final int capacity;
+    private int[] buffer;
+    private int head = 0;
+    private int count = 0;
+    private long dropped = 0;
+    private boolean closed = false;
+    // Run, and forgotten, once there is room again
+    private final List<Runnable> roomListeners = new ArrayList<>();
+
+    /**
+     * @param connection the connection to push to
+     * @param policy what to do when the buffer is full
+     * @param capacity the number of IDs the buffer holds
+     */
+    LogSubscriber(Socket connection, BackpressurePolicy policy, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("A subscription buffer must hold at least one ID");
+        }
+        this.connection = connection;
+        this.policy = policy;
+        this.capacity = capacity;
+        this.buffer = new int[capacity];
+    }
+
+    /**
+     * Starts pushing buffered IDs to the connection, and watching it for the subscriber to close it.
+     */
+    void start() {
+        PUSHERS.execute(this);
+        PUSHERS.execute(this::watchForEnd);
+    }
+
+    /**
+     * Buffers an entity ID to be pushed. Never waits: under BLOCK, a full buffer grows, and it is
+     * up to the producer to check hasRoom before producing more.
+     *
+     * @param entityId the ID of the entity whose event satisfied the log filter
+     * @return false if the subscription has ended
+     */
+    synchronized boolean offer(int entityId) {
+        if (closed) {
+            return false;
+        }
+        if (count == buffer.length) {
+            if (policy == BackpressurePolicy.DROP_OLDEST) {
+                head = (head + 1) % buffer.length;
+                count--;
+                dropped++;
+            } else {
+                grow();
+            }
+        }
+        buffer[(head + count) % buffer.length] = entityId;
+        count++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Returns whether more IDs can be offered without exceeding the buffer's capacity. If not,
+     * the listener is run once there is room again or the subscription ends.
+     *
+     * @param onRoom run once there is room, if there is none now
+     * @return true if there is room now, which there always is under DROP_OLDEST or once closed
+     */
+    synchronized boolean hasRoom(Runnable onRoom) {
+        if (policy == BackpressurePolicy.DROP_OLDEST || closed || count < capacity) {
+            return true;
+        }
+        roomListeners.add(onRoom);
+        return false;
+    }
+
+    /**
+     * Waits until more IDs can be offered without exceeding the buffer's capacity, or the subscription ends.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized void awaitRoom() throws InterruptedException {
+        while (policy == BackpressurePolicy.BLOCK && !closed && count >= capacity) {
+            wait();
+        }
+    }
+
+    /**
+     * @return the number of IDs dropped because the buffer was full
+     */
+    synchronized long dropped() {
+        return dropped;
+    }
+
+    /**
+     * @return false once the subscription has ended
+     */
+    synchronized boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Ends the subscription, closing the connection and releasing any producer waiting for room.
+     */
+    void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+        notifyRoom();
+    }
+
+    public void run() {
+        try {
+            ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+            oos.flush();
+            while (true) {
+                List<Integer> batch = takeBatch();
+                if (batch == null) {
+                    return;
+                }
+                notifyRoom();
+                oos.writeObject(batch);
+                // Forget the batches written, so the stream does not keep them
+                oos.reset();
+                oos.flush();
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    // the subscriber sends nothing after subscribing, so reading only returns once it closes the connection
+    private void watchForEnd() {
+        try {
+            InputStream in = connection.getInputStream();
+            while (in.read() >= 0) {
+                // Ignore anything sent
+            }
+        } catch (IllegalBlockingModeException e) {
+            // A connection owned by a selector cannot be read here; a failed push still ends the subscription
+            return;
+        } catch (IOException e) {
+            // The connection failed, or was closed here
+        }
+        close();
+    }
+
+    // waits for at least one ID and takes up to MAX_BATCH_SIZE of them, or returns null once closed
+    private synchronized List<Integer> takeBatch() {
+        while (count == 0 && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                close();
+            }
+        }
+        if (closed) {
+            return null;
+        }
+        List<Integer> batch = new ArrayList<>(Math.min(count, MAX_BATCH_SIZE));
+        while (count > 0 && batch.size() < MAX_BATCH_SIZE) {
+            batch.add(buffer[head]);
+            head = (head + 1) % buffer.length;
+            count--;
+        }
+        notifyAll();
+        return batch;
+    }
+
+    // runs the room listeners outside the lock, if there is room
+    private void notifyRoom() {
+        List<Runnable> listeners;
+        synchronized (this) {
+            if (roomListeners.isEmpty() || (!closed && count >= capacity)) {
+                return;
+            }
+            listeners = new ArrayList<>(roomListeners);
+            roomListeners.clear();
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    private void grow() {
+        int[] grown = new int[buffer.length * 2];
+        for (int i = 0; i < count; i++) {
+            grown[i] = buffer[(head + i) % buffer.length];
+        }
+        buffer = grown;
+        head = 0;
+    }
+}
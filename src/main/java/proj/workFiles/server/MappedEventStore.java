@@ -0,0 +1,493 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.event.ActuatorEvent;
+import cpen221.mp3.event.Event;
+import cpen221.mp3.event.SensorEvent;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.Serial;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.stream.Stream;
+
+/**
+ * An EventStore that appends events to memory-mapped segment files, so the history of a
+ * client lives outside the JVM heap and survives a restart.
+ * <p>
+ * Every segment file starts with a fixed header: the magic number, the layout version,
+ * the record size, the capacity and number of records, and the smallest and largest
+ * timestamp in the segment. Records have a fixed size and hold the timestamp, client ID,
+ * entity ID, value, the code of the entity type and the actuator and boolean value flags.
+ * Entity type names are kept in a separate dictionary file. The record count in the header
+ * is written after the record itself, so a record torn by a crash is never counted.
+ * <p>
+ * A new segment is started once the current one is full. At startup only the segment headers
+ * are read, so recovery takes time proportional to the number of segments, not of events.
+ * Queries return lazy list views whose events are read straight from the mapped buffers.
+ */
+public class MappedEventStore implements EventStore, Closeable {
+    public static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+
+    static final int MAGIC = 0x45565347;
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 32;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int RECORD_SIZE_OFFSET = 6;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int COUNT_OFFSET = 12;
+    private static final int MIN_TIMESTAMP_OFFSET = 16;
+    private static final int MAX_TIMESTAMP_OFFSET = 24;
+
+    private static final int TIMESTAMP = 0;
+    private static final int CLIENT_ID = 8;
+    private static final int ENTITY_ID = 12;
+    private static final int VALUE = 16;
+    private static final int TYPE_CODE = 24;
+    private static final int FLAGS = 26;
+    private static final byte ACTUATOR_FLAG = 1;
+    private static final byte TRUE_FLAG = 2;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String TYPES_FILE = "entity-types";
+
+    private final Path directory;
+    private final int segmentCapacity;
+    private volatile Segment[] segments = new Segment[0];
+    private volatile String[] entityTypes = new String[0];
+    private final Map<String, Short> typeCodes = new HashMap<>();
+    private volatile int size = 0;
+    private double latestTimeStamp = Double.NEGATIVE_INFINITY;
+    // The segments before this one are full and have been forced
+    private int forcedSegments = 0;
+
+    /**
+     * One mapped segment file.
+     */
+    static final class Segment {
+        final MappedByteBuffer buffer;
+        final int capacity;
+        final int firstRow;
+        // Written only by the appending thread, after the record and the header
+        volatile int count;
+
+        Segment(MappedByteBuffer buffer, int capacity, int firstRow, int count) {
+            this.buffer = buffer;
+            this.capacity = capacity;
+            this.firstRow = firstRow;
+            this.count = count;
+        }
+
+        double timestamp(int record) {
+            return buffer.getDouble(HEADER_SIZE + record * RECORD_SIZE + TIMESTAMP);
+        }
+    }
+
+    /**
+     * Opens the store in the given directory, recovering the segments already in it.
+     *
+     * @param directory the directory holding the segment files of one client
+     * @throws IOException if the directory cannot be created or a segment is corrupt
+     */
+    public MappedEventStore(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Opens the store in the given directory, recovering the segments already in it.
+     *
+     * @param directory the directory holding the segment files of one client
+     * @param segmentBytes the size of new segment files, header included
+     * @throws IOException if the directory cannot be created or a segment is corrupt
+     */
+    public MappedEventStore(Path directory, long segmentBytes) throws IOException {
+        long capacity = (segmentBytes - HEADER_SIZE) / RECORD_SIZE;
+        if (capacity < 1 || segmentBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid segment size " + segmentBytes);
+        }
+        this.directory = directory;
+        this.segmentCapacity = (int) capacity;
+        Files.createDirectories(directory);
+        recoverEntityTypes();
+        recoverSegments();
+    }
+
+    /**
+     * @return the directory holding the segment files
+     */
+    Path directory() {
+        return directory;
+    }
+
+    public synchronized boolean append(Event event) {
+        if (event.getTimeStamp() <= latestTimeStamp) {
+            return false;
+        }
+        Segment segment = segments.length == 0 ? null : segments[segments.length - 1];
+        try {
+            if (segment == null || segment.count == segment.capacity) {
+                segment = createSegment();
+            }
+            short typeCode = typeCode(event.getEntityType());
+            int record = segment.count;
+            int offset = HEADER_SIZE + record * RECORD_SIZE;
+            byte flags = 0;
+            if (event instanceof ActuatorEvent) {
+                flags |= ACTUATOR_FLAG;
+            }
+            if (event.getValueBoolean()) {
+                flags |= TRUE_FLAG;
+            }
+            MappedByteBuffer buffer = segment.buffer;
+            buffer.putDouble(offset + TIMESTAMP, event.getTimeStamp());
+            buffer.putInt(offset + CLIENT_ID, event.getClientId());
+            buffer.putInt(offset + ENTITY_ID, event.getEntityId());
+            buffer.putDouble(offset + VALUE, event.getValueDouble());
+            buffer.putShort(offset + TYPE_CODE, typeCode);
+            buffer.put(offset + FLAGS, flags);
+            if (record == 0) {
+                buffer.putDouble(MIN_TIMESTAMP_OFFSET, event.getTimeStamp());
+            }
+            buffer.putDouble(MAX_TIMESTAMP_OFFSET, event.getTimeStamp());
+            buffer.putInt(COUNT_OFFSET, record + 1);
+            segment.count = record + 1;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        latestTimeStamp = event.getTimeStamp();
+        size++;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public List<Event> eventsInWindow(double start, double end) {
+        int count = size;
+        Segment[] currentSegments = segments;
+        int from = firstRowAtOrAfter(currentSegments, count, start);
+        int to = firstRowAfter(currentSegments, count, end);
+        return new Rows(currentSegments, entityTypes, from, Math.max(from, to));
+    }
+
+    public List<Event> lastN(int n) {
+        int count = size;
+        return new Rows(segments, entityTypes, Math.max(0, count - Math.max(n, 0)), count);
+    }
+
+    /**
+     * @return the number of segment files in the store
+     */
+    public int segmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * Writes every segment changed since the last call back to its file, so the events stored
+     * so far survive a crash of the machine and not only of the process.
+     */
+    public synchronized void force() {
+        Segment[] current = segments;
+        for (int i = forcedSegments; i < current.length; i++) {
+            current[i].buffer.force();
+        }
+        // Only the last segment can still change
+        forcedSegments = Math.max(0, current.length - 1);
+    }
+
+    /**
+     * Writes every segment back to its file.
+     */
+    public synchronized void close() {
+        force();
+    }
+
+    private void recoverEntityTypes() throws IOException {
+        Path typesFile = directory.resolve(TYPES_FILE);
+        if (!Files.exists(typesFile)) {
+            return;
+        }
+        byte[] bytes = Files.readAllBytes(typesFile);
+        ByteArrayInputStream remaining = new ByteArrayInputStream(bytes);
+        DataInputStream in = new DataInputStream(remaining);
+        List<String> recovered = new ArrayList<>();
+        int complete = 0;
+        try {
+            while (remaining.available() > 0) {
+                recovered.add(in.readUTF());
+                complete = bytes.length - remaining.available();
+            }
+        } catch (EOFException e) {
+            // A name torn by a crash is cut off below; no record refers to it
+            try (FileChannel channel = FileChannel.open(typesFile, StandardOpenOption.WRITE)) {
+                channel.truncate(complete);
+            }
+        }
+        for (int i = 0; i < recovered.size(); i++) {
+            typeCodes.put(recovered.get(i), (short) i);
+        }
+        entityTypes = recovered.toArray(new String[0]);
+    }
+
+    private void recoverSegments() throws IOException {
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(directory)) {
+            files = listing.filter(path -> path.getFileName().toString().startsWith(SEGMENT_PREFIX))
+                    .sorted()
+                    .toList();
+        }
+        List<Segment> recovered = new ArrayList<>();
+        int rows = 0;
+        for (Path file : files) {
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            }
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(MAGIC_OFFSET) != MAGIC) {
+                throw new IOException("Not a segment file: " + file);
+            }
+            if (buffer.getShort(VERSION_OFFSET) != VERSION || buffer.getShort(RECORD_SIZE_OFFSET) != RECORD_SIZE) {
+                throw new IOException("Unsupported segment layout: " + file);
+            }
+            int capacity = buffer.getInt(CAPACITY_OFFSET);
+            int count = buffer.getInt(COUNT_OFFSET);
+            if (count < 0 || count > capacity || buffer.capacity() < HEADER_SIZE + (long) capacity * RECORD_SIZE) {
+                throw new IOException("Corrupt segment header: " + file);
+            }
+            if (count == 0) {
+                continue;
+            }
+            recovered.add(new Segment(buffer, capacity, rows, count));
+            rows += count;
+            latestTimeStamp = buffer.getDouble(MAX_TIMESTAMP_OFFSET);
+        }
+        segments = recovered.toArray(new Segment[0]);
+        size = rows;
+    }
+
+    private Segment createSegment() throws IOException {
+        Path file = directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, nextSegmentNumber(), SEGMENT_SUFFIX));
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) segmentCapacity * RECORD_SIZE);
+        }
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        buffer.putShort(VERSION_OFFSET, VERSION);
+        buffer.putShort(RECORD_SIZE_OFFSET, (short) RECORD_SIZE);
+        buffer.putInt(CAPACITY_OFFSET, segmentCapacity);
+        buffer.putInt(COUNT_OFFSET, 0);
+        Segment segment = new Segment(buffer, segmentCapacity, size, 0);
+        Segment[] grown = Arrays.copyOf(segments, segments.length + 1);
+        grown[segments.length] = segment;
+        segments = grown;
+        return segment;
+    }
+
+    // segment numbers keep increasing even when empty segments were skipped at recovery
+    private int nextSegmentNumber() throws IOException {
+        try (Stream<Path> listing = Files.list(directory)) {
+            return (int) listing.filter(path -> path.getFileName().toString().startsWith(SEGMENT_PREFIX)).count();
+        }
+    }
+
+    private short typeCode(String entityType) throws IOException {
+        Short code = typeCodes.get(entityType);
+        if (code != null) {
+            return code;
+        }
+        if (entityTypes.length > Short.MAX_VALUE) {
+            throw new IllegalStateException("Too many distinct entity types for one store");
+        }
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(directory.resolve(TYPES_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+            out.writeUTF(entityType);
+        }
+        short newCode = (short) entityTypes.length;
+        String[] grown = Arrays.copyOf(entityTypes, entityTypes.length + 1);
+        grown[newCode] = entityType;
+        entityTypes = grown;
+        typeCodes.put(entityType, newCode);
+        return newCode;
+    }
+
+    // returns the segment holding the given row
+    private static Segment segmentOf(Segment[] segments, int row) {
+        int low = 0;
+        int high = segments.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (segments[mid].firstRow <= row) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return segments[low];
+    }
+
+    private static double timestamp(Segment[] segments, int row) {
+        Segment segment = segmentOf(segments, row);
+        return segment.timestamp(row - segment.firstRow);
+    }
+
+    // returns the first row with timestamp >= time, or count if there is none
+    private static int firstRowAtOrAfter(Segment[] segments, int count, double time) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestamp(segments, mid) < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // returns the first row with timestamp > time, or count if there is none
+    private static int firstRowAfter(Segment[] segments, int count, double time) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestamp(segments, mid) <= time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * An immutable range of rows, viewed as a list of events.
+     * Serialized as an ArrayList of plain events, so responses can be written as before.
+     */
+    static final class Rows extends AbstractList<Event> implements RandomAccess, Serializable {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final transient Segment[] segments;
+        private final transient String[] entityTypes;
+        private final transient int from;
+        private final transient int to;
+
+        Rows(Segment[] segments, String[] entityTypes, int from, int to) {
+            this.segments = segments;
+            this.entityTypes = entityTypes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Event get(int index) {
+            if (index < 0 || index >= to - from) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            int row = from + index;
+            Segment segment = segmentOf(segments, row);
+            return new MappedEvent(segment.buffer, HEADER_SIZE + (row - segment.firstRow) * RECORD_SIZE, entityTypes);
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+
+        @Serial
+        private Object writeReplace() throws ObjectStreamException {
+            List<Event> events = new ArrayList<>(size());
+            for (int i = 0; i < size(); i++) {
+                events.add(((MappedEvent) get(i)).materialize());
+            }
+            return events;
+        }
+    }
+
+    /**
+     * A view of one record in a mapped segment. Serialized as a plain SensorEvent or ActuatorEvent.
+     */
+    static final class MappedEvent implements Event, Serializable {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final transient MappedByteBuffer buffer;
+        private final transient int offset;
+        private final transient String[] entityTypes;
+
+        MappedEvent(MappedByteBuffer buffer, int offset, String[] entityTypes) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.entityTypes = entityTypes;
+        }
+
+        public double getTimeStamp() {
+            return buffer.getDouble(offset + TIMESTAMP);
+        }
+
+        public int getClientId() {
+            return buffer.getInt(offset + CLIENT_ID);
+        }
+
+        public int getEntityId() {
+            return buffer.getInt(offset + ENTITY_ID);
+        }
+
+        public String getEntityType() {
+            return entityTypes[buffer.getShort(offset + TYPE_CODE)];
+        }
+
+        public double getValueDouble() {
+            return buffer.getDouble(offset + VALUE);
+        }
+
+        public boolean getValueBoolean() {
+            return (buffer.get(offset + FLAGS) & TRUE_FLAG) != 0;
+        }
+
+        boolean isActuator() {
+            return (buffer.get(offset + FLAGS) & ACTUATOR_FLAG) != 0;
+        }
+
+        Event materialize() {
+            if (isActuator()) {
+                return new ActuatorEvent(getTimeStamp(), getClientId(), getEntityId(), getEntityType(), getValueBoolean());
+            }
+            return new SensorEvent(getTimeStamp(), getClientId(), getEntityId(), getEntityType(), getValueDouble());
+        }
+
+        @Serial
+        private Object writeReplace() throws ObjectStreamException {
+            return materialize();
+        }
+
+        @Override
+        public String toString() {
+            return materialize().toString();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package cpen221.mp3.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the serialized responses to recent queries of one client, so a query repeated before any
+ * new event arrives is answered by writing the bytes already made.
+ * <p>
+ * Responses are keyed by the query's command and data and stamped with the event sequence number
+ * they were computed at. A response stamped with an older sequence number is stale and is computed
+ * again. The total size of the responses kept is bounded, the least recently used going first.
+ */
+class QueryResultCache {
+    static final long DEFAULT_MAX_BYTES = 4L << 20;
+
+    private final long maxBytes;
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    private static final class Entry {
+        private final long sequence;
+        private final byte[] response;
+
+        Entry(long sequence, byte[] response) {
+            this.sequence = sequence;
+            this.response = response;
+        }
+    }
+
+    QueryResultCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes the most bytes of responses kept
+     */
+    QueryResultCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cached response to a query if it is current, and otherwise computes, serializes and caches it.
+     *
+     * @param key the command and data of the query
+     * @param sequence the sequence number of the latest event
+     * @param compute computes the response object
+     * @return the serialized response, one complete object stream
+     */
+    byte[] get(String key, long sequence, Supplier<Object> compute) {
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.sequence == sequence) {
+                hits++;
+                return entry.response;
+            }
+            misses++;
+        }
+        byte[] response = serialize(compute.get());
+        synchronized (this) {
+            Entry previous = entries.remove(key);
+            if (previous != null) {
+                bytes -= previous.response.length;
+            }
+            if (response.length <= maxBytes) {
+                entries.put(key, new Entry(sequence, response));
+                bytes += response.length;
+                Iterator<Entry> eldest = entries.values().iterator();
+                while (bytes > maxBytes) {
+                    bytes -= eldest.next().response.length;
+                    eldest.remove();
+                }
+            }
+        }
+        return response;
+    }
+
+    /**
+     * @return the number of queries answered from the cache
+     */
+    synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of queries whose response had to be computed
+     */
+    synchronized long misses() {
+        return misses;
+    }
+
+    /**
+     * @return the total size of the responses kept
+     */
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    private static byte[] serialize(Object response) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(out)) {
+            oos.writeObject(response);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,127 @@
+package cpen221.mp3.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What a Server has derived from a persisted history, saved beside the history so a restart
+ * only has to replay the events stored after it rather than all of them.
+ * <p>
+ * A checkpoint holds the number of stored events it covers, the event count of every entity,
+ * which also counts the late events the store dropped, and the state of every entity model.
+ * It is written to a temporary file, forced and then moved over the previous checkpoint,
+ * so a crash leaves either the previous checkpoint or the new one, never a torn one.
+ */
+final class RecoveryCheckpoint {
+    static final String FILE_NAME = "checkpoint";
+
+    private static final int MAGIC = 0x45564350;
+    private static final short VERSION = 1;
+
+    private final int storedEvents;
+    private final int[] entityIds;
+    private final int[] counts;
+    private final Map<Integer, EntityModel> models;
+
+    private RecoveryCheckpoint(int storedEvents, int[] entityIds, int[] counts, Map<Integer, EntityModel> models) {
+        this.storedEvents = storedEvents;
+        this.entityIds = entityIds;
+        this.counts = counts;
+        this.models = models;
+    }
+
+    /**
+     * Saves the counts and models of a Server whose store holds the given number of events.
+     *
+     * @param file the checkpoint file
+     * @param storedEvents the number of events in the store
+     * @param activity the event count of every entity
+     * @param models the model of every entity with a stored event
+     * @throws IOException if the checkpoint cannot be written
+     */
+    static void write(Path file, int storedEvents, ActivityTracker activity, Map<Integer, EntityModel> models)
+            throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(temporary.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(storedEvents);
+            List<Integer> entities = activity.entities();
+            out.writeInt(entities.size());
+            for (int entityId : entities) {
+                out.writeInt(entityId);
+                out.writeInt(activity.count(entityId));
+            }
+            out.writeInt(models.size());
+            for (Map.Entry<Integer, EntityModel> entry : models.entrySet()) {
+                out.writeInt(entry.getKey());
+                entry.getValue().writeTo(out);
+            }
+            out.flush();
+            stream.getFD().sync();
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param file the checkpoint file
+     * @return the checkpoint, or null if there is none
+     * @throws IOException if the checkpoint cannot be read or is corrupt
+     */
+    static RecoveryCheckpoint read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+                throw new IOException("Not a checkpoint: " + file);
+            }
+            int storedEvents = in.readInt();
+            int entities = in.readInt();
+            int[] entityIds = new int[entities];
+            int[] counts = new int[entities];
+            for (int i = 0; i < entities; i++) {
+                entityIds[i] = in.readInt();
+                counts[i] = in.readInt();
+            }
+            int modelCount = in.readInt();
+            Map<Integer, EntityModel> models = new HashMap<>();
+            for (int i = 0; i < modelCount; i++) {
+                int entityId = in.readInt();
+                models.put(entityId, EntityModel.readFrom(in));
+            }
+            return new RecoveryCheckpoint(storedEvents, entityIds, counts, models);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of stored events the checkpoint covers
+     */
+    int storedEvents() {
+        return storedEvents;
+    }
+
+    /**
+     * Puts the saved counts and models into those of a Server that has none yet.
+     *
+     * @param activity the Server's event counts
+     * @param models the Server's models
+     */
+    void restore(ActivityTracker activity, Map<Integer, EntityModel> models) {
+        for (int i = 0; i < entityIds.length; i++) {
+            activity.add(entityIds[i], counts[i]);
+        }
+        models.putAll(this.models);
+    }
+}
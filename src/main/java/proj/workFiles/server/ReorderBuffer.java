@@ -0,0 +1,133 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.event.Event;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+/**
+ * Puts the events of one client back into timestamp order before they are processed.
+ * <p>
+ * Events are held in a min-heap on their timestamp. The watermark trails the largest
+ * timestamp seen by the lateness bound; every buffered event at or below the watermark
+ * is released in timestamp order. Each event also has a wall-clock deadline, the time it was
+ * received plus the client's max wait time, and once that passes it is released together with
+ * every buffered event before it, so no event waits here longer than the max wait time.
+ * <p>
+ * The stores only keep events whose timestamps strictly increase, and this buffer follows the
+ * same rule: an event that arrives with a timestamp at or below an already released timestamp is
+ * dropped as late, since the store would not keep it. An event sharing its timestamp with the one
+ * released before it is still released in order, but is counted as late for the same reason.
+ */
+class ReorderBuffer {
+    private final PriorityQueue<Held> byTimeStamp = new PriorityQueue<>(
+            Comparator.comparingDouble((Held held) -> held.event.getTimeStamp()).thenComparingInt(held -> held.event.getEntityId()));
+    // Also holds events already released, which are skipped once they reach the head
+    private final PriorityQueue<Held> byDeadline = new PriorityQueue<>(Comparator.comparingLong(held -> held.deadlineMillis));
+    private double latenessBound;
+    private double maxTimeStampSeen = Double.NEGATIVE_INFINITY;
+    private double lastReleased = Double.NEGATIVE_INFINITY;
+    private long lateDrops = 0;
+
+    /**
+     * A buffered event and the wall-clock time by which it must be released.
+     */
+    private static final class Held {
+        private final Event event;
+        private final long deadlineMillis;
+        private boolean released = false;
+
+        Held(Event event, long deadlineMillis) {
+            this.event = event;
+            this.deadlineMillis = deadlineMillis;
+        }
+    }
+
+    /**
+     * @param latenessBound how far, in timestamp units, an event may trail the latest timestamp
+     *                      seen and still be put back in order
+     */
+    ReorderBuffer(double latenessBound) {
+        this.latenessBound = latenessBound;
+    }
+
+    synchronized void setLatenessBound(double latenessBound) {
+        this.latenessBound = latenessBound;
+    }
+
+    /**
+     * Buffers an event and releases every event that the new watermark passes or whose deadline has passed.
+     *
+     * @param event the incoming event
+     * @param deadlineMillis the wall-clock time in milliseconds by which the event must be released
+     * @param nowMillis the current wall-clock time in milliseconds
+     * @param release receives the released events in timestamp order
+     * @return false if the event was dropped as late
+     */
+    synchronized boolean offer(Event event, long deadlineMillis, long nowMillis, Consumer<Event> release) {
+        if (event.getTimeStamp() <= lastReleased) {
+            lateDrops++;
+            return false;
+        }
+        Held held = new Held(event, deadlineMillis);
+        byTimeStamp.add(held);
+        byDeadline.add(held);
+        maxTimeStampSeen = Math.max(maxTimeStampSeen, event.getTimeStamp());
+        releaseUpTo(maxTimeStampSeen - latenessBound, release);
+        releaseDue(nowMillis, release);
+        return true;
+    }
+
+    /**
+     * Releases every buffered event whose deadline has passed, with every buffered event before it.
+     *
+     * @param nowMillis the current wall-clock time in milliseconds
+     * @param release receives the released events in timestamp order
+     */
+    synchronized void releaseDue(long nowMillis, Consumer<Event> release) {
+        while (!byDeadline.isEmpty() && byDeadline.peek().deadlineMillis <= nowMillis) {
+            Held held = byDeadline.poll();
+            if (!held.released) {
+                releaseUpTo(held.event.getTimeStamp(), release);
+            }
+        }
+    }
+
+    /**
+     * @return the earliest deadline of a buffered event in milliseconds, or Long.MAX_VALUE if none is buffered
+     */
+    synchronized long nextDeadline() {
+        while (!byDeadline.isEmpty() && byDeadline.peek().released) {
+            byDeadline.poll();
+        }
+        return byDeadline.isEmpty() ? Long.MAX_VALUE : byDeadline.peek().deadlineMillis;
+    }
+
+    /**
+     * @return the number of events currently held back
+     */
+    synchronized int depth() {
+        return byTimeStamp.size();
+    }
+
+    /**
+     * @return the number of events dropped because they could not be released after the events before them
+     */
+    synchronized long lateDrops() {
+        return lateDrops;
+    }
+
+    private void releaseUpTo(double watermark, Consumer<Event> release) {
+        while (!byTimeStamp.isEmpty() && byTimeStamp.peek().event.getTimeStamp() <= watermark) {
+            Held held = byTimeStamp.poll();
+            held.released = true;
+            if (held.event.getTimeStamp() == lastReleased) {
+                // Still handed on, like any late event, so it counts towards entity activity
+                lateDrops++;
+            }
+            lastReleased = held.event.getTimeStamp();
+            release.accept(held.event);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package cpen221.mp3.server;
+
+/**
+ * How much of a client's history a RingBufferEventStore keeps, and at what resolution.
+ * <p>
+ * The latest maxEvents events, and only those at most maxAge timestamp units older than
+ * the latest event, are kept as they are. Older events are folded into per-entity buckets
+ * bucketWidth timestamp units wide, of which each entity keeps at most maxBucketsPerEntity.
+ */
+public class RetentionPolicy {
+    private final int maxEvents;
+    private final double maxAge;
+    private final double bucketWidth;
+    private final int maxBucketsPerEntity;
+
+    /**
+     * @param maxEvents the number of events kept at full resolution
+     * @param maxAge how far behind the latest event, in timestamp units, an event is kept at full resolution;
+     *               Double.POSITIVE_INFINITY to only bound the number of events
+     * @param bucketWidth the width, in timestamp units, of a downsampled bucket
+     * @param maxBucketsPerEntity the number of downsampled buckets kept for each entity
+     */
+    public RetentionPolicy(int maxEvents, double maxAge, double bucketWidth, int maxBucketsPerEntity) {
+        if (maxEvents < 1 || !(maxAge > 0) || !(bucketWidth > 0) || maxBucketsPerEntity < 0) {
+            throw new IllegalArgumentException("Invalid retention policy");
+        }
+        this.maxEvents = maxEvents;
+        this.maxAge = maxAge;
+        this.bucketWidth = bucketWidth;
+        this.maxBucketsPerEntity = maxBucketsPerEntity;
+    }
+
+    public int getMaxEvents() {
+        return maxEvents;
+    }
+
+    public double getMaxAge() {
+        return maxAge;
+    }
+
+    public double getBucketWidth() {
+        return bucketWidth;
+    }
+
+    public int getMaxBucketsPerEntity() {
+        return maxBucketsPerEntity;
+    }
+
+    @Override
+    public String toString() {
+        return "RetentionPolicy{" +
+               "MaxEvents=" + maxEvents +
+               ",MaxAge=" + maxAge +
+               ",BucketWidth=" + bucketWidth +
+               ",MaxBucketsPerEntity=" + maxBucketsPerEntity +
+               '}';
+    }
+}
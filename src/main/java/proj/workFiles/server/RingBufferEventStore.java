@@ -0,0 +1,363 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.event.ActuatorEvent;
+import cpen221.mp3.event.Event;
+import cpen221.mp3.event.SensorEvent;
+
+import java.io.ObjectStreamException;
+import java.io.Serial;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An EventStore with a fixed memory footprint, for clients that send events indefinitely.
+ * <p>
+ * The latest events are kept at full resolution in preallocated ring buffer columns, as set
+ * by a RetentionPolicy. An event pushed out of the ring is folded into a downsampled bucket of
+ * its entity, which keeps the count, minimum, maximum and sum of the values in one interval.
+ * Each entity keeps a bounded number of buckets, so memory stays flat under any load.
+ * <p>
+ * A time window older than the ring is answered from the buckets: every bucket that starts
+ * in the window stands in for its events as one event at the timestamp of its first event,
+ * holding the mean value, or for actuators the value held by the majority of the events.
+ * lastN only returns events kept at full resolution.
+ * <p>
+ * Queries return lazy list views: the stand-ins for buckets are made up front, but events
+ * at full resolution are only read from the ring when an element is accessed. Reading an
+ * event that has been pushed out of the ring since the query throws ConcurrentModificationException.
+ */
+public class RingBufferEventStore implements EventStore {
+    private final RetentionPolicy policy;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final double[] timestamps;
+    private final int[] clientIds;
+    private final int[] entityIds;
+    private final String[] entityTypes;
+    private final double[] values;
+    private final boolean[] booleanValues;
+    private final boolean[] actuators;
+    private int head = 0;
+    private int count = 0;
+    // The number of events ever pushed out of the ring, which gives each kept event a fixed position
+    private long evicted = 0;
+    private double latestTimeStamp = Double.NEGATIVE_INFINITY;
+
+    private final Map<Integer, Deque<Bucket>> buckets = new HashMap<>();
+
+    /**
+     * The events of one entity within one interval, reduced to summary statistics.
+     */
+    public static final class Bucket {
+        private final int clientId;
+        private final int entityId;
+        private final String entityType;
+        private final boolean actuator;
+        private final long index;
+        private final double firstTimeStamp;
+        private double lastTimeStamp;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private double sum = 0;
+        private int count = 0;
+        private int trueCount = 0;
+
+        private Bucket(int clientId, int entityId, String entityType, boolean actuator, long index, double firstTimeStamp) {
+            this.clientId = clientId;
+            this.entityId = entityId;
+            this.entityType = entityType;
+            this.actuator = actuator;
+            this.index = index;
+            this.firstTimeStamp = firstTimeStamp;
+        }
+
+        private void add(double timeStamp, double value, boolean booleanValue) {
+            lastTimeStamp = timeStamp;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+            count++;
+            if (booleanValue) {
+                trueCount++;
+            }
+        }
+
+        private Event toEvent() {
+            if (actuator) {
+                return new ActuatorEvent(firstTimeStamp, clientId, entityId, entityType, trueCount * 2 >= count);
+            }
+            return new SensorEvent(firstTimeStamp, clientId, entityId, entityType, getMean());
+        }
+
+        public int getEntityId() {
+            return entityId;
+        }
+
+        public double getFirstTimeStamp() {
+            return firstTimeStamp;
+        }
+
+        public double getLastTimeStamp() {
+            return lastTimeStamp;
+        }
+
+        public double getMin() {
+            return min;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return sum / count;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return the number of events whose boolean value was true
+         */
+        public int getTrueCount() {
+            return trueCount;
+        }
+    }
+
+    /**
+     * A view of the events answering one query: stand-ins for buckets first, then a range of
+     * the ring, which is read when accessed. Serialized as a plain list of events.
+     */
+    final class Window extends AbstractList<Event> implements RandomAccess, Serializable {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final transient List<Event> summarized;
+        // The position of the first event in the range, counting every event ever pushed out of the ring
+        private final transient long first;
+        private final transient int length;
+
+        private Window(List<Event> summarized, long first, int length) {
+            this.summarized = summarized;
+            this.first = first;
+            this.length = length;
+        }
+
+        @Override
+        public Event get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            if (index < summarized.size()) {
+                return summarized.get(index);
+            }
+            lock.readLock().lock();
+            try {
+                long kept = first + (index - summarized.size()) - evicted;
+                if (kept < 0) {
+                    throw new ConcurrentModificationException("The event has been pushed out of the ring");
+                }
+                return eventAt(slot((int) kept));
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public int size() {
+            return summarized.size() + length;
+        }
+
+        @Serial
+        private Object writeReplace() throws ObjectStreamException {
+            return new ArrayList<>(this);
+        }
+    }
+
+    public RingBufferEventStore(RetentionPolicy policy) {
+        this.policy = policy;
+        int capacity = policy.getMaxEvents();
+        timestamps = new double[capacity];
+        clientIds = new int[capacity];
+        entityIds = new int[capacity];
+        entityTypes = new String[capacity];
+        values = new double[capacity];
+        booleanValues = new boolean[capacity];
+        actuators = new boolean[capacity];
+    }
+
+    public boolean append(Event event) {
+        lock.writeLock().lock();
+        try {
+            double timeStamp = event.getTimeStamp();
+            if (timeStamp <= latestTimeStamp) {
+                return false;
+            }
+            while (count > 0 && (count == timestamps.length || timeStamp - timestamps[head] > policy.getMaxAge())) {
+                evictOldest();
+            }
+            int slot = (head + count) % timestamps.length;
+            timestamps[slot] = timeStamp;
+            clientIds[slot] = event.getClientId();
+            entityIds[slot] = event.getEntityId();
+            entityTypes[slot] = event.getEntityType();
+            values[slot] = event.getValueDouble();
+            booleanValues[slot] = event.getValueBoolean();
+            actuators[slot] = event instanceof ActuatorEvent;
+            count++;
+            latestTimeStamp = timeStamp;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of events kept at full resolution
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<Event> eventsInWindow(double start, double end) {
+        lock.readLock().lock();
+        try {
+            List<Event> summarized = new ArrayList<>();
+            double oldestKept = count == 0 ? Double.POSITIVE_INFINITY : timestamps[head];
+            if (start < oldestKept) {
+                for (Deque<Bucket> entityBuckets : buckets.values()) {
+                    for (Bucket bucket : entityBuckets) {
+                        if (bucket.firstTimeStamp >= start && bucket.firstTimeStamp <= end) {
+                            summarized.add(bucket.toEvent());
+                        }
+                    }
+                }
+                summarized.sort(Comparator.comparingDouble(Event::getTimeStamp).thenComparingInt(Event::getEntityId));
+            }
+            int from = firstIndexAtOrAfter(start);
+            int to = Math.max(from, firstIndexAfter(end));
+            return new Window(summarized, evicted + from, to - from);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<Event> lastN(int n) {
+        lock.readLock().lock();
+        try {
+            int from = Math.max(0, count - Math.max(n, 0));
+            return new Window(List.of(), evicted + from, count - from);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param entityId the ID of the entity
+     * @return the downsampled buckets of the entity, oldest first
+     */
+    public List<Bucket> downsampledBuckets(int entityId) {
+        lock.readLock().lock();
+        try {
+            Deque<Bucket> entityBuckets = buckets.get(entityId);
+            return entityBuckets == null ? new ArrayList<>() : new ArrayList<>(entityBuckets);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of downsampled buckets kept over all entities
+     */
+    public int downsampledBucketCount() {
+        lock.readLock().lock();
+        try {
+            int total = 0;
+            for (Deque<Bucket> entityBuckets : buckets.values()) {
+                total += entityBuckets.size();
+            }
+            return total;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int slot(int index) {
+        return (head + index) % timestamps.length;
+    }
+
+    private Event eventAt(int slot) {
+        if (actuators[slot]) {
+            return new ActuatorEvent(timestamps[slot], clientIds[slot], entityIds[slot], entityTypes[slot], booleanValues[slot]);
+        }
+        return new SensorEvent(timestamps[slot], clientIds[slot], entityIds[slot], entityTypes[slot], values[slot]);
+    }
+
+    // returns the first index with timestamp >= time, or count if there is none
+    private int firstIndexAtOrAfter(double time) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestamps[slot(mid)] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // returns the first index with timestamp > time, or count if there is none
+    private int firstIndexAfter(double time) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestamps[slot(mid)] <= time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void evictOldest() {
+        int slot = head;
+        head = (head + 1) % timestamps.length;
+        count--;
+        evicted++;
+        if (policy.getMaxBucketsPerEntity() > 0) {
+            long index = (long) Math.floor(timestamps[slot] / policy.getBucketWidth());
+            Deque<Bucket> entityBuckets = buckets.computeIfAbsent(entityIds[slot], id -> new ArrayDeque<>());
+            Bucket bucket = entityBuckets.peekLast();
+            if (bucket == null || bucket.index != index) {
+                if (entityBuckets.size() == policy.getMaxBucketsPerEntity()) {
+                    entityBuckets.pollFirst();
+                }
+                bucket = new Bucket(clientIds[slot], entityIds[slot], entityTypes[slot], actuators[slot], index, timestamps[slot]);
+                entityBuckets.addLast(bucket);
+            }
+            bucket.add(timestamps[slot], values[slot], booleanValues[slot]);
+        }
+        entityTypes[slot] = null;
+    }
+}
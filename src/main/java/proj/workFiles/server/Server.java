@@ -4,45 +4,180 @@ import cpen221.mp3.client.RequestCommand;
 import cpen221.mp3.client.RequestType;
 import cpen221.mp3.entity.Actuator;
 import cpen221.mp3.client.Client;
+import cpen221.mp3.client.EventStream;
 import cpen221.mp3.event.Event;
 import cpen221.mp3.client.Request;
 import cpen221.mp3.event.RequestOrEvent;
 import cpen221.mp3.event.TimeToProcess;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.Socket;
-import java.sql.Time;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 import static java.lang.Double.parseDouble;
 
 public class Server implements Runnable {
+    private static final int TASKS_PER_DRAIN = 64;
+    // The oldest logged events are dropped beyond this, so an unread log cannot grow without bound
+    private static final int MAX_LOGGED_EVENTS = 100_000;
+    // The buffer size of a log subscription that does not give one
+    static final int DEFAULT_SUBSCRIBER_CAPACITY = 1024;
+    // The number of events in each chunk of a streamed response
+    static final int STREAM_CHUNK_SIZE = 1024;
+    // The number of stored events between two recovery checkpoints of a persisted history
+    static final int CHECKPOINT_INTERVAL = 100_000;
+
     private final Client client;
     private final Object waitTimeLock = new Object();
     private double maxWaitTime = 2; // in seconds
 
     // you may need to add additional private fields
     private final BlockingQueue<TimeToProcess> tasksToDo = new LinkedBlockingQueue<>();
-    private final Set<Integer> entitySet = new HashSet<>();
     public final Map<Integer, Integer> actuator_port_map = new HashMap<>();
     public final Map<Integer, String> actuator_IP_map = new HashMap<>();
-    private final Map<Integer, Integer> entity_activity = new HashMap<>();
-    private final List<Event> eventsList = new ArrayList<>();
-    private final List<Event> logList = new ArrayList<>();
-    private final Map<Integer, Filter> filterToActuatorToggleMap = new HashMap<>();
-    private final Map<Integer, Filter> filterToActuatorSetMap = new HashMap<>();
+    private final ActivityTracker entityActivity = new ActivityTracker();
+    // Kept up to date as events are stored, so predictions never scan the history
+    private final Map<Integer, EntityModel> entityModels = new ConcurrentHashMap<>();
+    private final EventStore eventStore;
+    // The timestamp of the latest event the store held when this Server was created
+    private final double recoveredThrough;
+    // The timestamp of the latest event the persisted history has forced to disk with a checkpoint
+    private volatile double durableThrough = Double.NEGATIVE_INFINITY;
+    // Where the counts and models are saved for a restart, or null if the history is not persisted
+    private final Path checkpointFile;
+    private final Deque<Event> logList = new ArrayDeque<>();
+    // While there are subscribers, logged entity IDs are pushed to them instead of kept for readLogs
+    private final List<LogSubscriber> logSubscribers = new CopyOnWriteArrayList<>();
+    // Counts every event processed, so cached query results can tell whether they are still current
+    private final AtomicLong eventSequence = new AtomicLong();
+    private final QueryResultCache queryResultCache = new QueryResultCache();
+    // Rules registered by actuator ID, indexed so an event only visits the rules it satisfies
+    private final FilterIndex<Integer> filterToActuatorToggleMap = new FilterIndex<>();
+    private final FilterIndex<Integer> filterToActuatorSetMap = new FilterIndex<>();
     private final Object logFilterLock = new Object();
     private Filter logFilter;
     private Socket clientConnectionSocket;
+    // Puts events back into timestamp order, allowing them to trail by up to maxWaitTime
+    private final ReorderBuffer reorderBuffer = new ReorderBuffer(maxWaitTime * 1000);
+    private final ScheduledExecutorService sharedPool;
+    private final ActuatorCommandDispatcher actuatorCommands = new ActuatorCommandDispatcher();
+    private final CommandCoalescer actuatorCommandCoalescer = new CommandCoalescer(actuatorCommands);
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean releaseCheckScheduled = new AtomicBoolean(false);
 
     public Server(Client client) {
+        this(client, null);
+    }
+
+    /**
+     * Creates a Server that runs as an actor on a shared pool instead of on its own thread.
+     * Its tasks are still processed one at a time and in the order they were received,
+     * but no thread is held while the client is idle. run() must not be called on such a Server.
+     *
+     * @param client the client served
+     * @param sharedPool the pool that runs the tasks of many Servers, or null to process tasks in run()
+     */
+    public Server(Client client, ScheduledExecutorService sharedPool) {
+        this(client, sharedPool, new ColumnarEventStore());
+    }
+
+    /**
+     * Creates a Server that keeps the client's history in the given store.
+     * If the store already holds events, for example after a restart, the entities
+     * and their activity are rebuilt from them. A persisted store also keeps a checkpoint
+     * of them every CHECKPOINT_INTERVAL events, and only the events after it are replayed.
+     *
+     * @param client the client served
+     * @param sharedPool the pool that runs the tasks of many Servers, or null to process tasks in run()
+     * @param eventStore the store for the client's events
+     */
+    public Server(Client client, ScheduledExecutorService sharedPool, EventStore eventStore) {
         this.client = client;
+        this.sharedPool = sharedPool;
+        this.eventStore = eventStore;
+        this.checkpointFile = eventStore instanceof MappedEventStore mapped
+                ? mapped.directory().resolve(RecoveryCheckpoint.FILE_NAME) : null;
+        int covered = restoreCheckpoint();
+        for (Event event : eventStore.lastN(eventStore.size() - covered)) {
+            entityActivity.increment(event.getEntityId());
+            entityModels.computeIfAbsent(event.getEntityId(), id -> new EntityModel()).update(event);
+        }
+        List<Event> latest = eventStore.lastN(1);
+        this.recoveredThrough = latest.isEmpty() ? Double.NEGATIVE_INFINITY : latest.get(0).getTimeStamp();
+        if (eventStore instanceof MappedEventStore mapped) {
+            mapped.force();
+            durableThrough = recoveredThrough;
+        }
+    }
+
+    // restores the counts and models of the latest checkpoint, returning the number of stored events it covers
+    private int restoreCheckpoint() {
+        if (checkpointFile == null) {
+            return 0;
+        }
+        try {
+            RecoveryCheckpoint checkpoint = RecoveryCheckpoint.read(checkpointFile);
+            // A checkpoint ahead of the store, which lost events it covers, does not match it
+            if (checkpoint == null || checkpoint.storedEvents() > eventStore.size()) {
+                return 0;
+            }
+            checkpoint.restore(entityActivity, entityModels);
+            return checkpoint.storedEvents();
+        } catch (IOException e) {
+            System.err.println("Error: client " + getClientID() + " rebuilds its history in full: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    // forces the stored events to disk before saving the checkpoint that covers them, returning false if either fails
+    private boolean writeCheckpoint() {
+        try {
+            ((MappedEventStore) eventStore).force();
+            RecoveryCheckpoint.write(checkpointFile, eventStore.size(), entityActivity, entityModels);
+            return true;
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Error: client " + getClientID() + " could not write a checkpoint: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Returns whether an event replayed after a restart is already accounted for by the history
+     * this Server was recovered from, so processing it again would count it twice.
+     *
+     * @param event the replayed event
+     * @return true if the event is not newer than the latest recovered event
+     */
+    public boolean isRecovered(Event event) {
+        return event.getTimeStamp() <= recoveredThrough;
+    }
+
+    /**
+     * Returns whether every event of this client up to the given timestamp is on disk in the persisted
+     * history and covered by a checkpoint, so a write-ahead log no longer needs to keep it.
+     * Always false if the history is not persisted.
+     *
+     * @param timeStamp the timestamp of a logged event
+     * @return true if the event would be skipped as recovered after a restart
+     */
+    public boolean isDurable(double timeStamp) {
+        return timeStamp <= durableThrough;
     }
 
     public int getClientID() {
@@ -62,6 +197,7 @@ public class Server implements Runnable {
         synchronized (waitTimeLock) {
             this.maxWaitTime = maxWaitTime;
         }
+        reorderBuffer.setLatenessBound(maxWaitTime * 1000);
         // implement this method
 
         // Important note: updating maxWaitTime may not be as simple as
@@ -90,9 +226,7 @@ public class Server implements Runnable {
      */
     public void setActuatorStateIf(Filter filter, Actuator actuator) {
         // implement this method and send the appropriate SeverCommandToActuator as a Request to the actuator
-        synchronized (filterToActuatorSetMap) {
-            filterToActuatorSetMap.put(actuator.getId(), filter);
-        }
+        filterToActuatorSetMap.put(actuator.getId(), filter);
     }
     
     /**
@@ -108,9 +242,7 @@ public class Server implements Runnable {
      */
     public void toggleActuatorStateIf(Filter filter, Actuator actuator) {
         // implement this method and send the appropriate SeverCommandToActuator as a Request to the actuator
-        synchronized (filterToActuatorToggleMap) {
-            filterToActuatorToggleMap.put(actuator.getId(), filter);
-        }
+        filterToActuatorToggleMap.put(actuator.getId(), filter);
     }
 
     /**
@@ -134,10 +266,38 @@ public class Server implements Runnable {
      * @return list of event IDs 
      */
     public List<Integer> readLogs() {
-        logList.sort(Comparator.comparingDouble(Event::getTimeStamp));
-        List<Integer> returnList = new ArrayList<>(logList.stream().map(Event::getEntityId).toList());
-        logList.clear();
-        return returnList;
+        // Events are logged as they are stored, which is in timestamp order, so the log needs no sorting
+        synchronized (logList) {
+            List<Integer> returnList = new ArrayList<>(logList.size());
+            for (Event event : logList) {
+                returnList.add(event.getEntityId());
+            }
+            logList.clear();
+            return returnList;
+        }
+    }
+
+    /**
+     * Pushes the IDs of the entities whose events satisfy the logIf filter to the given connection as they occur,
+     * instead of keeping them for readLogs, until the connection is closed.
+     * Each push is a List of entity IDs in timestamp order, written on one object stream.
+     *
+     * @param connection the connection to push to
+     * @param policy what to do when the subscriber reads too slowly for its buffer
+     * @param capacity the number of entity IDs buffered for the subscriber
+     */
+    public void subscribeToLogs(Socket connection, BackpressurePolicy policy, int capacity) {
+        LogSubscriber subscriber = new LogSubscriber(connection, policy, capacity);
+        logSubscribers.add(subscriber);
+        subscriber.start();
+    }
+
+    /**
+     * @return the number of log subscriptions that have not ended
+     */
+    public int getLogSubscriberCount() {
+        logSubscribers.removeIf(subscriber -> !subscriber.isOpen());
+        return logSubscribers.size();
     }
 
     /**
@@ -150,22 +310,7 @@ public class Server implements Runnable {
      * @return list of the events for the client in the given time window
      */
     public List<Event> eventsInTimeWindow(TimeWindow timeWindow) {
-        double start = timeWindow.startTime;
-        double end = timeWindow.endTime;
-
-        // Use a linkedList because we could be adding hundreds of events and rebuilding an arraylist each time sucks.
-        List<Event> eventsInWindow = new LinkedList<>();
-
-        for(Event event : eventsList) {
-            if(event.getTimeStamp() >= start && event.getTimeStamp() <= end) {
-                eventsInWindow.add(event);
-            }
-        }
-
-        // ArrayLists are more useful for retrieving data, which after this point is the more likely operation.
-        eventsInWindow = new ArrayList<>(eventsInWindow);
-
-        return eventsInWindow;
+        return eventStore.eventsInWindow(timeWindow.getStartTime(), timeWindow.getEndTime());
     }
 
      /**
@@ -176,7 +321,7 @@ public class Server implements Runnable {
      * @return list of all the entities of the client for which we have received events so far
      */
     public List<Integer> getAllEntities() {
-        return new ArrayList<>(entitySet);
+        return entityActivity.entities();
     }
 
     /**
@@ -191,15 +336,7 @@ public class Server implements Runnable {
      * @return list of the latest n events of the client
      */
     public List<Event> lastNEvents(int n) {
-        List<Event> returnList;
-        synchronized (eventsList) {
-            if(n > eventsList.size()) {
-                n = eventsList.size();
-            }
-            returnList = new ArrayList<>(eventsList.subList(eventsList.size() - n, eventsList.size()));
-        }
-
-        return returnList;
+        return eventStore.lastN(n);
     }
 
     /**
@@ -211,19 +348,21 @@ public class Server implements Runnable {
      * @return the most active entity ID of the client
      */
     public int mostActiveEntity() {
-        AtomicInteger maxTimes = new AtomicInteger();
-        AtomicInteger mostActive = new AtomicInteger(-1);
-        synchronized (entity_activity) {
-            entity_activity.forEach((x, y) -> {
-                if (y > maxTimes.get()) {
-                    maxTimes.set(y);
-                    mostActive.set(x);
-                } else if (y == maxTimes.get() && x > mostActive.get()) {
-                    mostActive.set(x);
-                }
-            });
-        }
-        return mostActive.get();
+        return entityActivity.mostActive();
+    }
+
+    /**
+     * returns the IDs of the k most active entities of the client
+     * in terms of the number of events they have generated, most active first.
+     * <p>
+     * Ties are broken in favour of the largest ID, as in mostActiveEntity.
+     * If the client has fewer than k entities, all of them are returned.
+     *
+     * @param k the number of entities to return
+     * @return the k most active entity IDs of the client
+     */
+    public List<Integer> topKActiveEntities(int k) {
+        return entityActivity.topK(k);
     }
 
     /**
@@ -239,8 +378,8 @@ public class Server implements Runnable {
      * @return list of the predicted timestamps
      */
     public List<Double> predictNextNTimeStamps(int entityId, int n) {
-        // implement this method
-        return null;
+        EntityModel model = entityModels.get(entityId);
+        return model == null ? new ArrayList<>() : model.predictTimeStamps(n);
     }
 
     /**
@@ -258,88 +397,150 @@ public class Server implements Runnable {
      * @return list of the predicted timestamps
      */
     public List<Object> predictNextNValues(int entityId, int n) {
-        return null;
+        EntityModel model = entityModels.get(entityId);
+        return model == null ? new ArrayList<>() : model.predictValues(n);
     }
 
-    public void processIncomingEvent(Event event) {
+    /**
+     * Predicts the next n values of many entities of the client at once, in parallel.
+     * Each entity is predicted as by predictNextNValues, so an entity without events gets an empty list.
+     *
+     * @param entityIds the IDs of the entities
+     * @param n the number of values to predict for each entity
+     * @return the predicted values of each entity, by entity ID
+     */
+    public Map<Integer, List<Object>> predictNextNValues(Collection<Integer> entityIds, int n) {
+        int[] ids = entityIds.stream().mapToInt(Integer::intValue).toArray();
+        return ForkJoinPool.commonPool().invoke(new BatchPrediction(ids, n, entityModels::get));
+    }
 
-        int eventEntityID = event.getEntityId();
+    /**
+     * Returns the number of events held back by the reorder stage waiting for the watermark to pass them.
+     *
+     * @return the current reorder buffer depth
+     */
+    public int getReorderBufferDepth() {
+        return reorderBuffer.depth();
+    }
 
-        if(entitySet.add(eventEntityID)) {
-            entity_activity.put(eventEntityID, 1);
-        } else {
-            entity_activity.put(eventEntityID, entity_activity.get(eventEntityID) + 1);
-        }
+    /**
+     * Returns the number of events dropped because they could not be processed in timestamp order:
+     * they arrived after a later event had been released, or shared its timestamp with the event before them.
+     *
+     * @return the number of late events dropped so far
+     */
+    public long getLateDropCount() {
+        return reorderBuffer.lateDrops();
+    }
+
+    /**
+     * Returns the dispatcher that sends this client's actuator commands,
+     * for its delivery counters and to be told about commands that could not be delivered.
+     *
+     * @return the actuator command dispatcher of the client
+     */
+    public ActuatorCommandDispatcher getActuatorCommandDispatcher() {
+        return actuatorCommands;
+    }
+
+    /**
+     * Returns the coalescer that merges this client's actuator commands before they are dispatched,
+     * for its counters of commands received, coalesced and sent.
+     *
+     * @return the actuator command coalescer of the client
+     */
+    public CommandCoalescer getActuatorCommandCoalescer() {
+        return actuatorCommandCoalescer;
+    }
+
+    /**
+     * Merges the commands sent to each actuator within a window and limits how often each actuator is sent one,
+     * so a burst of matching events does not turn into a burst of commands.
+     *
+     * @param windowMillis how long, in milliseconds, commands to an actuator are collected before one is sent
+     * @param maxCommandsPerSecond the most commands sent to one actuator per second; Double.POSITIVE_INFINITY for no limit
+     */
+    public void coalesceActuatorCommands(long windowMillis, double maxCommandsPerSecond) {
+        actuatorCommandCoalescer.configure(windowMillis, maxCommandsPerSecond);
+    }
+
+    /**
+     * Returns the number of ANALYSIS queries answered with a cached response,
+     * because no event had arrived since the same query was last answered.
+     *
+     * @return the number of cache hits
+     */
+    public long getQueryCacheHits() {
+        return queryResultCache.hits();
+    }
+
+    /**
+     * Returns the number of ANALYSIS queries, other than reading the logs, whose response had to be computed.
+     *
+     * @return the number of cache misses
+     */
+    public long getQueryCacheMisses() {
+        return queryResultCache.misses();
+    }
+
+    public void processIncomingEvent(Event event) {
+
+        // Even a dropped event changes the entity activity, so it also makes cached results stale
+        eventSequence.incrementAndGet();
+        entityActivity.increment(event.getEntityId());
         // If the event is too late, then we are choosing to drop it entirely. Not dropping it could cause some weirdness (ie, a switch changing state that we want in the opposite state).
         // We choose to log a dropped log under entity activity because it does represent an event that an entity did send, even though it arrived too late.
-        synchronized (eventsList) {
-            if(eventsList.isEmpty() || event.getTimeStamp() > eventsList.get(eventsList.size()-1).getTimeStamp()) {
-                eventsList.add(event);
-            } else {
-                return;
-            }
+        if(!eventStore.append(event)) {
+            return;
+        }
+        entityModels.computeIfAbsent(event.getEntityId(), id -> new EntityModel()).update(event);
+        if (checkpointFile != null && eventStore.size() % CHECKPOINT_INTERVAL == 0 && writeCheckpoint()) {
+            durableThrough = event.getTimeStamp();
         }
         // Process events here
 
+        boolean logged;
         synchronized (logFilterLock) {
+            logged = logFilter != null && logFilter.satisfies(event);
+        }
+        if (logged && !logSubscribers.isEmpty()) {
+            // A BLOCK subscriber holds up the next tasks instead, once its buffer is full
+            for (LogSubscriber subscriber : logSubscribers) {
+                if (!subscriber.offer(event.getEntityId())) {
+                    logSubscribers.remove(subscriber);
+                }
+            }
+        } else if (logged) {
             synchronized (logList) {
-                if(logFilter != null && logFilter.satisfies(event)) {
-                    logList.add(event);
+                if (logList.size() == MAX_LOGGED_EVENTS) {
+                    logList.removeFirst();
                 }
+                logList.add(event);
             }
         }
 
-        synchronized (filterToActuatorToggleMap) {
-            filterToActuatorToggleMap.forEach( (x,y) -> {
-                if(y.satisfies(event)) {
-                    Socket respondSocket;
-                    int actuatorPort;
-                    String actuatorIP;
-                    Request response = new Request(RequestType.CONTROL, RequestCommand.CONTROL_TOGGLE_ACTUATOR_STATE, "");
-                    synchronized (actuator_port_map) {
-                        synchronized (actuator_IP_map) {
-                            actuatorPort = actuator_port_map.get(x);
-                            actuatorIP = actuator_IP_map.get(x);
-                        }
-                    }
-                    try {
-                        respondSocket = new Socket( actuatorIP, actuatorPort);
-                        ObjectOutputStream oos = new ObjectOutputStream(respondSocket.getOutputStream());
-                        oos.writeObject(response);
-                        oos.flush();
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                }
-            });
-        }
-
-        synchronized (filterToActuatorSetMap) {
-            filterToActuatorSetMap.forEach( (x,y) -> {
-                if(y.satisfies(event)) {
-                    Socket respondSocket;
-                    int actuatorPort;
-                    String actuatorIP;
-                    Request response = new Request(RequestType.CONTROL, RequestCommand.CONTROL_SET_ACTUATOR_STATE, "true");
-                    synchronized (actuator_port_map) {
-                        synchronized (actuator_IP_map) {
-                            actuatorPort = actuator_port_map.get(x);
-                            actuatorIP = actuator_IP_map.get(x);
-                        }
-                    }
-                    try {
-                        respondSocket = new Socket( actuatorIP, actuatorPort);
-                        ObjectOutputStream oos = new ObjectOutputStream(respondSocket.getOutputStream());
-                        oos.writeObject(response);
-                        oos.flush();
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                }
-            });
+        // Commands are only queued here, to be merged and sent; a slow or unreachable actuator never holds up the client's events
+        for (int x : filterToActuatorToggleMap.match(event)) {
+            sendToActuator(x, new Request(RequestType.CONTROL, RequestCommand.CONTROL_TOGGLE_ACTUATOR_STATE, ""));
+        }
+
+        for (int x : filterToActuatorSetMap.match(event)) {
+            sendToActuator(x, new Request(RequestType.CONTROL, RequestCommand.CONTROL_SET_ACTUATOR_STATE, "true"));
         }
     }
 
+    private void sendToActuator(int actuatorId, Request command) {
+        Integer actuatorPort;
+        String actuatorIP;
+        synchronized (actuator_port_map) {
+            synchronized (actuator_IP_map) {
+                actuatorPort = actuator_port_map.get(actuatorId);
+                actuatorIP = actuator_IP_map.get(actuatorId);
+            }
+        }
+        actuatorCommandCoalescer.submit(actuatorId, actuatorPort == null ? null : actuatorIP, actuatorPort == null ? -1 : actuatorPort, command);
+    }
+
     public void processIncomingRequest(Request request) {
         if(request.getRequestType() == RequestType.CONFIG) {
             processRequestConfig(request);
@@ -354,53 +555,134 @@ public class Server implements Runnable {
 
     public void processIncomingEventOrRequest(TimeToProcess eventOrRequest) {
         tasksToDo.add(eventOrRequest);
+        if (sharedPool != null) {
+            scheduleDrain();
+        }
     }
 
     public void run() {
         while(true) {
             TimeToProcess requestOrEvent;
             try {
-                requestOrEvent = tasksToDo.take();
+                long nextDeadline = reorderBuffer.nextDeadline();
+                if (nextDeadline != Long.MAX_VALUE) {
+                    // Wake up by the next deadline so a quiet client's buffered events are still released in time
+                    requestOrEvent = tasksToDo.poll(Math.max(0, nextDeadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                } else {
+                    requestOrEvent = tasksToDo.take();
+                }
             } catch (InterruptedException e) {
                 continue;
             }
 
-            if(requestOrEvent.getType() == RequestOrEvent.EVENT) {
-                processIncomingEvent(requestOrEvent.getOriginalEvent());
-            } else {
-                this.clientConnectionSocket = requestOrEvent.getClientSocket();
-                processIncomingRequest(requestOrEvent.getOriginalRequest());
+            try {
+                // This is the client's own thread, so it can wait for a BLOCK subscriber to catch up
+                for (LogSubscriber subscriber : logSubscribers) {
+                    subscriber.awaitRoom();
+                }
+            } catch (InterruptedException e) {
+                // Process the task anyway
+            }
+
+            try {
+                if (requestOrEvent == null) {
+                    reorderBuffer.releaseDue(System.currentTimeMillis(), this::processIncomingEvent);
+                } else {
+                    processTask(requestOrEvent);
+                }
+            } catch (RuntimeException e) {
+                // One failed task, such as a request whose client left before its response, must not stop the client
+                System.err.println("Error: client " + getClientID() + " failed to process a task: " + e);
             }
         }
     }
 
-    private Filter parseFilter(String filterString) throws FilterException {
-        if(filterString.matches(".*BooleanOperator.*")) {
-            Pattern pattern = Pattern.compile("Filter\\{BooleanOperator=(.*), BooleanValue=(.*)}");
-            Matcher matcher = pattern.matcher(filterString);
-            if(!matcher.find()) throw new FilterException();
-            return new Filter(BooleanOperator.valueOf(matcher.group(0)), Boolean.parseBoolean(matcher.group(1)));
-        } else if (filterString.matches(".*DoubleField")) {
-            Pattern pattern = Pattern.compile("Filter\\{DoubleField=(.*), DoubleOperator=(.*), DoubleValue=(.*)}");
-            Matcher matcher = pattern.matcher(filterString);
-            if(!matcher.find()) throw new FilterException();
-            return new Filter(matcher.group(0), DoubleOperator.valueOf(matcher.group(1)), Double.parseDouble(matcher.group(2)));
-        } else if (filterString.matches(".*ComposedFilters.*")) {
-            Pattern pattern = Pattern.compile("Filter\\{ComposedFilters=(.*)}");
-            Matcher matcher = pattern.matcher(filterString);
-            if(!matcher.find()) throw new FilterException();
-            String listString = matcher.group(0);
-            listString = listString.substring(1, listString.length() - 1);
-
-            Pattern pattern1 = Pattern.compile("Filter\\{ComposedFilters=\\[.*\\]}|Filter\\{(.+?)}");
-            Matcher matcher1 = pattern1.matcher(listString);
-            List<Filter> filterList = new ArrayList<>();
-            while(matcher1.find()) {
-                filterList.add(parseFilter(matcher1.group(0)));
+    private void processTask(TimeToProcess requestOrEvent) {
+        long now = System.currentTimeMillis();
+        if(requestOrEvent.getType() == RequestOrEvent.EVENT) {
+            Event event = requestOrEvent.getOriginalEvent();
+            // An event is scheduled at the time it was received, and the reorder buffer holds it for at most maxWaitTime
+            long deadline = (long) (requestOrEvent.getTimeAtWhichToProcess() + getMaxWaitTime() * 1000);
+            if (!reorderBuffer.offer(event, deadline, now, this::processIncomingEvent)) {
+                // Late events still count towards entity activity; processIncomingEvent drops them after counting
+                processIncomingEvent(event);
+            }
+        } else {
+            // Events received before the request are due by now, so the request sees them
+            reorderBuffer.releaseDue(now, this::processIncomingEvent);
+            this.clientConnectionSocket = requestOrEvent.getClientSocket();
+            processIncomingRequest(requestOrEvent.getOriginalRequest());
+        }
+    }
+
+    // returns false, and has the drain scheduled once there is room, if a BLOCK subscriber's buffer is full
+    private boolean logSubscribersHaveRoom() {
+        for (LogSubscriber subscriber : logSubscribers) {
+            if (!subscriber.hasRoom(this::scheduleDrain)) {
+                return false;
             }
-            return new Filter(filterList);
         }
-        throw new FilterException();
+        return true;
+    }
+
+    // At most one drain of a Server is queued or running at a time, which keeps its tasks in order
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            sharedPool.execute(this::drain);
+        }
+    }
+
+    /**
+     * Processes a bounded batch of queued tasks on the shared pool, then yields the pool thread.
+     */
+    private void drain() {
+        boolean blocked = false;
+        try {
+            for (int i = 0; i < TASKS_PER_DRAIN; i++) {
+                if (!logSubscribersHaveRoom()) {
+                    // Leave the tasks queued, and come back once a BLOCK subscriber has caught up
+                    blocked = true;
+                    return;
+                }
+                TimeToProcess requestOrEvent = tasksToDo.poll();
+                if (requestOrEvent == null) {
+                    break;
+                }
+                try {
+                    processTask(requestOrEvent);
+                } catch (RuntimeException e) {
+                    // One failed task, such as a request whose client left before its response, must not stop the client
+                    System.err.println("Error: client " + getClientID() + " failed to process a task: " + e);
+                }
+            }
+            reorderBuffer.releaseDue(System.currentTimeMillis(), this::processIncomingEvent);
+        } catch (RuntimeException e) {
+            System.err.println("Error: client " + getClientID() + " failed to release buffered events: " + e);
+        } finally {
+            drainScheduled.set(false);
+
+            if (blocked) {
+                // Room may have been made before the drain was over, when it could not be scheduled again
+                if (logSubscribersHaveRoom()) {
+                    scheduleDrain();
+                }
+            } else if (!tasksToDo.isEmpty()) {
+                scheduleDrain();
+            } else {
+                long nextDeadline = reorderBuffer.nextDeadline();
+                if (nextDeadline != Long.MAX_VALUE && releaseCheckScheduled.compareAndSet(false, true)) {
+                    // Come back by the next deadline so a quiet client's buffered events are still released in time
+                    sharedPool.schedule(() -> {
+                        releaseCheckScheduled.set(false);
+                        scheduleDrain();
+                    }, Math.max(0, nextDeadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    private Filter parseFilter(String filterString) throws FilterException {
+        return FilterParser.parse(filterString);
     }
 
     private void processRequestConfig(Request request) {
@@ -419,6 +701,24 @@ public class Server implements Runnable {
                 return;
             }
             logIf(newFilter);
+        } else if (request.getRequestCommand() == RequestCommand.CONTROL_SUBSCRIBE_LOGS) {
+            // The data is of the form [<policy>[,<capacity>]]; a replayed subscription has no connection to push to
+            if (clientConnectionSocket == null) {
+                return;
+            }
+            String[] options = data.isBlank() ? new String[0] : data.split(",");
+            BackpressurePolicy policy;
+            int capacity;
+            try {
+                policy = options.length > 0 ? BackpressurePolicy.valueOf(options[0].trim()) : BackpressurePolicy.DROP_OLDEST;
+                capacity = options.length > 1 ? Integer.parseInt(options[1].trim()) : DEFAULT_SUBSCRIBER_CAPACITY;
+            } catch (IllegalArgumentException e) {
+                return;
+            }
+            if (capacity < 1) {
+                return;
+            }
+            subscribeToLogs(clientConnectionSocket, policy, capacity);
         } else if (request.getRequestCommand() == RequestCommand.CONTROL_TOGGLE_ACTUATOR_STATE) {
             // The only thing needed is actuator ID, so only the actuator ID should be sent. This should be of the form <id>,<filter>
             String[] getID = data.split(",");
@@ -447,65 +747,142 @@ public class Server implements Runnable {
     }
 
     private void processRequestAnalysis(Request request) {
-        if(request.getRequestCommand() == RequestCommand.ANALYSIS_GET_ALL_ENTITIES) {
-            List<Integer> entityList = getAllEntities();
+        RequestCommand command = request.getRequestCommand();
+        if (command == RequestCommand.ANALYSIS_STREAM_EVENTS_IN_WINDOW || command == RequestCommand.ANALYSIS_STREAM_LATEST_EVENTS) {
+            processStreamRequest(request);
+            return;
+        }
+        if (command == RequestCommand.ANALYSIS_GET_LOGS) {
+            // Reading the logs clears them, so the response is never cached
+            respond(readLogs());
+            return;
+        }
+        String data = request.getRequestData();
+        Supplier<Object> compute;
+        if(command == RequestCommand.ANALYSIS_GET_ALL_ENTITIES) {
+            compute = this::getAllEntities;
+        } else if (command == RequestCommand.ANALYSIS_GET_LATEST_EVENTS) {
+            int numberOfEvents = Integer.parseInt(data);
+            compute = () -> lastNEvents(numberOfEvents);
+        } else if (command == RequestCommand.ANALYSIS_GET_EVENTS_IN_WINDOW) {
+            // The data is start,end, as for a streamed window
+            String[] bounds = data.split(",");
+            TimeWindow timeWindow;
             try {
-                ObjectOutputStream oos = new ObjectOutputStream(clientConnectionSocket.getOutputStream());
-                oos.writeObject(entityList);
-                oos.flush();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+                timeWindow = new TimeWindow(parseDouble(bounds[0].trim()), parseDouble(bounds[1].trim()));
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                return;
             }
-        } else if (request.getRequestCommand() == RequestCommand.ANALYSIS_GET_LATEST_EVENTS) {
-            int numberOfEvents = Integer.parseInt(request.getRequestData());
-            List<Event> eventsList = lastNEvents(numberOfEvents);
-            try {
-                ObjectOutputStream oos = new ObjectOutputStream(clientConnectionSocket.getOutputStream());
-                oos.writeObject(eventsList);
-                oos.flush();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+            compute = () -> eventsInTimeWindow(timeWindow);
+        } else if (command == RequestCommand.ANALYSIS_GET_MOST_ACTIVE_ENTITY) {
+            compute = this::mostActiveEntity;
+        } else if (command == RequestCommand.ANALYSIS_GET_TOP_K_ACTIVE_ENTITIES) {
+            int k = Integer.parseInt(data);
+            compute = () -> topKActiveEntities(k);
+        } else {
+            return;
+        }
+        respondWithBytes(queryResultCache.get(command.name() + ',' + data, eventSequence.get(), compute));
+    }
+
+    // The data is start,end[,cursor[,limit]] for a time window and n[,cursor[,limit]] for the latest events
+    private void processStreamRequest(Request request) {
+        String[] data = request.getRequestData().split(",");
+        boolean window = request.getRequestCommand() == RequestCommand.ANALYSIS_STREAM_EVENTS_IN_WINDOW;
+        int pagingAt = window ? 2 : 1;
+        List<Event> events;
+        long cursor;
+        long limit;
+        try {
+            if (window) {
+                events = eventsInTimeWindow(new TimeWindow(parseDouble(data[0].trim()), parseDouble(data[1].trim())));
+            } else {
+                events = lastNEvents(Integer.parseInt(data[0].trim()));
             }
-        } else if (request.getRequestCommand() == RequestCommand.ANALYSIS_GET_EVENTS_IN_WINDOW) {
-            String data = request.getRequestData();
+            cursor = data.length > pagingAt ? Long.parseLong(data[pagingAt].trim()) : 0;
+            limit = data.length > pagingAt + 1 ? Long.parseLong(data[pagingAt + 1].trim()) : Long.MAX_VALUE;
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return;
+        }
+        try {
+            ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(clientConnectionSocket.getOutputStream()));
+            streamEvents(events, cursor, limit, oos);
+            oos.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-            Pattern pattern = Pattern.compile("Filter\\{BooleanOperator=(.*), BooleanValue=(.*)}");
-            Matcher matcher = pattern.matcher(data);
-            if(!matcher.find()) return;
-            TimeWindow timeWindow = new TimeWindow(Double.parseDouble(matcher.group(0)), Double.parseDouble(matcher.group(1)));
+    /**
+     * Writes events[cursor, cursor + limit) in chunks of STREAM_CHUNK_SIZE, then an EventStream.End.
+     * The stores return lazy views that make an event when it is accessed, so only one chunk of events
+     * exists at a time; RingBufferEventStore makes its bucket stand-ins up front, but those are bounded.
+     */
+    static void streamEvents(List<Event> events, long cursor, long limit, ObjectOutputStream oos) throws IOException {
+        int from = (int) Math.min(Math.max(cursor, 0), events.size());
+        int to = (int) Math.min(events.size(), from + Math.max(limit, 0));
+        List<Event> chunk = new ArrayList<>(Math.min(STREAM_CHUNK_SIZE, to - from));
+        for (int i = from; i < to; i++) {
+            chunk.add(events.get(i));
+            if (chunk.size() == STREAM_CHUNK_SIZE || i == to - 1) {
+                oos.writeObject(chunk);
+                // Forget the events written, so neither side keeps references to them
+                oos.reset();
+                chunk.clear();
+            }
+        }
+        oos.writeObject(new EventStream.End(to < events.size() ? to : -1));
+    }
 
-            List<Event> eventsList = eventsInTimeWindow(timeWindow);
+    private void respond(Object response) {
+        try {
+            ObjectOutputStream oos = new ObjectOutputStream(clientConnectionSocket.getOutputStream());
+            oos.writeObject(response);
+            oos.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-            try {
-                ObjectOutputStream oos = new ObjectOutputStream(clientConnectionSocket.getOutputStream());
-                oos.writeObject(eventsList);
-                oos.flush();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        } else if (request.getRequestCommand() == RequestCommand.ANALYSIS_GET_MOST_ACTIVE_ENTITY) {
-            Integer mostActiveEntityObject = mostActiveEntity();
-            try {
-                ObjectOutputStream oos = new ObjectOutputStream(clientConnectionSocket.getOutputStream());
-                oos.writeObject(mostActiveEntityObject);
-                oos.flush();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        } else if (request.getRequestCommand() == RequestCommand.ANALYSIS_GET_LOGS) {
-            List<Integer> logList = readLogs();
-            try {
-                ObjectOutputStream oos = new ObjectOutputStream(clientConnectionSocket.getOutputStream());
-                oos.writeObject(logList);
-                oos.flush();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+    // writes a response already serialized as a complete object stream
+    private void respondWithBytes(byte[] response) {
+        try {
+            OutputStream out = clientConnectionSocket.getOutputStream();
+            out.write(response);
+            out.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
     }
 
     private void processRequestPredict(Request request) {
-
+        // The data is of the form <entityId>,<n>, or <n>[,<entityId>...] for a batch
+        String[] data = request.getRequestData().split(",");
+        Object predictions;
+        try {
+            if (request.getRequestCommand() == RequestCommand.PREDICT_BATCH_NEXT_N_VALUES) {
+                int n = Integer.parseInt(data[0].trim());
+                List<Integer> entityIds = new ArrayList<>();
+                for (int i = 1; i < data.length; i++) {
+                    entityIds.add(Integer.parseInt(data[i].trim()));
+                }
+                // Without IDs every entity of the client is predicted
+                predictions = predictNextNValues(data.length == 1 ? getAllEntities() : entityIds, n);
+            } else {
+                int entityId = Integer.parseInt(data[0].trim());
+                int n = Integer.parseInt(data[1].trim());
+                if (request.getRequestCommand() == RequestCommand.PREDICT_NEXT_N_TIMESTAMPS) {
+                    predictions = predictNextNTimeStamps(entityId, n);
+                } else if (request.getRequestCommand() == RequestCommand.PREDICT_NEXT_N_VALUES) {
+                    predictions = predictNextNValues(entityId, n);
+                } else {
+                    return;
+                }
+            }
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return;
+        }
+        respond(predictions);
     }
 
 
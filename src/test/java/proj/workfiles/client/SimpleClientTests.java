@@ -2,14 +2,20 @@ package cpen221.mp3.client;
 
 import cpen221.mp3.entity.Actuator;
 import cpen221.mp3.entity.Entity;
+import cpen221.mp3.entity.EntityScheduler;
 import cpen221.mp3.entity.Sensor;
 
 import cpen221.mp3.event.ActuatorEvent;
 import cpen221.mp3.event.Event;
 import cpen221.mp3.event.SensorEvent;
+import cpen221.mp3.event.WireCodec;
+import cpen221.mp3.event.WireFormat;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -123,7 +129,75 @@ public class SimpleClientTests{
         assertEquals(5, actuator.getClientId());
     }
 
+    @Test
+    void testEntitySchedulerRunsSensorsAndActuatorCommands() throws IOException, InterruptedException {
+        AtomicInteger connections = new AtomicInteger();
+        ServerSocket endpoint = new ServerSocket(5711);
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    endpoint.accept().close();
+                    connections.incrementAndGet();
+                }
+            } catch (IOException e) {
+                // endpoint closed
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        EntityScheduler scheduler = new EntityScheduler(2);
+        Client client = new Client(2, "test@test.com", "127.0.0.1", 5711);
+        client.useEntityScheduler(scheduler);
+        for (int i = 0; i < 50; i++) {
+            Sensor sensor = new Sensor(i, "TempSensor");
+            sensor.setEventGenerationFrequency(20);
+            assertTrue(client.addEntity(sensor));
+        }
+        Actuator actuator = new Actuator(100, "Switch", false);
+        actuator.setEventGenerationFrequency(0.01);
+        assertTrue(client.addEntity(actuator));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (connections.get() < 100 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(connections.get() >= 100);
+
+        boolean initialState = actuator.getState();
+        try (Socket command = new Socket("127.0.0.1", actuator.getPort())) {
+            Request toggle = new Request(RequestType.CONTROL, RequestCommand.CONTROL_TOGGLE_ACTUATOR_STATE, "");
+            WireCodec.writePayload(command.getOutputStream(), toggle, WireFormat.BINARY);
+            while (actuator.getState() == initialState && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+        assertNotEquals(initialState, actuator.getState());
+
+        scheduler.shutdown();
+        endpoint.close();
+    }
 
-
-
-}
\ No newline at end of file
+    @Test
+    void testEntitySchedulerKeepsTickingAfterFailedTick() throws InterruptedException {
+        AtomicInteger ticks = new AtomicInteger();
+        Sensor flaky = new Sensor(7, "TempSensor") {
+            @Override
+            public long tick() {
+                if (ticks.incrementAndGet() == 1) {
+                    throw new IllegalStateException("first tick fails");
+                }
+                return 10;
+            }
+        };
+        EntityScheduler scheduler = new EntityScheduler(1);
+        scheduler.start(flaky);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ticks.get() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(ticks.get() >= 5);
+        scheduler.shutdown();
+    }
+}
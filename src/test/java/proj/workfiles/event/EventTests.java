@@ -1,10 +1,19 @@
 package cpen221.mp3.event;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.util.List;
 
 import cpen221.mp3.CSVEventReader;
+import cpen221.mp3.client.Request;
+import cpen221.mp3.client.RequestCommand;
+import cpen221.mp3.client.RequestType;
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class EventTests{
 
@@ -75,4 +84,41 @@ public class EventTests{
             assertEquals(expected, event.toString());
         }
 
+        @Test
+        public void testWireCodecRoundTrip() throws IOException {
+            Event sensorEvent = eventList.get(0);
+            Event actuatorEvent = new ActuatorEvent(0.987654321, 5, 10, "Light", true);
+            Request request = new Request(RequestType.ANALYSIS, RequestCommand.ANALYSIS_GET_LATEST_EVENTS, "5");
+
+            assertEquals(sensorEvent.toString(), WireCodec.decode(WireCodec.toBuffer(sensorEvent)).toString());
+            assertEquals(actuatorEvent.toString(), WireCodec.decode(WireCodec.toBuffer(actuatorEvent)).toString());
+            Request decoded = (Request) WireCodec.decode(WireCodec.toBuffer(request));
+            assertEquals(request.getTimeStamp(), decoded.getTimeStamp());
+            assertEquals(RequestCommand.ANALYSIS_GET_LATEST_EVENTS, decoded.getRequestCommand());
+            assertEquals("5", decoded.getRequestData());
+        }
+
+        @Test
+        public void testWireCodecIsSmallerThanSerialization() throws IOException {
+            Event sensorEvent = eventList.get(0);
+            ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(serialized);
+            oos.writeObject(sensorEvent);
+            oos.flush();
+
+            assertEquals(27, WireCodec.encodedLength(sensorEvent));
+            assertTrue(WireCodec.encodedLength(sensorEvent) * 5 < serialized.size());
+        }
+
+        @Test
+        public void testReadPayloadAcceptsBothFormats() throws IOException, ClassNotFoundException {
+            Event event = eventList.get(3);
+            for (WireFormat format : WireFormat.values()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                WireCodec.writePayload(out, event, format);
+                Object decoded = WireCodec.readPayload(new BufferedInputStream(new ByteArrayInputStream(out.toByteArray())));
+                assertEquals(event.toString(), decoded.toString());
+            }
+        }
+
     }
@@ -0,0 +1,402 @@
+package cpen221.mp3.handler;
+
+import cpen221.mp3.client.Client;
+import cpen221.mp3.client.Request;
+import cpen221.mp3.client.RequestCommand;
+import cpen221.mp3.client.RequestType;
+import cpen221.mp3.entity.Actuator;
+import cpen221.mp3.entity.Sensor;
+import cpen221.mp3.event.ActuatorEvent;
+import cpen221.mp3.event.Event;
+import cpen221.mp3.event.RequestOrEvent;
+import cpen221.mp3.event.SensorEvent;
+import cpen221.mp3.event.TimeToProcess;
+import cpen221.mp3.event.WireFormat;
+import cpen221.mp3.server.Server;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessageHandlerTests {
+
+    private static void waitForQueueSize(MessageHandler handler, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (handler.eventQueue.size() < size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testSelectorIngestEnqueuesEventsAndRequests() throws IOException, InterruptedException {
+        int port = 5701;
+        MessageHandler handler = new MessageHandler(port, IngestMode.SELECTOR, 2);
+        Thread handlerThread = new Thread(handler);
+        handlerThread.setDaemon(true);
+        handlerThread.start();
+        Thread.sleep(200);
+
+        Sensor sensor = new Sensor(7, 3, "TempSensor", "127.0.0.1", port);
+        for (int i = 0; i < 20; i++) {
+            sensor.sendEvent(new SensorEvent(i, 3, 7, "TempSensor", 20.0 + i));
+        }
+        Sensor legacySensor = new Sensor(8, 3, "CO2Sensor", "127.0.0.1", port);
+        legacySensor.setWireFormat(WireFormat.JAVA_SERIALIZATION);
+        legacySensor.sendEvent(new SensorEvent(20, 3, 8, "CO2Sensor", 410.0));
+        Client client = new Client(3, "test@test.com", "127.0.0.1", port);
+        client.sendRequest(new Request(RequestType.CONFIG, RequestCommand.CONFIG_UPDATE_MAX_WAIT_TIME, "1"));
+
+        waitForQueueSize(handler, 22);
+        assertEquals(22, handler.eventQueue.size());
+        int requests = 0;
+        for (TimeToProcess task : handler.eventQueue) {
+            assertEquals(3, task.getClientId());
+            if (task.getType() == RequestOrEvent.REQUEST) {
+                requests++;
+                assertNotNull(task.getClientSocket());
+            }
+        }
+        assertEquals(1, requests);
+        assertEquals(1, handler.serverRouter.size());
+    }
+
+    private static MessageHandler startHandler(int port, IngestMode ingestMode) throws InterruptedException {
+        MessageHandler handler = new MessageHandler(port, ingestMode, 2);
+        Thread handlerThread = new Thread(handler);
+        handlerThread.setDaemon(true);
+        handlerThread.start();
+        Thread.sleep(200);
+        return handler;
+    }
+
+    @Test
+    public void testPersistentConnectionStreamsEvents() throws IOException, InterruptedException {
+        for (IngestMode ingestMode : IngestMode.values()) {
+            int port = 5702 + ingestMode.ordinal();
+            MessageHandler handler = startHandler(port, ingestMode);
+
+            Sensor sensor = new Sensor(8, 4, "TempSensor", "127.0.0.1", port);
+            Actuator actuator = new Actuator(9, 4, "Switch", false, "127.0.0.1", port);
+            sensor.setPersistentConnection(true);
+            actuator.setPersistentConnection(true);
+            actuator.setWireFormat(WireFormat.JAVA_SERIALIZATION);
+            for (int i = 0; i < 50; i++) {
+                sensor.sendEvent(new SensorEvent(2 * i, 4, 8, "TempSensor", 20.0 + i));
+                actuator.sendEvent(new ActuatorEvent(2 * i + 1, 4, 9, "Switch", i % 2 == 0));
+            }
+
+            waitForQueueSize(handler, 100);
+            assertEquals(100, handler.eventQueue.size(), ingestMode.toString());
+            assertEquals(1, handler.serverRouter.size());
+            assertTrue(handler.serverRouter.route(4).actuator_port_map.containsKey(9));
+        }
+    }
+
+    @Test
+    public void testEventQueueReleasesByDeadlineThenTimestamp() throws InterruptedException {
+        MessageHandler handler = new MessageHandler(5704);
+        double now = System.currentTimeMillis();
+        handler.eventQueue.put(new TimeToProcess(now + 300, new SensorEvent(1, 0, 1, "TempSensor", 20.0)));
+        handler.eventQueue.put(new TimeToProcess(now + 150, new SensorEvent(3, 0, 1, "TempSensor", 21.0)));
+        handler.eventQueue.put(new TimeToProcess(now + 150, new SensorEvent(2, 0, 1, "TempSensor", 22.0)));
+
+        assertNull(handler.eventQueue.poll());
+        TimeToProcess first = handler.eventQueue.take();
+        assertTrue(System.currentTimeMillis() >= now + 150);
+        assertEquals(2, first.getTimeStamp());
+        assertEquals(3, handler.eventQueue.take().getTimeStamp());
+        TimeToProcess last = handler.eventQueue.take();
+        assertTrue(System.currentTimeMillis() >= now + 300);
+        assertEquals(1, last.getTimeStamp());
+    }
+
+    @Test
+    public void testEventsStartProcessingWithinMaxWaitTime() throws InterruptedException {
+        MessageHandler handler = new MessageHandler(5708);
+        Server server = handler.serverRouter.getOrCreate(3);
+        server.updateMaxWaitTime(0.3);
+        Thread scheduler = new Thread(() -> {
+            try {
+                while (true) {
+                    TimeToProcess task = handler.eventQueue.take();
+                    handler.serverRouter.route((int) task.getClientId()).processIncomingEventOrRequest(task);
+                }
+            } catch (InterruptedException e) {
+                // Done
+            }
+        });
+        scheduler.setDaemon(true);
+        scheduler.start();
+
+        // Out of order, and too few for the watermark to pass them, so only their deadlines release them
+        long received = System.currentTimeMillis();
+        MessageHandlerThread.dispatch("entity,3", new SensorEvent(10, 3, 1, "TempSensor", 20.0), received,
+                null, handler.serverRouter, handler.eventQueue, null);
+        MessageHandlerThread.dispatch("entity,3", new SensorEvent(5, 3, 2, "TempSensor", 21.0), received,
+                null, handler.serverRouter, handler.eventQueue, null);
+        while (server.lastNEvents(2).size() < 2 && System.currentTimeMillis() - received < 5000) {
+            Thread.sleep(5);
+        }
+        long delay = System.currentTimeMillis() - received;
+        scheduler.interrupt();
+
+        assertEquals(List.of(5.0, 10.0), server.lastNEvents(2).stream().map(event -> event.getTimeStamp()).toList());
+        assertTrue(delay >= 250, "released after " + delay + " ms");
+        // Well short of twice the max wait time, which holding events in both stages would take
+        assertTrue(delay < 450, "released after " + delay + " ms");
+    }
+
+    @Test
+    public void testWriteAheadLogGroupCommitsAndReplays(@TempDir Path directory) throws IOException, InterruptedException {
+        Path file = directory.resolve("events.wal");
+        CountDownLatch committed = new CountDownLatch(101);
+        try (WriteAheadLog log = new WriteAheadLog(file, 16, 20)) {
+            assertEquals(0, log.replay(record -> {}));
+            for (int i = 0; i < 100; i++) {
+                log.append("entity,5", new SensorEvent(i, 5, 1, "TempSensor", 20.0 + i), 1000, committed::countDown);
+            }
+            log.append("client,5", new Request(RequestType.CONFIG, RequestCommand.CONFIG_UPDATE_MAX_WAIT_TIME, "1"),
+                    1000, committed::countDown);
+            assertTrue(committed.await(5, TimeUnit.SECONDS));
+            assertEquals(101, log.recordsCommitted());
+            assertTrue(log.commits() < 101);
+        }
+
+        // A record torn by a crash is cut off when the log is opened again
+        Path segment = directory.resolve("events.wal.0");
+        long committedLength = Files.size(segment);
+        Files.write(segment, new byte[] {0, 0, 0, 40, 1, 2}, StandardOpenOption.APPEND);
+
+        MessageHandler handler = new MessageHandler(5705);
+        handler.useWriteAheadLog(file, 16, 20);
+        assertEquals(committedLength, Files.size(segment));
+        assertEquals(101, handler.eventQueue.size());
+        assertEquals(1, handler.serverRouter.size());
+        int requests = 0;
+        for (TimeToProcess task : handler.eventQueue) {
+            assertEquals(5, task.getClientId());
+            if (task.getType() == RequestOrEvent.REQUEST) {
+                requests++;
+            }
+        }
+        assertEquals(1, requests);
+    }
+
+    /**
+     * A file channel whose first forces fail, as a failing disk would.
+     */
+    private static final class FailingChannel extends FileChannel {
+        private final FileChannel file;
+        private int failuresLeft;
+
+        FailingChannel(FileChannel file, int failures) {
+            this.file = file;
+            this.failuresLeft = failures;
+        }
+
+        public int read(ByteBuffer dst) throws IOException { return file.read(dst); }
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException { return file.read(dsts, offset, length); }
+        public int write(ByteBuffer src) throws IOException { return file.write(src); }
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException { return file.write(srcs, offset, length); }
+        public long position() throws IOException { return file.position(); }
+        public FileChannel position(long newPosition) throws IOException { file.position(newPosition); return this; }
+        public long size() throws IOException { return file.size(); }
+        public FileChannel truncate(long size) throws IOException { file.truncate(size); return this; }
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException { return file.transferTo(position, count, target); }
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException { return file.transferFrom(src, position, count); }
+        public int read(ByteBuffer dst, long position) throws IOException { return file.read(dst, position); }
+        public int write(ByteBuffer src, long position) throws IOException { return file.write(src, position); }
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException { return file.map(mode, position, size); }
+        public FileLock lock(long position, long size, boolean shared) throws IOException { return file.lock(position, size, shared); }
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException { return file.tryLock(position, size, shared); }
+        protected void implCloseChannel() throws IOException { file.close(); }
+
+        public void force(boolean metaData) throws IOException {
+            if (failuresLeft > 0) {
+                failuresLeft--;
+                throw new IOException("disk unavailable");
+            }
+            file.force(metaData);
+        }
+    }
+
+    @Test
+    public void testWriteAheadLogHoldsFailedCommitsUntilTheyReachTheDisk(@TempDir Path directory)
+            throws IOException, InterruptedException {
+        Path file = directory.resolve("events.wal");
+        CountDownLatch committed = new CountDownLatch(10);
+        try (WriteAheadLog log = new WriteAheadLog(file, 1, 0, MessageHandler.DEFAULT_LOG_SEGMENT_BYTES, null,
+                segment -> new FailingChannel(FileChannel.open(segment, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE), 3))) {
+            for (int i = 0; i < 10; i++) {
+                log.append("entity,5", new SensorEvent(i, 5, 1, "TempSensor", 20.0 + i), 1000, committed::countDown);
+            }
+            // No callback runs while the commits fail
+            Thread.sleep(WriteAheadLog.COMMIT_RETRY_MILLIS / 2);
+            assertEquals(10, committed.getCount());
+            assertTrue(committed.await(5, TimeUnit.SECONDS));
+            assertEquals(3, log.commitFailures());
+            assertEquals(10, log.recordsCommitted());
+        }
+
+        // The writes of the failed commits were rolled back, so each record is in the log once
+        try (WriteAheadLog log = new WriteAheadLog(file, 16, 20)) {
+            assertEquals(10, log.replay(record -> {}));
+        }
+    }
+
+    @Test
+    public void testWriteAheadLogDropsSegmentsOnceTheirEventsAreDurable(@TempDir Path directory)
+            throws IOException, InterruptedException {
+        Path file = directory.resolve("events.wal");
+        AtomicLong durableThrough = new AtomicLong(-1);
+        CountDownLatch committed = new CountDownLatch(41);
+        try (WriteAheadLog log = new WriteAheadLog(file, 1, 0, 200,
+                (clientId, timeStamp) -> timeStamp <= durableThrough.get())) {
+            assertEquals(0, log.replay(record -> {}));
+            log.append("client,5", new Request(RequestType.CONFIG, RequestCommand.CONFIG_UPDATE_MAX_WAIT_TIME, "1"),
+                    1000, committed::countDown);
+            // One commit at a time, so the segments roll every few records
+            for (int i = 0; i < 20; i++) {
+                log.append("entity,5", new SensorEvent(i, 5, 1, "TempSensor", 20.0 + i), 1000, committed::countDown);
+                long left = 39 - i;
+                assertTrue(waitFor(() -> committed.getCount() == left));
+            }
+            assertTrue(log.segmentCount() > 5);
+            assertEquals(0, log.segmentsDropped());
+
+            // Once the first 15 events are durable, the next new segment drops the segments holding only them
+            durableThrough.set(15);
+            for (int i = 20; i < 40; i++) {
+                log.append("entity,5", new SensorEvent(i, 5, 1, "TempSensor", 20.0 + i), 1000, committed::countDown);
+                long left = 39 - i;
+                assertTrue(waitFor(() -> committed.getCount() == left));
+            }
+            assertTrue(log.segmentsDropped() > 0);
+        }
+
+        // The request outlives the events logged with it, and every event not yet durable is replayed
+        List<Object> replayed = new ArrayList<>();
+        try (WriteAheadLog log = new WriteAheadLog(file, 16, 20)) {
+            log.replay(record -> replayed.add(record.message));
+        }
+        assertTrue(replayed.get(0) instanceof Request);
+        List<Double> timeStamps = new ArrayList<>();
+        for (Object message : replayed.subList(1, replayed.size())) {
+            timeStamps.add(((Event) message).getTimeStamp());
+        }
+        double first = timeStamps.get(0);
+        assertTrue(first > 0 && first <= 16, "replay starts at " + first);
+        assertEquals(40 - first, timeStamps.size());
+        assertEquals(39, timeStamps.get(timeStamps.size() - 1));
+    }
+
+    private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        return condition.getAsBoolean();
+    }
+
+    // processes the replayed events as the scheduler would once their release time passes
+    private static void processReplayedEvents(MessageHandler handler) {
+        for (TimeToProcess task : handler.eventQueue) {
+            handler.serverRouter.route((int) task.getClientId()).processIncomingEvent(task.getOriginalEvent());
+        }
+        handler.eventQueue.clear();
+    }
+
+    @Test
+    public void testRestartWithPersistenceAndWriteAheadLogDoesNotCountEventsTwice(@TempDir Path directory)
+            throws IOException, InterruptedException {
+        Path history = directory.resolve("history");
+        Path file = directory.resolve("events.wal");
+        CountDownLatch committed = new CountDownLatch(4);
+        try (WriteAheadLog log = new WriteAheadLog(file, 16, 20)) {
+            log.append("entity,5", new SensorEvent(1, 5, 1, "TempSensor", 20.0), 1000, committed::countDown);
+            log.append("entity,5", new SensorEvent(2, 5, 1, "TempSensor", 21.0), 1000, committed::countDown);
+            log.append("entity,5", new SensorEvent(3, 5, 1, "TempSensor", 22.0), 1000, committed::countDown);
+            log.append("entity,5", new SensorEvent(4, 5, 2, "TempSensor", 23.0), 1000, committed::countDown);
+            assertTrue(committed.await(5, TimeUnit.SECONDS));
+        }
+
+        // The first run replays the log into the persisted history
+        MessageHandler first = new MessageHandler(5706);
+        first.setPersistenceDirectory(history);
+        first.useWriteAheadLog(file, 16, 20);
+        assertEquals(4, first.eventQueue.size());
+        processReplayedEvents(first);
+        assertEquals(4, first.serverRouter.route(5).lastNEvents(10).size());
+
+        // After a restart the history already holds every logged event, so none is replayed
+        MessageHandler second = new MessageHandler(5707);
+        second.setPersistenceDirectory(history);
+        second.useWriteAheadLog(file, 16, 20);
+        assertEquals(0, second.eventQueue.size());
+        // and the segment holding them is dropped
+        assertFalse(Files.exists(directory.resolve("events.wal.0")));
+        Server server = second.serverRouter.route(5);
+        assertEquals(4, server.lastNEvents(10).size());
+
+        // Entity 2 overtakes entity 1 only if entity 1's three events were counted once
+        server.processIncomingEvent(new SensorEvent(5, 5, 2, "TempSensor", 24.0));
+        server.processIncomingEvent(new SensorEvent(6, 5, 2, "TempSensor", 25.0));
+        server.processIncomingEvent(new SensorEvent(7, 5, 2, "TempSensor", 26.0));
+        assertEquals(2, server.mostActiveEntity());
+        assertEquals(List.of(2, 1), server.topKActiveEntities(2));
+    }
+
+    @Test
+    public void testReplayedActuatorEventsRestoreTheActuatorAddress(@TempDir Path directory)
+            throws IOException, InterruptedException {
+        Path file = directory.resolve("events.wal");
+        MessageHandler first = new MessageHandler(5709);
+        try (WriteAheadLog log = new WriteAheadLog(file, 1, 0);
+             ServerSocket listener = new ServerSocket(0);
+             Socket actuatorSide = new Socket("127.0.0.1", listener.getLocalPort());
+             Socket handlerSide = listener.accept()) {
+            MessageHandlerThread.dispatch("actuator,5,4999", new ActuatorEvent(1, 5, 3, "Switch", true),
+                    System.currentTimeMillis(), handlerSide, first.serverRouter, first.eventQueue, log);
+            waitForQueueSize(first, 1);
+            assertEquals(1, first.eventQueue.size());
+        }
+        assertEquals(4999, first.serverRouter.route(5).actuator_port_map.get(3));
+
+        // The replayed event has no socket, so the host it was sent from comes from the log
+        MessageHandler second = new MessageHandler(5710);
+        second.useWriteAheadLog(file, 1, 0);
+        assertEquals(1, second.eventQueue.size());
+        Server server = second.serverRouter.route(5);
+        assertEquals(4999, server.actuator_port_map.get(3));
+        assertEquals("127.0.0.1", server.actuator_IP_map.get(3));
+    }
+
+    @Test
+    public void testSharedPoolCanOnlyBeReplacedBeforeServersExist() {
+        ServerRouter router = new ServerRouter();
+        router.useSharedPool(1);
+        router.useSharedPool(2);
+        router.getOrCreate(9);
+        assertThrows(IllegalStateException.class, () -> router.useSharedPool(1));
+    }
+}
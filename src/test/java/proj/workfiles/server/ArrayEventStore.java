@@ -0,0 +1,94 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.event.Event;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A reference EventStore backed by an append-only ArrayList, which the tests check the other stores against.
+ * Because events are stored in timestamp order, a time window is located with two
+ * binary searches and returned as a single exact-size copy, in O(log n + k).
+ */
+class ArrayEventStore implements EventStore {
+    private final List<Event> events = new ArrayList<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public boolean append(Event event) {
+        lock.writeLock().lock();
+        try {
+            if (!events.isEmpty() && event.getTimeStamp() <= events.get(events.size() - 1).getTimeStamp()) {
+                return false;
+            }
+            events.add(event);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return events.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<Event> eventsInWindow(double start, double end) {
+        lock.readLock().lock();
+        try {
+            int from = firstIndexAtOrAfter(start);
+            int to = firstIndexAfter(end);
+            if (from >= to) {
+                return new ArrayList<>();
+            }
+            return new ArrayList<>(events.subList(from, to));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<Event> lastN(int n) {
+        lock.readLock().lock();
+        try {
+            int from = Math.max(0, events.size() - Math.max(n, 0));
+            return new ArrayList<>(events.subList(from, events.size()));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // returns the index of the first event with timestamp >= time, or size() if there is none
+    private int firstIndexAtOrAfter(double time) {
+        int low = 0;
+        int high = events.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (events.get(mid).getTimeStamp() < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // returns the index of the first event with timestamp > time, or size() if there is none
+    private int firstIndexAfter(double time) {
+        int low = 0;
+        int high = events.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (events.get(mid).getTimeStamp() <= time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
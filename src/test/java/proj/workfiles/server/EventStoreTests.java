@@ -0,0 +1,235 @@
+package cpen221.mp3.server;
+
+import cpen221.mp3.CSVEventReader;
+import cpen221.mp3.event.ActuatorEvent;
+import cpen221.mp3.event.Event;
+import cpen221.mp3.event.SensorEvent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+
+import cpen221.mp3.client.Client;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EventStoreTests {
+
+    String csvFilePath = "data/tests/single_client_1000_events_in-order.csv";
+    CSVEventReader eventReader = new CSVEventReader(csvFilePath);
+    List<Event> eventList = eventReader.readEvents();
+
+    private static List<Event> scanWindow(List<Event> events, double start, double end) {
+        List<Event> inWindow = new ArrayList<>();
+        for (Event event : events) {
+            if (event.getTimeStamp() >= start && event.getTimeStamp() <= end) {
+                inWindow.add(event);
+            }
+        }
+        return inWindow;
+    }
+
+    private static void assertSameEvents(List<Event> expected, List<Event> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).toString(), actual.get(i).toString());
+        }
+    }
+
+    private void checkStore(EventStore store) {
+        for (Event event : eventList) {
+            assertTrue(store.append(event));
+        }
+        assertFalse(store.append(new SensorEvent(eventList.get(10).getTimeStamp(), 0, 1, "TempSensor", 1.0)));
+        assertEquals(eventList.size(), store.size());
+
+        double[][] windows = {{0.2, 1}, {-5, 0}, {10, 20.5}, {eventList.get(5).getTimeStamp(), eventList.get(5).getTimeStamp()}, {0, 1e9}, {50, 40}};
+        for (double[] window : windows) {
+            assertSameEvents(scanWindow(eventList, window[0], window[1]), store.eventsInWindow(window[0], window[1]));
+        }
+        assertSameEvents(eventList.subList(eventList.size() - 7, eventList.size()), store.lastN(7));
+        assertSameEvents(eventList, store.lastN(eventList.size() + 10));
+        assertEquals(0, store.lastN(0).size());
+    }
+
+    @Test
+    public void testArrayEventStore() {
+        checkStore(new ArrayEventStore());
+    }
+
+    @Test
+    public void testColumnarEventStore() {
+        checkStore(new ColumnarEventStore());
+    }
+
+    @Test
+    public void testColumnarEventStoreAcrossSegments() throws IOException, ClassNotFoundException {
+        ColumnarEventStore store = new ColumnarEventStore();
+        int count = ColumnarEventStore.SEGMENT_SIZE * 2 + 100;
+        for (int i = 0; i < count; i++) {
+            Event event = i % 3 == 0
+                    ? new ActuatorEvent(i, 2, i % 7, "Switch", i % 2 == 0)
+                    : new SensorEvent(i, 2, i % 7, "TempSensor", i * 0.5);
+            assertTrue(store.append(event));
+        }
+        assertEquals(count, store.size());
+
+        List<Event> window = store.eventsInWindow(ColumnarEventStore.SEGMENT_SIZE - 2, ColumnarEventStore.SEGMENT_SIZE + 2);
+        assertEquals(5, window.size());
+        for (Event event : window) {
+            int i = (int) event.getTimeStamp();
+            assertEquals(2, event.getClientId());
+            assertEquals(i % 7, event.getEntityId());
+            if (i % 3 == 0) {
+                assertEquals("Switch", event.getEntityType());
+                assertEquals(i % 2 == 0, event.getValueBoolean());
+                assertEquals(-1, event.getValueDouble());
+            } else {
+                assertEquals("TempSensor", event.getEntityType());
+                assertEquals(i * 0.5, event.getValueDouble());
+                assertFalse(event.getValueBoolean());
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(window);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            List<?> copies = (List<?>) in.readObject();
+            assertEquals(window.size(), copies.size());
+            for (int i = 0; i < copies.size(); i++) {
+                Object copy = copies.get(i);
+                assertTrue(copy instanceof SensorEvent || copy instanceof ActuatorEvent);
+                assertEquals(window.get(i).toString(), copy.toString());
+            }
+        }
+    }
+
+    @Test
+    public void testMappedEventStore(@TempDir Path directory) throws IOException {
+        try (MappedEventStore store = new MappedEventStore(directory, 4096)) {
+            checkStore(store);
+            assertTrue(store.segmentCount() > 1);
+        }
+    }
+
+    @Test
+    public void testMappedEventStoreRecovery(@TempDir Path directory) throws IOException {
+        int segments;
+        try (MappedEventStore store = new MappedEventStore(directory, 4096)) {
+            for (Event event : eventList.subList(0, 600)) {
+                assertTrue(store.append(event));
+            }
+            segments = store.segmentCount();
+        }
+
+        double lastTimeStamp = eventList.get(eventList.size() - 1).getTimeStamp();
+        try (MappedEventStore store = new MappedEventStore(directory, 4096)) {
+            assertEquals(600, store.size());
+            assertEquals(segments, store.segmentCount());
+            assertSameEvents(eventList.subList(0, 600), store.lastN(600));
+
+            assertFalse(store.append(eventList.get(599)));
+            for (Event event : eventList.subList(600, eventList.size())) {
+                assertTrue(store.append(event));
+            }
+            assertTrue(store.append(new ActuatorEvent(lastTimeStamp + 1, 0, 42, "Switch", true)));
+        }
+
+        try (MappedEventStore store = new MappedEventStore(directory, 4096)) {
+            assertEquals(eventList.size() + 1, store.size());
+            assertSameEvents(eventList, store.eventsInWindow(0, lastTimeStamp));
+            Event actuatorEvent = store.lastN(1).get(0);
+            assertEquals("Switch", actuatorEvent.getEntityType());
+            assertTrue(actuatorEvent.getValueBoolean());
+
+            Server server = new Server(new Client(0, "test@test.com", "127.0.0.1", 4578), null, store);
+            Server reference = new Server(new Client(0, "test@test.com", "127.0.0.1", 4578));
+            for (Event event : store.lastN(store.size())) {
+                reference.processIncomingEvent(event);
+            }
+            assertEquals(reference.getAllEntities().size(), server.getAllEntities().size());
+            assertEquals(reference.mostActiveEntity(), server.mostActiveEntity());
+        }
+    }
+
+    @Test
+    public void testRingBufferEventStore() {
+        checkStore(new RingBufferEventStore(new RetentionPolicy(eventList.size(), Double.POSITIVE_INFINITY, 1, 4)));
+    }
+
+    @Test
+    public void testRingBufferEventStoreViewsReadTheRingWhenAccessed() {
+        RingBufferEventStore store = new RingBufferEventStore(new RetentionPolicy(100, Double.POSITIVE_INFINITY, 10, 4));
+        for (int i = 0; i < 100; i++) {
+            store.append(new SensorEvent(i, 1, i % 4, "TempSensor", i));
+        }
+        List<Event> latest = store.lastN(100);
+        List<Event> window = store.eventsInWindow(50, 59);
+        assertEquals(10, window.size());
+
+        // Events still in the ring can be read, those pushed out since the query cannot
+        for (int i = 100; i < 160; i++) {
+            store.append(new SensorEvent(i, 1, i % 4, "TempSensor", i));
+        }
+        assertEquals(99, latest.get(99).getTimeStamp());
+        assertEquals(60, latest.get(60).getTimeStamp());
+        assertThrows(ConcurrentModificationException.class, () -> latest.get(59));
+        assertThrows(ConcurrentModificationException.class, () -> window.get(0));
+    }
+
+    @Test
+    public void testRingBufferEventStoreStaysBounded() {
+        RingBufferEventStore store = new RingBufferEventStore(new RetentionPolicy(1000, Double.POSITIVE_INFINITY, 100, 16));
+        for (int i = 0; i < 1_000_000; i++) {
+            assertTrue(store.append(new SensorEvent(i, 1, i % 8, "TempSensor", i % 100)));
+            assertTrue(store.size() <= 1000);
+            assertTrue(store.downsampledBucketCount() <= 8 * 16);
+        }
+        assertEquals(1000, store.size());
+        assertEquals(999_000, store.lastN(1000).get(0).getTimeStamp());
+
+        // Entity 3 sent i = 998_907, 998_915, ..., 998_995 in the last bucket before the ring
+        List<RingBufferEventStore.Bucket> buckets = store.downsampledBuckets(3);
+        assertEquals(16, buckets.size());
+        RingBufferEventStore.Bucket bucket = buckets.get(15);
+        assertEquals(998_907, bucket.getFirstTimeStamp());
+        assertEquals(998_995, bucket.getLastTimeStamp());
+        assertEquals(12, bucket.getCount());
+        assertEquals(7, bucket.getMin());
+        assertEquals(95, bucket.getMax());
+        assertEquals(51, bucket.getMean());
+
+        // Old windows are answered from the buckets, recent ones at full resolution
+        List<Event> window = store.eventsInWindow(998_900, 999_001);
+        assertEquals(8 + 2, window.size());
+        for (int i = 0; i < 8; i++) {
+            assertEquals(998_900 + i, window.get(i).getTimeStamp());
+        }
+        assertEquals(999_000, window.get(8).getTimeStamp());
+        assertEquals(999_001, window.get(9).getTimeStamp());
+    }
+
+    @Test
+    public void testRingBufferEventStoreMaxAge() {
+        RingBufferEventStore store = new RingBufferEventStore(new RetentionPolicy(1000, 10, 5, 4));
+        for (int i = 0; i < 50; i++) {
+            store.append(new ActuatorEvent(i, 1, 2, "Switch", i % 5 != 0));
+        }
+        assertEquals(11, store.size());
+        assertEquals(39, store.lastN(100).get(0).getTimeStamp());
+        List<RingBufferEventStore.Bucket> buckets = store.downsampledBuckets(2);
+        assertEquals(4, buckets.size());
+        assertEquals(20, buckets.get(0).getFirstTimeStamp());
+        assertEquals(3, buckets.get(3).getTrueCount());
+        assertTrue(store.eventsInWindow(0, 30).get(0).getValueBoolean());
+    }
+}
@@ -10,7 +10,10 @@ import static cpen221.mp3.server.DoubleOperator.LESS_THAN;
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
 
 import org.junit.jupiter.api.Test;
 
@@ -170,7 +173,171 @@ public class FilterTests{
         assertTrue(complexFilter.satisfies(sensorEvent));
     }
 
-}
+    @Test
+    public void testNestedComposedFilterMatchesEachPart() {
+        Filter valueFilter = new Filter("value", GREATER_THAN_OR_EQUALS, 22.0);
+        Filter timeFilter = new Filter("timestamp", LESS_THAN, 5.0);
+        Filter equalsFilter = new Filter("value", DoubleOperator.EQUALS, eventList.get(3).getValueDouble());
+        Filter booleanFilter = new Filter(BooleanOperator.NOT_EQUALS, true);
+        List<Filter> inner = new ArrayList<>(List.of(valueFilter, booleanFilter));
+        List<Filter> outer = new ArrayList<>(List.of(timeFilter, new Filter(inner)));
+        Filter nestedFilter = new Filter(outer);
+        Filter withEquals = new Filter(List.of(nestedFilter, equalsFilter));
+
+        int satisfied = 0;
+        for (Event event : eventList) {
+            boolean expected = valueFilter.satisfies(event) && timeFilter.satisfies(event) && booleanFilter.satisfies(event);
+            assertEquals(expected, nestedFilter.satisfies(event));
+            assertEquals(expected && equalsFilter.satisfies(event), withEquals.satisfies(event));
+            if (expected) {
+                satisfied++;
+            }
+        }
+        assertTrue(satisfied > 0);
+        assertEquals(satisfied, nestedFilter.sift(eventList).size());
+
+        // The composition is compiled when the filter is made
+        outer.clear();
+        assertEquals(satisfied, nestedFilter.sift(eventList).size());
+        assertTrue(new Filter(new ArrayList<>()).satisfies(eventList.get(0)));
+    }
+
+    @Test
+    public void testSiftColumnarEventsMatchesScalar() {
+        ColumnarEventStore store = new ColumnarEventStore();
+        for (int round = 0; round < 12; round++) {
+            double offset = round * 1000;
+            for (Event event : eventList) {
+                if (event.getEntityId() % 4 == 0) {
+                    store.append(new ActuatorEvent(offset + event.getTimeStamp(), 0, event.getEntityId(), "Switch",
+                            event.getValueDouble() > 22));
+                } else {
+                    store.append(new SensorEvent(offset + event.getTimeStamp(), 0, event.getEntityId(),
+                            event.getEntityType(), event.getValueDouble()));
+                }
+            }
+        }
+        List<Filter> filters = List.of(
+                new Filter("value", GREATER_THAN_OR_EQUALS, 22.0),
+                new Filter("timestamp", LESS_THAN, 5000.5),
+                new Filter("value", DoubleOperator.EQUALS, -1),
+                new Filter(BooleanOperator.EQUALS, true),
+                new Filter(BooleanOperator.NOT_EQUALS, true),
+                new Filter(List.of(new Filter(BooleanOperator.EQUALS, false),
+                        new Filter(List.of(new Filter("timestamp", DoubleOperator.GREATER_THAN, 3000.25),
+                                new Filter("value", DoubleOperator.LESS_THAN_OR_EQUALS, 30.0))))));
+
+        // Windows that start and end inside segments and inside 64-row words
+        double[][] windows = {{0, 1e9}, {1000.3, 1999.7}, {4000.01, 9000.99}};
+        for (double[] window : windows) {
+            List<Event> columnar = store.eventsInWindow(window[0], window[1]);
+            List<Event> scalar = new ArrayList<>(columnar);
+            for (Filter filter : filters) {
+                List<Event> expected = filter.sift(scalar);
+                List<Event> actual = filter.sift(columnar);
+                assertEquals(expected.size(), actual.size(), filter.toString());
+                for (int i = 0; i < expected.size(); i++) {
+                    assertEquals(expected.get(i).toString(), actual.get(i).toString());
+                }
+                assertEquals(filter.satisfies(scalar), filter.satisfies(columnar));
+            }
+        }
+        assertTrue(new Filter("timestamp", DoubleOperator.GREATER_THAN_OR_EQUALS, 0).satisfies(store.lastN(5000)));
+    }
+
+    private static Filter randomComparison(Random random) {
+        DoubleOperator[] operators = DoubleOperator.values();
+        switch (random.nextInt(4)) {
+            case 0:
+                return new Filter(random.nextBoolean() ? BooleanOperator.EQUALS : BooleanOperator.NOT_EQUALS, random.nextBoolean());
+            case 1:
+                // Few distinct thresholds, so ties and equality matches happen
+                return new Filter("timestamp", operators[random.nextInt(operators.length)], random.nextInt(20) * 0.05);
+            default:
+                return new Filter("value", operators[random.nextInt(operators.length)], 18 + random.nextInt(10));
+        }
+    }
+
+    @Test
+    public void testFilterIndexMatchesEveryRule() {
+        Random random = new Random(17);
+        FilterIndex<Integer> index = new FilterIndex<>();
+        List<Filter> rules = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            Filter rule;
+            int size = random.nextInt(4);
+            if (size == 0) {
+                rule = randomComparison(random);
+            } else {
+                List<Filter> parts = new ArrayList<>();
+                for (int j = 0; j < size; j++) {
+                    parts.add(random.nextInt(5) == 0 ? new Filter(List.of(randomComparison(random), randomComparison(random)))
+                            : randomComparison(random));
+                }
+                rule = new Filter(parts);
+            }
+            rules.add(rule);
+            index.put(i, rule);
+        }
+        rules.set(3, new Filter(new ArrayList<>()));
+        index.put(3, rules.get(3));
+        index.remove(4);
+        assertEquals(999, index.size());
+
+        List<Event> events = new ArrayList<>(eventList);
+        events.add(new ActuatorEvent(0.5, 0, 97, "Switch", true));
+        events.add(new SensorEvent(0.5, 0, 1, "TempSensor", Double.NaN));
+        int matches = 0;
+        for (Event event : events) {
+            Set<Integer> expected = new HashSet<>();
+            for (int i = 0; i < rules.size(); i++) {
+                if (i != 4 && rules.get(i).satisfies(event)) {
+                    expected.add(i);
+                }
+            }
+            List<Integer> matched = index.match(event);
+            assertEquals(expected.size(), matched.size());
+            assertEquals(expected, new HashSet<>(matched));
+            matches += matched.size();
+        }
+        assertTrue(matches > events.size());
+    }
 
+    private static Filter randomFilter(Random random, int depth) {
+        if (depth == 0 || random.nextInt(3) == 0) {
+            return randomComparison(random);
+        }
+        List<Filter> parts = new ArrayList<>();
+        int size = random.nextInt(4);
+        for (int i = 0; i < size; i++) {
+            parts.add(randomFilter(random, depth - 1));
+        }
+        return new Filter(parts);
+    }
+
+    @Test
+    public void testFilterParserReadsBothEncodings() throws FilterException {
+        Random random = new Random(18);
+        for (int i = 0; i < 200; i++) {
+            Filter filter = randomFilter(random, 4);
+            Filter compact = FilterParser.parse(filter.encode());
+            Filter legacy = FilterParser.parse(filter.toString());
+            assertEquals(filter.encode(), compact.encode());
+            for (Event event : eventList.subList(0, 200)) {
+                assertEquals(filter.satisfies(event), compact.satisfies(event));
+                assertEquals(filter.satisfies(event), legacy.satisfies(event));
+            }
+        }
 
+        Filter parsed = FilterParser.parse("(& (v>=23.0) (&(t<1.5) (b!=false)) (v==-Infinity))");
+        assertEquals("(& (v==-Infinity) (b!=false) (v>=23.0) (t<1.5))", parsed.encode());
+        assertSame(parsed, FilterParser.parse("(& (v>=23.0) (&(t<1.5) (b!=false)) (v==-Infinity))"));
 
+        String[] malformed = {"", "(", "(v>=)", "(x>1.0)", "(b>true)", "(b==yes)", "(v!=1.0)", "(& (v>1.0)",
+                "(v>1.0) trailing", "Filter{DoubleField=price, DoubleOperator=EQUALS, DoubleValue=1.0}",
+                "Filter{BooleanOperator=MAYBE, BooleanValue=true}", "Filter{ComposedFilters=[Filter{EmptyFilter}]}"};
+        for (String text : malformed) {
+            assertThrows(FilterException.class, () -> FilterParser.parse(text), text);
+        }
+    }
+}
@@ -1,19 +1,45 @@
 package cpen221.mp3.server;
 
 import cpen221.mp3.client.Client;
+import cpen221.mp3.client.EventStream;
+import cpen221.mp3.client.Request;
+import cpen221.mp3.client.RequestCommand;
+import cpen221.mp3.client.RequestType;
 import cpen221.mp3.entity.Actuator;
 import cpen221.mp3.event.ActuatorEvent;
 import cpen221.mp3.event.Event;
 import cpen221.mp3.event.SensorEvent;
+import cpen221.mp3.event.TimeToProcess;
+import cpen221.mp3.event.WireCodec;
 import cpen221.mp3.CSVEventReader;
 
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class SimpleServerTests {
 
@@ -117,4 +143,663 @@ public class SimpleServerTests {
         Set<Integer> result = new HashSet<>(server.getAllEntities());
         assertEquals(expected,result);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testReorderBufferRestoresOutOfOrderEvents() {
+        List<Event> outOfOrder = new CSVEventReader("data/tests/single_client_1000_events_out-of-order.csv").readEvents();
+        ReorderBuffer reorderBuffer = new ReorderBuffer(1.0);
+        List<Event> released = new ArrayList<>();
+        for (Event event : outOfOrder) {
+            reorderBuffer.offer(event, 1, 0, released::add);
+        }
+        assertTrue(reorderBuffer.depth() > 0);
+        assertEquals(1, reorderBuffer.nextDeadline());
+        reorderBuffer.releaseDue(1, released::add);
+
+        assertEquals(0, reorderBuffer.depth());
+        assertEquals(0, reorderBuffer.lateDrops());
+        assertEquals(outOfOrder.size(), released.size());
+        for (int i = 1; i < released.size(); i++) {
+            assertTrue(released.get(i - 1).getTimeStamp() < released.get(i).getTimeStamp());
+        }
+    }
+
+    @Test
+    public void testReorderBufferDropsEventsBehindWatermark() {
+        ReorderBuffer reorderBuffer = new ReorderBuffer(1.0);
+        List<Event> released = new ArrayList<>();
+        reorderBuffer.offer(new SensorEvent(1.0, 0, 1, "TempSensor", 20.0), 100, 0, released::add);
+        reorderBuffer.offer(new SensorEvent(3.0, 0, 1, "TempSensor", 21.0), 100, 0, released::add);
+        assertEquals(1, released.size());
+
+        assertTrue(reorderBuffer.offer(new SensorEvent(2.5, 0, 1, "TempSensor", 22.0), 100, 0, released::add));
+        assertFalse(reorderBuffer.offer(new SensorEvent(0.5, 0, 1, "TempSensor", 23.0), 100, 0, released::add));
+        assertEquals(1, reorderBuffer.lateDrops());
+        assertEquals(2, reorderBuffer.depth());
+
+        // The stores keep strictly increasing timestamps, so an event sharing a released timestamp is late too
+        assertFalse(reorderBuffer.offer(new SensorEvent(1.0, 0, 2, "TempSensor", 24.0), 100, 0, released::add));
+        assertEquals(2, reorderBuffer.lateDrops());
+        assertTrue(reorderBuffer.offer(new SensorEvent(2.5, 0, 2, "TempSensor", 25.0), 100, 0, released::add));
+        reorderBuffer.releaseDue(100, released::add);
+        assertEquals(List.of(1.0, 2.5, 2.5, 3.0), released.stream().map(Event::getTimeStamp).toList());
+        assertEquals(3, reorderBuffer.lateDrops());
+        assertEquals(0, reorderBuffer.depth());
+    }
+
+    @Test
+    public void testReorderBufferReleasesEachEventByItsDeadline() {
+        ReorderBuffer reorderBuffer = new ReorderBuffer(1000.0);
+        List<Event> released = new ArrayList<>();
+        reorderBuffer.offer(new SensorEvent(5.0, 0, 1, "TempSensor", 20.0), 200, 0, released::add);
+        reorderBuffer.offer(new SensorEvent(3.0, 0, 1, "TempSensor", 21.0), 300, 100, released::add);
+        reorderBuffer.offer(new SensorEvent(7.0, 0, 1, "TempSensor", 22.0), 400, 200, released::add);
+        // The first event is due, so it goes out with the event before it; the watermark has passed neither
+        assertEquals(List.of(3.0, 5.0), released.stream().map(Event::getTimeStamp).toList());
+        assertEquals(400, reorderBuffer.nextDeadline());
+        reorderBuffer.releaseDue(399, released::add);
+        assertEquals(1, reorderBuffer.depth());
+        reorderBuffer.releaseDue(400, released::add);
+        assertEquals(0, reorderBuffer.depth());
+        assertEquals(Long.MAX_VALUE, reorderBuffer.nextDeadline());
+    }
+
+    @Test
+    public void testSharedPoolProcessesEachClientInOrder() throws InterruptedException {
+        ScheduledExecutorService pool = Executors.newScheduledThreadPool(2);
+        List<Server> servers = new ArrayList<>();
+        for (int clientId = 0; clientId < 20; clientId++) {
+            Server server = new Server(new Client(clientId, "test@test.com", "1.1.1.1", 1), pool);
+            server.updateMaxWaitTime(0.01);
+            servers.add(server);
+        }
+        for (Event event : eventList) {
+            for (Server server : servers) {
+                server.processIncomingEventOrRequest(new TimeToProcess(0, event));
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        for (Server server : servers) {
+            while (server.lastNEvents(eventList.size()).size() < eventList.size() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(eventList.size(), server.lastNEvents(eventList.size()).size());
+            assertEquals(0, server.getLateDropCount());
+        }
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testTopKActiveEntities() {
+        ActivityTracker tracker = new ActivityTracker();
+        Map<Integer, Integer> counts = new HashMap<>();
+        Random random = new Random(221);
+        for (int i = 0; i < 100_000; i++) {
+            // Skewed towards low IDs so the ranking keeps changing, with many ties among the rest
+            int entityId = random.nextInt(1 + random.nextInt(2000));
+            assertEquals(!counts.containsKey(entityId), tracker.increment(entityId));
+            counts.merge(entityId, 1, Integer::sum);
+
+            if (i % 997 == 0) {
+                List<Integer> expected = new ArrayList<>(counts.keySet());
+                expected.sort(Comparator.comparing((Integer id) -> counts.get(id)).thenComparing(id -> id).reversed());
+                assertEquals((int) expected.get(0), tracker.mostActive());
+                for (int k : new int[] {1, 5, ActivityTracker.TOP_K, 50}) {
+                    assertEquals(expected.subList(0, Math.min(k, expected.size())), tracker.topK(k));
+                }
+            }
+        }
+        assertEquals(counts.size(), tracker.entities().size());
+        assertEquals(counts.get(7), tracker.count(7));
+
+        Server server = new Server(client);
+        for (Event event : eventList) {
+            server.processIncomingEvent(event);
+        }
+        List<Integer> top = server.topKActiveEntities(3);
+        assertEquals(3, top.size());
+        assertEquals(server.mostActiveEntity(), top.get(0));
+    }
+
+    @Test
+    public void testSlowOrUnreachableActuatorDoesNotStallEvents() throws IOException, InterruptedException {
+        AtomicInteger connections = new AtomicInteger();
+        AtomicInteger received = new AtomicInteger();
+        ServerSocket slowActuator = new ServerSocket(0);
+        Thread stub = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = slowActuator.accept();
+                    connections.incrementAndGet();
+                    InputStream in = new BufferedInputStream(socket.getInputStream());
+                    while (true) {
+                        if (WireCodec.readPayload(in) instanceof Request) {
+                            received.incrementAndGet();
+                        }
+                        Thread.sleep(20);
+                    }
+                }
+            } catch (IOException | ClassNotFoundException | InterruptedException e) {
+                // The stub was closed
+            }
+        });
+        stub.setDaemon(true);
+        stub.start();
+
+        ServerSocket closed = new ServerSocket(0);
+        int unreachablePort = closed.getLocalPort();
+        closed.close();
+
+        Server server = new Server(client);
+        AtomicInteger failures = new AtomicInteger();
+        server.getActuatorCommandDispatcher().setFailureListener((actuatorId, command, cause) -> {
+            assertEquals(98, actuatorId);
+            failures.incrementAndGet();
+        });
+        server.actuator_port_map.put(97, slowActuator.getLocalPort());
+        server.actuator_IP_map.put(97, "127.0.0.1");
+        server.actuator_port_map.put(98, unreachablePort);
+        server.actuator_IP_map.put(98, "127.0.0.1");
+        Filter always = new Filter("timestamp", DoubleOperator.GREATER_THAN_OR_EQUALS, 0);
+        server.toggleActuatorStateIf(always, actuator1);
+        server.toggleActuatorStateIf(always, new Actuator(98, 0, "Switch", true));
+
+        int events = 200;
+        long start = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            server.processIncomingEvent(eventList.get(i));
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        // Sent inline, the slow actuator alone would hold the events for 20 ms each
+        assertTrue(elapsedMillis < events * 20 / 4, "Processing took " + elapsedMillis + " ms");
+
+        ActuatorCommandDispatcher dispatcher = server.getActuatorCommandDispatcher();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (received.get() < 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(received.get() >= 10);
+        assertEquals(1, connections.get());
+        assertTrue(failures.get() > 0);
+        assertEquals(failures.get(), dispatcher.commandsFailed());
+
+        dispatcher.close();
+        slowActuator.close();
+    }
+
+    @Test
+    public void testCoalescedCommandsLeaveActuatorInSameState() throws IOException, InterruptedException {
+        Actuator remote = new Actuator(97, 0, "Switch", false);
+        AtomicInteger received = new AtomicInteger();
+        ServerSocket stubActuator = new ServerSocket(0);
+        Thread stub = new Thread(() -> {
+            try (Socket socket = stubActuator.accept()) {
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                while (true) {
+                    if (WireCodec.readPayload(in) instanceof Request command) {
+                        remote.processServerMessage(command);
+                        received.incrementAndGet();
+                    }
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                // The stub was closed
+            }
+        });
+        stub.setDaemon(true);
+        stub.start();
+
+        ActuatorCommandDispatcher dispatcher = new ActuatorCommandDispatcher();
+        CommandCoalescer coalescer = new CommandCoalescer(dispatcher);
+        coalescer.configure(50, 20);
+        Actuator expected = new Actuator(97, 0, "Switch", false);
+        Random random = new Random(221);
+        int commands = 0;
+        for (int burst = 0; burst < 20; burst++) {
+            for (int i = 0; i < 100; i++) {
+                Request command = random.nextInt(4) == 0
+                        ? new Request(RequestType.CONTROL, RequestCommand.CONTROL_SET_ACTUATOR_STATE, String.valueOf(random.nextBoolean()))
+                        : new Request(RequestType.CONTROL, RequestCommand.CONTROL_TOGGLE_ACTUATOR_STATE, "");
+                expected.processServerMessage(command);
+                coalescer.submit(97, "127.0.0.1", stubActuator.getLocalPort(), command);
+                commands++;
+            }
+            Thread.sleep(10);
+        }
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while ((coalescer.commandsPending() > 0 || received.get() < coalescer.commandsSent()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(commands, coalescer.commandsReceived());
+        assertEquals(commands, coalescer.commandsCoalesced() + coalescer.commandsSent());
+        assertEquals(coalescer.commandsSent(), received.get());
+        assertTrue(coalescer.commandsSent() * 10 <= commands, coalescer.commandsSent() + " commands sent");
+        assertEquals(expected.getState(), remote.getState());
+
+        dispatcher.close();
+        stubActuator.close();
+    }
+
+    @Test
+    public void testPredictNextN() {
+        Server server = new Server(client);
+        assertEquals(List.of(), server.predictNextNTimeStamps(5, 3));
+        assertEquals(List.of(), server.predictNextNValues(5, 3));
+
+        // A sensor reporting every 0.5 time units with a value rising by 2 each time, and a switch that toggles
+        for (int i = 0; i < 40; i++) {
+            server.processIncomingEvent(new SensorEvent(i * 0.5, 0, 5, "TempSensor", 10 + 2 * i));
+            server.processIncomingEvent(new ActuatorEvent(i * 0.5 + 0.25, 0, 6, "Switch", i % 2 == 0));
+        }
+        List<Double> timeStamps = server.predictNextNTimeStamps(5, 3);
+        List<Object> values = server.predictNextNValues(5, 3);
+        assertEquals(3, timeStamps.size());
+        for (int k = 1; k <= 3; k++) {
+            assertEquals(19.5 + 0.5 * k, timeStamps.get(k - 1), 1e-9);
+            assertEquals(88.0 + 2 * k, (Double) values.get(k - 1), 1e-9);
+        }
+        // The switch was last false, so it should keep toggling
+        assertEquals(List.of(true, false, true, false), server.predictNextNValues(6, 4));
+        assertEquals(19.75 + 0.5, server.predictNextNTimeStamps(6, 1).get(0), 1e-9);
+
+        // A Server started over a store that already holds events rebuilds the models from them
+        EventStore store = new ArrayEventStore();
+        for (Event event : eventList) {
+            store.append(event);
+        }
+        Server restarted = new Server(client, null, store);
+        for (int entityId : restarted.getAllEntities()) {
+            assertEquals(4, restarted.predictNextNValues(entityId, 4).size());
+        }
+    }
+
+    @Test
+    public void testPredictNextNAfterRebuildingFromStoredEvents(@TempDir Path directory) throws IOException {
+        try (MappedEventStore store = new MappedEventStore(directory, 4096)) {
+            for (int i = 0; i < 40; i++) {
+                store.append(new ActuatorEvent(i * 0.5, 0, 6, "Switch", i % 2 == 0));
+            }
+        }
+        // The events read back are views of the stored records, which must still be modelled as a switch
+        try (MappedEventStore reopened = new MappedEventStore(directory, 4096)) {
+            Server restarted = new Server(client, null, reopened);
+            assertEquals(List.of(true, false, true), restarted.predictNextNValues(6, 3));
+        }
+
+        ColumnarEventStore columnar = new ColumnarEventStore();
+        for (int i = 0; i < 40; i++) {
+            columnar.append(new ActuatorEvent(i * 0.5, 0, 6, "Switch", i % 2 == 0));
+        }
+        assertEquals(List.of(true, false, true), new Server(client, null, columnar).predictNextNValues(6, 3));
+    }
+
+    @Test
+    public void testRestartResumesFromCheckpoint(@TempDir Path directory) throws IOException {
+        int events = Server.CHECKPOINT_INTERVAL + 10;
+        List<Object> sensorPrediction;
+        List<Object> switchPrediction;
+        try (MappedEventStore store = new MappedEventStore(directory, 1 << 20)) {
+            Server server = new Server(client, null, store);
+            for (int i = 0; i < events; i++) {
+                if (i == 100) {
+                    // Too late to be stored, but still counted: only the checkpoint remembers it
+                    server.processIncomingEvent(new SensorEvent(1.5, 0, 1, "TempSensor", 0));
+                }
+                server.processIncomingEvent(new SensorEvent(i, 0, i % 2 == 0 ? 1 : 2, "TempSensor", i * 0.5));
+                if (i % 10 == 5) {
+                    server.processIncomingEvent(new ActuatorEvent(i + 0.5, 0, 3, "Switch", i % 20 == 5));
+                }
+            }
+            assertTrue(directory.resolve(RecoveryCheckpoint.FILE_NAME).toFile().isFile());
+            // Only the events up to the checkpoint are known to be on disk
+            assertTrue(server.isDurable(1000));
+            assertFalse(server.isDurable(events - 1));
+            assertEquals(1, server.mostActiveEntity());
+            sensorPrediction = server.predictNextNValues(2, 3);
+            switchPrediction = server.predictNextNValues(3, 3);
+        }
+
+        try (MappedEventStore reopened = new MappedEventStore(directory, 1 << 20)) {
+            Server restarted = new Server(client, null, reopened);
+            // Entities 1 and 2 stored as many events, so without the checkpoint the tie would go to 2
+            assertEquals(1, restarted.mostActiveEntity());
+            assertEquals(sensorPrediction, restarted.predictNextNValues(2, 3));
+            assertEquals(switchPrediction, restarted.predictNextNValues(3, 3));
+        }
+    }
+
+    @Test
+    public void testBatchPredictMatchesPerEntityPredictions() {
+        Server server = new Server(client);
+        Random random = new Random(221);
+        int entities = 5000;
+        for (int round = 0; round < 4; round++) {
+            for (int entityId = 0; entityId < entities; entityId++) {
+                double timeStamp = round + entityId / (double) entities;
+                if (entityId % 3 == 0) {
+                    server.processIncomingEvent(new ActuatorEvent(timeStamp, 0, entityId, "Switch", random.nextBoolean()));
+                } else {
+                    server.processIncomingEvent(new SensorEvent(timeStamp, 0, entityId, "TempSensor", random.nextDouble() * 30));
+                }
+            }
+        }
+
+        Map<Integer, List<Object>> batch = server.predictNextNValues(server.getAllEntities(), 5);
+        assertEquals(entities, batch.size());
+        for (int entityId = 0; entityId < entities; entityId++) {
+            assertEquals(server.predictNextNValues(entityId, 5), batch.get(entityId));
+        }
+        assertEquals(Map.of(entities, List.of()), server.predictNextNValues(List.of(entities), 5));
+    }
+
+    @Test
+    public void testRepeatedQueriesAreAnsweredFromCache() throws IOException, ClassNotFoundException {
+        ScheduledExecutorService pool = Executors.newSingleThreadScheduledExecutor();
+        Server server = new Server(client, pool);
+        for (int i = 0; i < 100; i++) {
+            server.processIncomingEvent(eventList.get(i));
+        }
+        try (ServerSocket listener = new ServerSocket(0);
+             Socket clientSide = new Socket("127.0.0.1", listener.getLocalPort());
+             Socket serverSide = listener.accept()) {
+            Request allEntities = new Request(RequestType.ANALYSIS, RequestCommand.ANALYSIS_GET_ALL_ENTITIES, "");
+            Request latest = new Request(RequestType.ANALYSIS, RequestCommand.ANALYSIS_GET_LATEST_EVENTS, "5");
+            Request latestMore = new Request(RequestType.ANALYSIS, RequestCommand.ANALYSIS_GET_LATEST_EVENTS, "7");
+
+            Object first = ask(server, allEntities, serverSide, clientSide);
+            assertEquals(server.getAllEntities(), first);
+            assertEquals(first, ask(server, allEntities, serverSide, clientSide));
+            assertEquals(1, server.getQueryCacheHits());
+            assertEquals(1, server.getQueryCacheMisses());
+
+            // Different arguments are cached separately
+            assertEquals(5, ((List<?>) ask(server, latest, serverSide, clientSide)).size());
+            assertEquals(7, ((List<?>) ask(server, latestMore, serverSide, clientSide)).size());
+            assertEquals(5, ((List<?>) ask(server, latest, serverSide, clientSide)).size());
+            assertEquals(2, server.getQueryCacheHits());
+
+            // A new event makes every cached result stale
+            server.processIncomingEvent(eventList.get(100));
+            List<?> refreshed = (List<?>) ask(server, latest, serverSide, clientSide);
+            assertEquals(eventList.get(100).getTimeStamp(), ((Event) refreshed.get(refreshed.size() - 1)).getTimeStamp());
+            assertEquals(2, server.getQueryCacheHits());
+            assertEquals(4, server.getQueryCacheMisses());
+        }
+        pool.shutdown();
+
+        QueryResultCache cache = new QueryResultCache(1000);
+        byte[] small = cache.get("a", 0, () -> "a");
+        cache.get("b", 0, () -> new byte[600]);
+        assertTrue(small == cache.get("a", 0, () -> "a"));
+        // b is now the least recently used, so it makes room for c
+        cache.get("c", 0, () -> new byte[600]);
+        assertTrue(cache.bytes() <= 1000);
+        assertTrue(small == cache.get("a", 0, () -> "a"));
+        assertEquals(2, cache.hits());
+        cache.get("b", 0, () -> new byte[600]);
+        assertEquals(2, cache.hits());
+        assertEquals(4, cache.misses());
+        // A newer sequence number makes the cached response stale
+        assertTrue(small != cache.get("a", 1, () -> "a"));
+    }
+
+    @Test
+    public void testWindowQueryIsAnsweredFromCache() throws IOException, ClassNotFoundException {
+        ScheduledExecutorService pool = Executors.newSingleThreadScheduledExecutor();
+        Server server = new Server(client, pool);
+        for (int i = 0; i < 100; i++) {
+            server.processIncomingEvent(eventList.get(i));
+        }
+        double start = eventList.get(10).getTimeStamp();
+        double end = eventList.get(20).getTimeStamp();
+        List<Double> expected = new ArrayList<>();
+        for (Event event : server.eventsInTimeWindow(new TimeWindow(start, end))) {
+            expected.add(event.getTimeStamp());
+        }
+        assertEquals(11, expected.size());
+        try (ServerSocket listener = new ServerSocket(0);
+             Socket clientSide = new Socket("127.0.0.1", listener.getLocalPort());
+             Socket serverSide = listener.accept()) {
+            Request window = new Request(RequestType.ANALYSIS, RequestCommand.ANALYSIS_GET_EVENTS_IN_WINDOW, start + "," + end);
+            for (int asked = 0; asked < 2; asked++) {
+                List<Double> answered = new ArrayList<>();
+                for (Object event : (List<?>) ask(server, window, serverSide, clientSide)) {
+                    answered.add(((Event) event).getTimeStamp());
+                }
+                assertEquals(expected, answered);
+            }
+            assertEquals(1, server.getQueryCacheHits());
+            assertEquals(1, server.getQueryCacheMisses());
+        }
+        pool.shutdown();
+    }
+
+    private static Object ask(Server server, Request request, Socket serverSide, Socket clientSide) throws IOException, ClassNotFoundException {
+        server.processIncomingEventOrRequest(new TimeToProcess(0, request, 0, serverSide));
+        return new ObjectInputStream(clientSide.getInputStream()).readObject();
+    }
+
+    @Test
+    public void testStreamedResponsesArePagedInChunks() throws IOException {
+        ScheduledExecutorService pool = Executors.newSingleThreadScheduledExecutor();
+        Server server = new Server(client, pool);
+        int events = 5000;
+        for (int i = 0; i < events; i++) {
+            server.processIncomingEvent(new SensorEvent(i, 0, i % 50, "TempSensor", i));
+        }
+
+        List<Double> streamed = new ArrayList<>();
+        long cursor = 0;
+        int pages = 0;
+        while (cursor >= 0) {
+            Request page = new Request(RequestType.ANALYSIS, RequestCommand.ANALYSIS_STREAM_EVENTS_IN_WINDOW, "100,4099," + cursor + ",1500");
+            try (EventStream stream = stream(server, page)) {
+                stream.forEachRemaining(event -> streamed.add(event.getTimeStamp()));
+                cursor = stream.getNextCursor();
+            }
+            pages++;
+        }
+        assertEquals(3, pages);
+        assertEquals(4000, streamed.size());
+        for (int i = 0; i < streamed.size(); i++) {
+            assertEquals(100.0 + i, streamed.get(i));
+        }
+
+        Request latest = new Request(RequestType.ANALYSIS, RequestCommand.ANALYSIS_STREAM_LATEST_EVENTS, "3000");
+        try (EventStream stream = stream(server, latest)) {
+            int count = 0;
+            while (stream.hasNext()) {
+                assertEquals(2000.0 + count, stream.next().getTimeStamp());
+                count++;
+            }
+            assertEquals(3000, count);
+            assertEquals(-1, stream.getNextCursor());
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    public void testStreamedResponsesThroughRingBufferStore() throws IOException {
+        ScheduledExecutorService pool = Executors.newSingleThreadScheduledExecutor();
+        RingBufferEventStore store = new RingBufferEventStore(new RetentionPolicy(3000, Double.POSITIVE_INFINITY, 100, 4));
+        Server server = new Server(client, pool, store);
+        for (int i = 0; i < 5000; i++) {
+            server.processIncomingEvent(new SensorEvent(i, 0, i % 50, "TempSensor", i));
+        }
+
+        // Bucket stand-ins for the events pushed out of the ring come first, then the ring itself
+        List<Double> expected = new ArrayList<>();
+        for (Event event : store.eventsInWindow(0, 4999)) {
+            expected.add(event.getTimeStamp());
+        }
+        assertEquals(4 * 50 + 3000, expected.size());
+        List<Double> streamed = new ArrayList<>();
+        Request window = new Request(RequestType.ANALYSIS, RequestCommand.ANALYSIS_STREAM_EVENTS_IN_WINDOW, "0,4999");
+        try (EventStream stream = stream(server, window)) {
+            stream.forEachRemaining(event -> streamed.add(event.getTimeStamp()));
+            assertEquals(-1, stream.getNextCursor());
+        }
+        assertEquals(expected, streamed);
+
+        Request latest = new Request(RequestType.ANALYSIS, RequestCommand.ANALYSIS_STREAM_LATEST_EVENTS, "3000");
+        try (EventStream stream = stream(server, latest)) {
+            for (int i = 2000; i < 5000; i++) {
+                assertEquals(i, stream.next().getTimeStamp());
+            }
+            assertFalse(stream.hasNext());
+        }
+        pool.shutdown();
+    }
+
+    private static EventStream stream(Server server, Request request) throws IOException {
+        ServerSocket listener = new ServerSocket(0);
+        Socket clientSide = new Socket("127.0.0.1", listener.getLocalPort());
+        Socket serverSide = listener.accept();
+        listener.close();
+        server.processIncomingEventOrRequest(new TimeToProcess(0, request, 0, serverSide));
+        return new EventStream(() -> {
+            clientSide.close();
+            serverSide.close();
+        }, clientSide.getInputStream());
+    }
+
+    @Test
+    public void testLogSubscriptionPushesMatchingEntityIds() throws IOException, ClassNotFoundException, InterruptedException {
+        ScheduledExecutorService pool = Executors.newSingleThreadScheduledExecutor();
+        Server server = new Server(client, pool);
+        Filter filter = new Filter("value", DoubleOperator.GREATER_THAN_OR_EQUALS, 23);
+        server.logIf(filter);
+        List<Integer> expected = new ArrayList<>();
+        for (Event event : filter.sift(eventList)) {
+            expected.add(event.getEntityId());
+        }
+
+        try (ServerSocket listener = new ServerSocket(0);
+             Socket clientSide = new Socket("127.0.0.1", listener.getLocalPort());
+             Socket serverSide = listener.accept()) {
+            Request subscribe = new Request(RequestType.CONTROL, RequestCommand.CONTROL_SUBSCRIBE_LOGS, "DROP_OLDEST,1024");
+            server.processIncomingEventOrRequest(new TimeToProcess(0, subscribe, 0, serverSide));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (server.getLogSubscriberCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, server.getLogSubscriberCount());
+
+            for (Event event : eventList) {
+                server.processIncomingEvent(event);
+            }
+            ObjectInputStream in = new ObjectInputStream(clientSide.getInputStream());
+            List<Integer> pushed = new ArrayList<>();
+            while (pushed.size() < expected.size()) {
+                List<?> batch = (List<?>) in.readObject();
+                assertTrue(batch.size() <= LogSubscriber.MAX_BATCH_SIZE);
+                for (Object entityId : batch) {
+                    pushed.add((Integer) entityId);
+                }
+            }
+            assertEquals(expected, pushed);
+            assertEquals(List.of(), server.readLogs());
+
+            // Closing the connection ends the subscription without waiting for another push to fail
+            clientSide.close();
+            deadline = System.currentTimeMillis() + 5000;
+            while (server.getLogSubscriberCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, server.getLogSubscriberCount());
+        }
+        pool.shutdown();
+
+        LogSubscriber dropping = new LogSubscriber(new Socket(), BackpressurePolicy.DROP_OLDEST, 4);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(dropping.offer(i));
+        }
+        assertEquals(6, dropping.dropped());
+
+        // A full BLOCK buffer never makes the producer wait, but tells it when there is room again
+        LogSubscriber blocking = new LogSubscriber(new Socket(), BackpressurePolicy.BLOCK, 1);
+        AtomicInteger roomCalls = new AtomicInteger();
+        assertTrue(blocking.hasRoom(roomCalls::incrementAndGet));
+        assertTrue(blocking.offer(1));
+        assertFalse(blocking.hasRoom(roomCalls::incrementAndGet));
+        assertTrue(blocking.offer(2));
+        assertEquals(0, roomCalls.get());
+        blocking.close();
+        assertEquals(1, roomCalls.get());
+        assertFalse(blocking.offer(3));
+    }
+
+    @Test
+    public void testBlockingLogSubscriptionHoldsTasksWithoutParkingThePool()
+            throws IOException, ClassNotFoundException, InterruptedException, ExecutionException, TimeoutException {
+        ScheduledExecutorService pool = Executors.newSingleThreadScheduledExecutor();
+        Server server = new Server(client, pool);
+        server.updateMaxWaitTime(0);
+        server.logIf(new Filter("value", DoubleOperator.GREATER_THAN_OR_EQUALS, 23));
+        int events = 50_000;
+
+        try (ServerSocket listener = new ServerSocket(0);
+             Socket clientSide = new Socket()) {
+            // Small socket buffers, so an unread subscription fills up quickly
+            clientSide.setReceiveBufferSize(4096);
+            clientSide.connect(listener.getLocalSocketAddress());
+            try (Socket serverSide = listener.accept()) {
+                serverSide.setSendBufferSize(4096);
+                Request subscribe = new Request(RequestType.CONTROL, RequestCommand.CONTROL_SUBSCRIBE_LOGS, "BLOCK,16");
+                server.processIncomingEventOrRequest(new TimeToProcess(0, subscribe, 0, serverSide));
+                for (int i = 0; i < events; i++) {
+                    server.processIncomingEventOrRequest(new TimeToProcess(0, new SensorEvent(i, 0, i % 50, "TempSensor", 30)));
+                }
+
+                // The subscriber is not reading, so the tasks are held up, yet the pool thread is free for other work
+                Thread.sleep(500);
+                assertTrue(server.lastNEvents(1).get(0).getTimeStamp() < events - 1);
+                pool.submit(() -> { }).get(1, TimeUnit.SECONDS);
+
+                ObjectInputStream in = new ObjectInputStream(clientSide.getInputStream());
+                int pushed = 0;
+                while (pushed < events) {
+                    for (Object entityId : (List<?>) in.readObject()) {
+                        assertEquals(pushed % 50, entityId);
+                        pushed++;
+                    }
+                }
+                assertEquals(events - 1, server.lastNEvents(1).get(0).getTimeStamp());
+            }
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    public void testReadLogsInTimestampOrder() {
+        Server server = new Server(client);
+        Filter filter = new Filter("value", DoubleOperator.GREATER_THAN_OR_EQUALS, 23);
+        server.logIf(filter);
+        for (Event event : eventList) {
+            server.processIncomingEvent(event);
+        }
+        List<Integer> expected = new ArrayList<>();
+        for (Event event : filter.sift(eventList)) {
+            expected.add(event.getEntityId());
+        }
+        assertEquals(expected, server.readLogs());
+        assertEquals(List.of(), server.readLogs());
+    }
+
+    @Test
+    public void testFailedTaskDoesNotStopSharedPoolServer() throws IOException, ClassNotFoundException {
+        ScheduledExecutorService pool = Executors.newSingleThreadScheduledExecutor();
+        Server server = new Server(client, pool);
+        server.processIncomingEvent(eventList.get(0));
+        try (ServerSocket listener = new ServerSocket(0);
+             Socket clientSide = new Socket("127.0.0.1", listener.getLocalPort());
+             Socket serverSide = listener.accept()) {
+            Request malformed = new Request(RequestType.ANALYSIS, RequestCommand.ANALYSIS_GET_LATEST_EVENTS, "not a number");
+            server.processIncomingEventOrRequest(new TimeToProcess(0, malformed, 0, serverSide));
+            Request allEntities = new Request(RequestType.ANALYSIS, RequestCommand.ANALYSIS_GET_ALL_ENTITIES, "");
+            assertEquals(List.of(eventList.get(0).getEntityId()), ask(server, allEntities, serverSide, clientSide));
+        }
+        pool.shutdown();
+    }
+}